@@ -76,8 +76,8 @@ import org.sonar.api.rule.Severity;
   @Property(
     key = BitBucketPlugin.BITBUCKET_PULL_REQUEST,
     name = "BitBucket Pull Request",
-    description = "Pull request number",
-    type = PropertyType.INTEGER,
+    description = "Pull request number, or comma separated numbers of pull requests decorated by the same analysis",
+    type = PropertyType.STRING,
     global = false,
     project = false,
     module = false),
@@ -124,6 +124,169 @@ import org.sonar.api.rule.Severity;
     defaultValue = "true",
     global = true,
     project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_TOKEN_CACHE,
+    name = "Cache BitBucket Access Tokens",
+    description = "Keep OAuth access tokens on disk and reuse them until they expire, refreshing them when possible",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_TOKEN_CACHE_MARGIN,
+    name = "BitBucket Access Token Margin",
+    description = "Number of minutes before its expiry a cached access token is renewed, it should be longer than " +
+      "an analysis. defaults to " + BitBucketPlugin.DEFAULT_TOKEN_CACHE_MARGIN,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_CACHE_DIR,
+    name = "BitBucket Cache Directory",
+    description = "Directory where cached BitBucket data is kept. defaults to \"~/" + BitBucketPlugin.DEFAULT_CACHE_DIR + "\"",
+    type = PropertyType.STRING,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_SUMMARY_UPSERT,
+    name = "Edit The Summary Comment",
+    description = "Keep a single summary comment on the pull request and edit it when it changes, instead of posting a new one every analysis",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_INCREMENTAL,
+    name = "Incremental Pull Request Decoration",
+    description = "Remember the comments left on each pull request and start the next analysis from them instead of loading every comment",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_INTERDIFF,
+    name = "Decorate Only Files Changed Since The Last Analysis",
+    description = "With incremental decoration, leave the comments of files not changed since the last analyzed commit as they are",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_HTTP_CACHE,
+    name = "Cache BitBucket Responses",
+    description = "Keep BitBucket responses on disk and revalidate them with their ETag, so unchanged data is not downloaded again",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_SIZE,
+    name = "BitBucket Response Cache Size",
+    description = "Size in megabytes above which the least recently used responses are deleted. defaults to " +
+      BitBucketPlugin.DEFAULT_HTTP_CACHE_MAX_SIZE,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_AGE,
+    name = "BitBucket Response Cache Age",
+    description = "Number of days a cached response is kept without being used. defaults to " +
+      BitBucketPlugin.DEFAULT_HTTP_CACHE_MAX_AGE,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS,
+    name = "BitBucket Max Connections",
+    description = "Maximum number of pooled HTTP connections to BitBucket. defaults to " +
+      BitBucketPlugin.DEFAULT_MAX_CONNECTIONS,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS_PER_ROUTE,
+    name = "BitBucket Max Connections Per Host",
+    description = "Maximum number of pooled HTTP connections to a single BitBucket host. defaults to " +
+      BitBucketPlugin.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_RATE_LIMIT,
+    name = "BitBucket Request Rate",
+    description = "Average number of requests per second sent to BitBucket for an account. 0 does not pace the requests " +
+      "and only waits when BitBucket asks to. defaults to " + BitBucketPlugin.DEFAULT_RATE_LIMIT,
+    type = PropertyType.FLOAT,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_RATE_LIMIT_BURST,
+    name = "BitBucket Request Burst",
+    description = "Number of requests that may be sent at once after a quiet period. defaults to " +
+      BitBucketPlugin.DEFAULT_RATE_LIMIT_BURST,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM,
+    name = "BitBucket Comment Parallelism",
+    description = "Maximum number of review comment calls to BitBucket at the same time, comment pages loaded and comments sent. " +
+      "1 makes them one by one. defaults to " +
+      BitBucketPlugin.DEFAULT_COMMENT_PARALLELISM,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_PULL_REQUEST_PARALLELISM,
+    name = "BitBucket Pull Request Parallelism",
+    description = "Maximum number of pull requests loaded and decorated at the same time when several are given. defaults to " +
+      BitBucketPlugin.DEFAULT_PULL_REQUEST_PARALLELISM,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_HTTP_ENGINE,
+    name = "BitBucket HTTP Engine",
+    description = "HTTP engine used for BitBucket calls, the async engine keeps many calls in flight on a few threads",
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {BitBucketPlugin.HTTP_ENGINE_BLOCKING, BitBucketPlugin.HTTP_ENGINE_ASYNC},
+    defaultValue = BitBucketPlugin.HTTP_ENGINE_BLOCKING,
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_PREFETCH,
+    name = "Prefetch Pull Request Data",
+    description = "Download pull request comments and diff in the background while the analysis runs",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
+    module = false),
+  @Property(
+    key = BitBucketPlugin.BITBUCKET_LOCAL_DIFF,
+    name = "Compute Diff Locally",
+    description = "Compute the pull request diff from the local repository, downloading it only when the commits are missing",
+    type = PropertyType.BOOLEAN,
+    defaultValue = "false",
+    global = true,
+    project = true,
     module = false)
 })
 public class BitBucketPlugin implements Plugin {
@@ -141,9 +304,39 @@ public class BitBucketPlugin implements Plugin {
   public static final String BITBUCKET_CI_KEY = "sonar.bitbucket.ci.key";
   public static final String BITBUCKET_CI_NAME = "sonar.bitbucket.ci.name";
   public static final String BITBUCKET_CI_URL = "sonar.bitbucket.ci.url";
+  public static final String BITBUCKET_TOKEN_CACHE = "sonar.bitbucket.tokenCache";
+  public static final String BITBUCKET_TOKEN_CACHE_MARGIN = "sonar.bitbucket.tokenCache.margin";
+  public static final String BITBUCKET_CACHE_DIR = "sonar.bitbucket.cacheDir";
+  public static final String BITBUCKET_SUMMARY_UPSERT = "sonar.bitbucket.summary.upsert";
+  public static final String BITBUCKET_INCREMENTAL = "sonar.bitbucket.incremental";
+  public static final String BITBUCKET_INTERDIFF = "sonar.bitbucket.incremental.interdiff";
+  public static final String BITBUCKET_HTTP_CACHE = "sonar.bitbucket.httpCache";
+  public static final String BITBUCKET_HTTP_CACHE_MAX_SIZE = "sonar.bitbucket.httpCache.maxSize";
+  public static final String BITBUCKET_HTTP_CACHE_MAX_AGE = "sonar.bitbucket.httpCache.maxAge";
+  public static final String BITBUCKET_MAX_CONNECTIONS = "sonar.bitbucket.http.maxConnections";
+  public static final String BITBUCKET_MAX_CONNECTIONS_PER_ROUTE = "sonar.bitbucket.http.maxConnectionsPerRoute";
+  public static final String BITBUCKET_HTTP_ENGINE = "sonar.bitbucket.http.engine";
+  public static final String BITBUCKET_PREFETCH = "sonar.bitbucket.prefetch";
+  public static final String BITBUCKET_LOCAL_DIFF = "sonar.bitbucket.diff.local";
+  public static final String BITBUCKET_COMMENT_PARALLELISM = "sonar.bitbucket.comment.parallelism";
+  public static final String BITBUCKET_PULL_REQUEST_PARALLELISM = "sonar.bitbucket.pullRequest.parallelism";
+  public static final String BITBUCKET_RATE_LIMIT = "sonar.bitbucket.rateLimit.requestsPerSecond";
+  public static final String BITBUCKET_RATE_LIMIT_BURST = "sonar.bitbucket.rateLimit.burst";
 
   public static final String DEFAULT_CI_KEY_NAME = "SonarQube";
   public static final String DEFAULT_CI_URL = "http://sonarqube.org";
+  public static final String DEFAULT_CACHE_DIR = ".sonar/bitbucket";
+  public static final int DEFAULT_TOKEN_CACHE_MARGIN = 30;
+  public static final int DEFAULT_HTTP_CACHE_MAX_SIZE = 100;
+  public static final int DEFAULT_HTTP_CACHE_MAX_AGE = 7;
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  public static final int DEFAULT_COMMENT_PARALLELISM = 4;
+  public static final int DEFAULT_PULL_REQUEST_PARALLELISM = 2;
+  public static final double DEFAULT_RATE_LIMIT = 0;
+  public static final int DEFAULT_RATE_LIMIT_BURST = 10;
+  public static final String HTTP_ENGINE_BLOCKING = "blocking";
+  public static final String HTTP_ENGINE_ASYNC = "async";
 
   @Override
   public void define(Context context) {
@@ -153,6 +346,7 @@ public class BitBucketPlugin implements Plugin {
       BitBucketPluginConfiguration.class,
       PullRequestProjectBuilder.class,
       PullRequestFacade.class,
+      PullRequestBatch.class,
       MarkDownUtils.class);
   }
 
@@ -19,8 +19,12 @@
  */
 package com.wirelust.sonar.plugins.bitbucket;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.CheckForNull;
@@ -49,8 +53,25 @@ public class BitBucketPluginConfiguration {
     localization = ResourceBundle.getBundle("org.sonar.l10n.bitbucket");
   }
 
+  /**
+   * @return the first pull request to decorate, 0 when none is set
+   */
   public int pullRequestNumber() {
-    return settings.getInt(BitBucketPlugin.BITBUCKET_PULL_REQUEST);
+    List<Integer> numbers = pullRequestNumbers();
+    return numbers.isEmpty() ? 0 : numbers.get(0);
+  }
+
+  /**
+   * @return every pull request to decorate, in the order they were given
+   */
+  public List<Integer> pullRequestNumbers() {
+    List<Integer> numbers = new ArrayList<>();
+    for (String number : settings.getStringArray(BitBucketPlugin.BITBUCKET_PULL_REQUEST)) {
+      if (!number.trim().isEmpty() && !numbers.contains(Integer.valueOf(number.trim()))) {
+        numbers.add(Integer.valueOf(number.trim()));
+      }
+    }
+    return numbers;
   }
 
   @CheckForNull
@@ -162,6 +183,122 @@ public class BitBucketPluginConfiguration {
     return value;
   }
 
+  public boolean tokenCacheEnabled() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_TOKEN_CACHE);
+  }
+
+  /**
+   * @return how long before its expiry a cached access token is renewed, in milliseconds
+   */
+  public long tokenExpiryMarginMillis() {
+    return TimeUnit.MINUTES.toMillis(
+      positiveInt(BitBucketPlugin.BITBUCKET_TOKEN_CACHE_MARGIN, BitBucketPlugin.DEFAULT_TOKEN_CACHE_MARGIN));
+  }
+
+  public boolean prefetchEnabled() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_PREFETCH);
+  }
+
+  public boolean localDiff() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_LOCAL_DIFF);
+  }
+
+  public File cacheDir() {
+    String value = settings.getString(BitBucketPlugin.BITBUCKET_CACHE_DIR);
+    if (value == null || value.isEmpty()) {
+      return new File(System.getProperty("user.home"), BitBucketPlugin.DEFAULT_CACHE_DIR);
+    }
+    return new File(value);
+  }
+
+  public boolean incrementalDecoration() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_INCREMENTAL);
+  }
+
+  public boolean upsertSummary() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_SUMMARY_UPSERT);
+  }
+
+  public boolean interdiff() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_INTERDIFF);
+  }
+
+  public boolean httpCacheEnabled() {
+    return settings.getBoolean(BitBucketPlugin.BITBUCKET_HTTP_CACHE);
+  }
+
+  /**
+   * @return size of the response cache in bytes
+   */
+  public long httpCacheMaxBytes() {
+    return positiveInt(BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_SIZE, BitBucketPlugin.DEFAULT_HTTP_CACHE_MAX_SIZE)
+      * 1024L * 1024L;
+  }
+
+  /**
+   * @return how long an unused response stays in the cache, in milliseconds
+   */
+  public long httpCacheMaxAgeMillis() {
+    return TimeUnit.DAYS.toMillis(
+      positiveInt(BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_AGE, BitBucketPlugin.DEFAULT_HTTP_CACHE_MAX_AGE));
+  }
+
+  public int maxConnections() {
+    return positiveInt(BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS, BitBucketPlugin.DEFAULT_MAX_CONNECTIONS);
+  }
+
+  public int maxConnectionsPerRoute() {
+    return positiveInt(BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS_PER_ROUTE,
+      BitBucketPlugin.DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+  }
+
+  /**
+   * @return average number of requests per second sent for the account, 0 to only wait when Bitbucket asks to
+   */
+  public double requestsPerSecond() {
+    Double value = settings.getDouble(BitBucketPlugin.BITBUCKET_RATE_LIMIT);
+    if (value == null) {
+      return BitBucketPlugin.DEFAULT_RATE_LIMIT;
+    }
+    return Math.max(0, value);
+  }
+
+  public int requestBurst() {
+    return positiveInt(BitBucketPlugin.BITBUCKET_RATE_LIMIT_BURST, BitBucketPlugin.DEFAULT_RATE_LIMIT_BURST);
+  }
+
+  /**
+   * @return how many review comments may be sent at the same time, at least 1
+   */
+  public int commentParallelism() {
+    if (!settings.hasKey(BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM)) {
+      return BitBucketPlugin.DEFAULT_COMMENT_PARALLELISM;
+    }
+    return Math.max(1, settings.getInt(BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM));
+  }
+
+  public int pullRequestParallelism() {
+    if (!settings.hasKey(BitBucketPlugin.BITBUCKET_PULL_REQUEST_PARALLELISM)) {
+      return BitBucketPlugin.DEFAULT_PULL_REQUEST_PARALLELISM;
+    }
+    return Math.max(1, settings.getInt(BitBucketPlugin.BITBUCKET_PULL_REQUEST_PARALLELISM));
+  }
+
+  /**
+   * @return true when Bitbucket calls should go through the non-blocking HTTP engine
+   */
+  public boolean asyncHttpEngine() {
+    return BitBucketPlugin.HTTP_ENGINE_ASYNC.equalsIgnoreCase(settings.getString(BitBucketPlugin.BITBUCKET_HTTP_ENGINE));
+  }
+
+  private int positiveInt(String key, int defaultValue) {
+    int value = settings.getInt(key);
+    if (value <= 0) {
+      value = defaultValue;
+    }
+    return value;
+  }
+
   public String message(String key) {
     return localization.getString(key);
   }
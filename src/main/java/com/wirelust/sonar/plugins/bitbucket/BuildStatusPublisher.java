@@ -0,0 +1,163 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends build statuses in the background, one at a time and in order.
+ *
+ * Nothing waits for a status, so only the last one matters: a status still waiting to be sent when a newer one
+ * comes is replaced by it. {@link #await(long, TimeUnit)} waits for the last one before the analysis ends.
+ */
+public class BuildStatusPublisher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BuildStatusPublisher.class);
+
+  private final Executor executor;
+  private final Function<BuildStatus.State, CompletableFuture<?>> sender;
+
+  // guarded by this
+  private BuildStatus.State queued;
+  private boolean sending;
+  private CompletableFuture<Void> idle = CompletableFuture.completedFuture(null);
+  private RuntimeException lastFailure;
+  private int sent;
+  private int coalesced;
+
+  /**
+   * @param executor executor the first call of a burst is started on, so that submitting never waits
+   * @param sender starts sending one status, the future fails when Bitbucket refuses it
+   */
+  public BuildStatusPublisher(Executor executor, Function<BuildStatus.State, CompletableFuture<?>> sender) {
+    this.executor = executor;
+    this.sender = sender;
+  }
+
+  public void submit(BuildStatus.State state) {
+    synchronized (this) {
+      if (queued != null) {
+        LOGGER.debug("build status {} replaced by {} before being sent", queued, state);
+        coalesced++;
+      }
+      queued = state;
+      if (sending) {
+        return;
+      }
+      sending = true;
+      idle = new CompletableFuture<>();
+    }
+    executor.execute(this::sendNext);
+  }
+
+  /**
+   * Start sending the queued status, the next one is sent once it completes.
+   */
+  private void sendNext() {
+    BuildStatus.State state;
+    CompletableFuture<Void> done;
+    synchronized (this) {
+      state = queued;
+      queued = null;
+      done = idle;
+      if (state == null) {
+        sending = false;
+      }
+    }
+    if (state == null) {
+      done.complete(null);
+      return;
+    }
+
+    CompletableFuture<?> call;
+    try {
+      call = sender.apply(state);
+    } catch (RuntimeException e) {
+      call = new CompletableFuture<>();
+      call.completeExceptionally(e);
+    }
+    call.whenComplete((result, error) -> {
+      RuntimeException failure = null;
+      if (error != null) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        LOGGER.warn("unable to send build status {}", state, cause);
+        failure = cause instanceof RuntimeException
+          ? (RuntimeException) cause : new IllegalStateException("Unable to send build status", cause);
+      }
+      synchronized (this) {
+        sent++;
+        lastFailure = failure;
+      }
+      sendNext();
+    });
+  }
+
+  /**
+   * Wait until the last submitted status is sent.
+   * @return false when it was still not sent after the timeout
+   * @throws IllegalStateException when Bitbucket refused the last status
+   */
+  public boolean await(long timeout, TimeUnit unit) {
+    CompletableFuture<Void> done;
+    synchronized (this) {
+      done = idle;
+    }
+    try {
+      done.get(timeout, unit);
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Unable to send build status", e.getCause());
+    }
+
+    RuntimeException failure = getLastFailure();
+    if (failure != null) {
+      throw failure;
+    }
+    return true;
+  }
+
+  @CheckForNull
+  private synchronized RuntimeException getLastFailure() {
+    return lastFailure;
+  }
+
+  public synchronized int getSent() {
+    return sent;
+  }
+
+  public synchronized int getCoalesced() {
+    return coalesced;
+  }
+}
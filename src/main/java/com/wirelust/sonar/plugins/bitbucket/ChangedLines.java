@@ -0,0 +1,256 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Lines added or modified by a pull request, by new file path.
+ *
+ * Each file keeps its lines as sorted, merged ranges searched in O(log n), or as a bitmap looked up in O(1)
+ * when the changes are scattered enough for the bitmap to be the smaller of the two.
+ */
+public class ChangedLines {
+
+  // rough object header and reference sizes, only used for the footprint estimate
+  private static final int OBJECT_OVERHEAD = 16;
+  private static final int MAP_ENTRY_SIZE = 32;
+
+  private final Map<String, FileLines> linesByFile;
+
+  private ChangedLines(Map<String, FileLines> linesByFile) {
+    this.linesByFile = linesByFile;
+  }
+
+  public boolean hasFile(String path) {
+    return linesByFile.containsKey(path);
+  }
+
+  public boolean hasLine(String path, int line) {
+    FileLines fileLines = linesByFile.get(path);
+    return fileLines != null && fileLines.contains(line);
+  }
+
+  public int fileCount() {
+    return linesByFile.size();
+  }
+
+  public long lineCount() {
+    long count = 0;
+    for (FileLines fileLines : linesByFile.values()) {
+      count += fileLines.lineCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return approximate number of bytes held by the index, paths included
+   */
+  public long estimatedSize() {
+    long size = OBJECT_OVERHEAD;
+    for (Map.Entry<String, FileLines> entry : linesByFile.entrySet()) {
+      size += MAP_ENTRY_SIZE + OBJECT_OVERHEAD + 2L * entry.getKey().length() + entry.getValue().estimatedSize();
+    }
+    return size;
+  }
+
+  /**
+   * @return the changed lines of a file in ascending order, empty when the file is not part of the diff
+   */
+  int[] lines(String path) {
+    FileLines fileLines = linesByFile.get(path);
+    return fileLines == null ? new int[0] : fileLines.toArray();
+  }
+
+  /**
+   * Collects ranges file by file, in any order within a file.
+   */
+  public static class Builder {
+
+    private final Map<String, FileLines> linesByFile = new HashMap<>();
+    private String currentPath;
+    private long[] ranges = new long[16];
+    private int rangeCount;
+
+    /**
+     * Start a new file, ending the previous one.
+     * @param path new path of the file, null to ignore the following lines (deleted files)
+     */
+    public Builder file(@Nullable String path) {
+      endFile();
+      currentPath = path;
+      return this;
+    }
+
+    /**
+     * @param firstLine first changed line, 1 based
+     * @param lastLine last changed line, inclusive
+     */
+    public Builder lines(int firstLine, int lastLine) {
+      if (currentPath == null || lastLine < firstLine) {
+        return this;
+      }
+      if (rangeCount == ranges.length) {
+        ranges = Arrays.copyOf(ranges, ranges.length * 2);
+      }
+      ranges[rangeCount++] = ((long) firstLine << 32) | (lastLine & 0xFFFFFFFFL);
+      return this;
+    }
+
+    public ChangedLines build() {
+      endFile();
+      return new ChangedLines(linesByFile);
+    }
+
+    private void endFile() {
+      if (currentPath != null) {
+        linesByFile.put(currentPath, FileLines.of(ranges, rangeCount));
+      }
+      currentPath = null;
+      rangeCount = 0;
+    }
+  }
+
+  private abstract static class FileLines {
+
+    abstract boolean contains(int line);
+
+    abstract long lineCount();
+
+    abstract long estimatedSize();
+
+    abstract int[] toArray();
+
+    static FileLines of(long[] packedRanges, int count) {
+      long[] sorted = Arrays.copyOf(packedRanges, count);
+      // the start is in the high bits, so this sorts by start line
+      Arrays.sort(sorted);
+
+      int[] starts = new int[count];
+      int[] ends = new int[count];
+      int merged = 0;
+      for (long range : sorted) {
+        int start = (int) (range >>> 32);
+        int end = (int) range;
+        if (merged > 0 && start <= ends[merged - 1] + 1) {
+          ends[merged - 1] = Math.max(ends[merged - 1], end);
+        } else {
+          starts[merged] = start;
+          ends[merged] = end;
+          merged++;
+        }
+      }
+
+      RangeLines rangeLines = new RangeLines(Arrays.copyOf(starts, merged), Arrays.copyOf(ends, merged));
+      if (merged > 1) {
+        int first = starts[0];
+        int span = ends[merged - 1] - first + 1;
+        // one bit per line of the span against two ints per range
+        if (span / 8 < 8L * merged) {
+          return new BitmapLines(rangeLines, first);
+        }
+      }
+      return rangeLines;
+    }
+  }
+
+  private static class RangeLines extends FileLines {
+    private final int[] starts;
+    private final int[] ends;
+
+    RangeLines(int[] starts, int[] ends) {
+      this.starts = starts;
+      this.ends = ends;
+    }
+
+    @Override
+    boolean contains(int line) {
+      int index = Arrays.binarySearch(starts, line);
+      if (index >= 0) {
+        return true;
+      }
+      // the range starting right before the line, if any
+      int candidate = -index - 2;
+      return candidate >= 0 && line <= ends[candidate];
+    }
+
+    @Override
+    long lineCount() {
+      long count = 0;
+      for (int i = 0; i < starts.length; i++) {
+        count += ends[i] - starts[i] + 1L;
+      }
+      return count;
+    }
+
+    @Override
+    long estimatedSize() {
+      return 3L * OBJECT_OVERHEAD + 8L * starts.length;
+    }
+
+    @Override
+    int[] toArray() {
+      int[] lines = new int[(int) lineCount()];
+      int index = 0;
+      for (int i = 0; i < starts.length; i++) {
+        for (int line = starts[i]; line <= ends[i]; line++) {
+          lines[index++] = line;
+        }
+      }
+      return lines;
+    }
+  }
+
+  private static class BitmapLines extends FileLines {
+    private final BitSet bits = new BitSet();
+    private final int offset;
+
+    BitmapLines(RangeLines ranges, int offset) {
+      this.offset = offset;
+      for (int i = 0; i < ranges.starts.length; i++) {
+        bits.set(ranges.starts[i] - offset, ranges.ends[i] - offset + 1);
+      }
+    }
+
+    @Override
+    boolean contains(int line) {
+      return line >= offset && bits.get(line - offset);
+    }
+
+    @Override
+    long lineCount() {
+      return bits.cardinality();
+    }
+
+    @Override
+    long estimatedSize() {
+      return 3L * OBJECT_OVERHEAD + bits.size() / 8;
+    }
+
+    @Override
+    int[] toArray() {
+      return bits.stream().map(bit -> bit + offset).toArray();
+    }
+  }
+}
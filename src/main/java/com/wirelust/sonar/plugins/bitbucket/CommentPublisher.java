@@ -0,0 +1,122 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends review comments with a bounded number of calls in flight.
+ *
+ * Submitting blocks once the limit is reached, so comments are not queued up faster than Bitbucket takes them.
+ * A failed comment does not stop the others, failures are reported together by {@link #awaitAll()}.
+ */
+public class CommentPublisher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommentPublisher.class);
+
+  private final Semaphore permits;
+  private final List<CompletableFuture<?>> pending = new ArrayList<>();
+  private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger submitted = new AtomicInteger();
+
+  /**
+   * @param parallelism maximum number of calls in flight, values below 1 mean one at a time
+   */
+  public CommentPublisher(int parallelism) {
+    this.permits = new Semaphore(Math.max(1, parallelism));
+  }
+
+  /**
+   * @param description what is being published, used when reporting a failure
+   * @param call starts the call, without waiting for it
+   */
+  public void submit(String description, Supplier<CompletableFuture<?>> call) {
+    permits.acquireUninterruptibly();
+    submitted.incrementAndGet();
+
+    CompletableFuture<?> future;
+    try {
+      future = call.get();
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+    }
+
+    CompletableFuture<?> done = future.whenComplete((result, error) -> {
+      permits.release();
+      if (error != null) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        LOGGER.error("unable to publish comment {}", description, cause);
+        failures.add(cause);
+      }
+    });
+    synchronized (pending) {
+      pending.add(done);
+    }
+  }
+
+  /**
+   * Wait for every submitted call.
+   * @throws IllegalStateException when some comments could not be published, each failure attached to it
+   */
+  public void awaitAll() {
+    List<CompletableFuture<?>> futures;
+    synchronized (pending) {
+      futures = new ArrayList<>(pending);
+      pending.clear();
+    }
+    for (CompletableFuture<?> future : futures) {
+      try {
+        future.join();
+      } catch (CompletionException e) {
+        // already recorded when the call completed
+      }
+    }
+
+    if (!failures.isEmpty()) {
+      List<Throwable> causes = new ArrayList<>(failures);
+      IllegalStateException exception = new IllegalStateException(
+        String.format("Unable to publish %d of %d review comments", causes.size(), submitted.get()), causes.get(0));
+      for (Throwable cause : causes.subList(1, causes.size())) {
+        exception.addSuppressed(cause);
+      }
+      throw exception;
+    }
+  }
+
+  public int getSubmitted() {
+    return submitted.get();
+  }
+
+  public int getFailed() {
+    return failures.size();
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+/**
+ * Work out the fewest calls turning the comments already on the pull request into the ones we want.
+ *
+ * Comments are paired within a file: same content on the same line first, then same content on another line
+ * (the issue moved, the comment is moved), then same line with another content (the comment is edited).
+ * Whatever is left is created or deleted.
+ */
+public class CommentReconciler {
+
+  private CommentReconciler() {
+    // class should not be instantiated
+  }
+
+  public static Plan reconcile(Collection<ReviewComment> existing, Collection<ReviewComment> desired) {
+    Plan plan = new Plan();
+    Map<String, List<ReviewComment>> existingByPath = byPath(existing);
+    Map<String, List<ReviewComment>> desiredByPath = byPath(desired);
+
+    for (Map.Entry<String, List<ReviewComment>> entry : desiredByPath.entrySet()) {
+      List<ReviewComment> wanted = entry.getValue();
+      List<ReviewComment> posted = existingByPath.remove(entry.getKey());
+      if (posted == null) {
+        plan.created.addAll(wanted);
+        continue;
+      }
+
+      for (Pair pair : pair(posted, wanted, CommentReconciler::sameContent, true)) {
+        plan.kept.add(pair.existing);
+      }
+      plan.moved.addAll(pair(posted, wanted, CommentReconciler::sameContent, false));
+      plan.edited.addAll(pair(posted, wanted, CommentReconciler::sameLine, true));
+
+      plan.created.addAll(wanted);
+      plan.deleted.addAll(posted);
+    }
+
+    for (List<ReviewComment> posted : existingByPath.values()) {
+      plan.deleted.addAll(posted);
+    }
+    return plan;
+  }
+
+  /**
+   * Pair comments matching the predicate, removing them from both lists. Without the same line, the closest
+   * existing comment is taken.
+   */
+  private static List<Pair> pair(List<ReviewComment> posted, List<ReviewComment> wanted,
+                                 BiPredicate<ReviewComment, ReviewComment> matches, boolean sameLineOnly) {
+    List<Pair> pairs = new ArrayList<>();
+    for (Iterator<ReviewComment> wantedIterator = wanted.iterator(); wantedIterator.hasNext(); ) {
+      ReviewComment desired = wantedIterator.next();
+
+      ReviewComment best = null;
+      for (ReviewComment existing : posted) {
+        if (!matches.test(existing, desired) || existing.getLine() == null) {
+          continue;
+        }
+        if (sameLineOnly && !sameLine(existing, desired)) {
+          continue;
+        }
+        if (best == null || distance(existing, desired) < distance(best, desired)) {
+          best = existing;
+        }
+      }
+
+      if (best != null) {
+        posted.remove(best);
+        wantedIterator.remove();
+        pairs.add(new Pair(best, desired));
+      }
+    }
+    return pairs;
+  }
+
+  private static boolean sameContent(ReviewComment existing, ReviewComment desired) {
+    return existing.getFingerprint().equals(desired.getFingerprint());
+  }
+
+  private static boolean sameLine(ReviewComment existing, ReviewComment desired) {
+    return Objects.equals(existing.getLine(), desired.getLine());
+  }
+
+  private static int distance(ReviewComment existing, ReviewComment desired) {
+    return Math.abs(existing.getLine() - desired.getLine());
+  }
+
+  private static Map<String, List<ReviewComment>> byPath(Collection<ReviewComment> comments) {
+    Map<String, List<ReviewComment>> commentsByPath = new LinkedHashMap<>();
+    for (ReviewComment comment : comments) {
+      commentsByPath.computeIfAbsent(comment.getPath(), path -> new ArrayList<>()).add(comment);
+    }
+    return commentsByPath;
+  }
+
+  /**
+   * An existing comment updated to become a desired one.
+   */
+  public static class Pair {
+    private final ReviewComment existing;
+    private final ReviewComment desired;
+
+    Pair(ReviewComment existing, ReviewComment desired) {
+      this.existing = existing;
+      this.desired = desired;
+    }
+
+    public ReviewComment getExisting() {
+      return existing;
+    }
+
+    public ReviewComment getDesired() {
+      return desired;
+    }
+  }
+
+  public static class Plan {
+    private final List<ReviewComment> kept = new ArrayList<>();
+    private final List<Pair> moved = new ArrayList<>();
+    private final List<Pair> edited = new ArrayList<>();
+    private final List<ReviewComment> created = new ArrayList<>();
+    private final List<ReviewComment> deleted = new ArrayList<>();
+
+    /**
+     * @return existing comments left as they are
+     */
+    public List<ReviewComment> getKept() {
+      return kept;
+    }
+
+    /**
+     * @return comments whose content is unchanged but whose line moved
+     */
+    public List<Pair> getMoved() {
+      return moved;
+    }
+
+    /**
+     * @return comments on the same line whose content changed
+     */
+    public List<Pair> getEdited() {
+      return edited;
+    }
+
+    public List<ReviewComment> getCreated() {
+      return created;
+    }
+
+    public List<ReviewComment> getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * @return number of calls needed to apply the plan
+     */
+    public int operationCount() {
+      return moved.size() + edited.size() + created.size() + deleted.size();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("kept:%d moved:%d edited:%d created:%d deleted:%d",
+        kept.size(), moved.size(), edited.size(), created.size(), deleted.size());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps on disk, for each pull request, the comments the last analysis left on it and the commit it analyzed.
+ *
+ * The next analysis starts from there instead of loading every comment page, once a count of our comments
+ * on the pull request confirmed nothing changed in between. Files are shared like the token cache, see
+ * {@link LockedPropertiesFile}.
+ */
+public class DecorationStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DecorationStore.class);
+
+  private static final String KEY_SOURCE_COMMIT = "source_commit";
+  private static final String KEY_COMMENT_COUNT = "comments";
+  private static final String KEY_COMMENT = "comment.";
+
+  private final File directory;
+
+  public DecorationStore(File directory) {
+    this.directory = directory;
+  }
+
+  @CheckForNull
+  public State load(String pullRequestKey) {
+    File file = stateFile(pullRequestKey);
+    try {
+      Properties properties = LockedPropertiesFile.load(file);
+      return properties == null ? null : State.fromProperties(properties);
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.warn("unable to read pull request state:{}", file, e);
+      return null;
+    }
+  }
+
+  public void save(String pullRequestKey, State state) {
+    File file = stateFile(pullRequestKey);
+    try {
+      LockedPropertiesFile.store(file, state.toProperties(), false);
+    } catch (IOException e) {
+      LOGGER.warn("unable to write pull request state:{}", file, e);
+    }
+  }
+
+  /**
+   * Forget a pull request, the next analysis loads its comments from Bitbucket.
+   */
+  public void delete(String pullRequestKey) {
+    File file = stateFile(pullRequestKey);
+    try {
+      LockedPropertiesFile.delete(file);
+    } catch (IOException e) {
+      LOGGER.warn("unable to delete pull request state:{}", file, e);
+    }
+  }
+
+  /**
+   * @return the key of a pull request analyzed by a login, the same pull request may be decorated by several
+   */
+  public static String pullRequestKey(String endpoint, String owner, String repository, long pullRequestId,
+                                      String login) {
+    return endpoint + "\n" + owner + "/" + repository + "\n" + pullRequestId + "\n" + login;
+  }
+
+  File stateFile(String pullRequestKey) {
+    return LockedPropertiesFile.file(directory, pullRequestKey, ".state");
+  }
+
+  /**
+   * The source commit of the last analysis and every comment it left on the pull request.
+   */
+  public static class State {
+
+    private final String sourceCommit;
+    private final List<ReviewComment> comments;
+
+    public State(@Nullable String sourceCommit, Collection<ReviewComment> comments) {
+      this.sourceCommit = sourceCommit;
+      this.comments = Collections.unmodifiableList(new ArrayList<>(comments));
+    }
+
+    static State fromProperties(Properties properties) {
+      String count = properties.getProperty(KEY_COMMENT_COUNT);
+      if (count == null) {
+        throw new IllegalArgumentException("missing " + KEY_COMMENT_COUNT);
+      }
+      List<ReviewComment> comments = new ArrayList<>();
+      for (int i = 0; i < Integer.parseInt(count); i++) {
+        String prefix = KEY_COMMENT + i + ".";
+        String id = properties.getProperty(prefix + "id");
+        String fingerprint = properties.getProperty(prefix + "fingerprint");
+        if (id == null || fingerprint == null) {
+          throw new IllegalArgumentException("incomplete " + prefix);
+        }
+        String line = properties.getProperty(prefix + "line");
+        comments.add(ReviewComment.restored(Long.parseLong(id), properties.getProperty(prefix + "path"),
+          line == null ? null : Integer.valueOf(line), fingerprint,
+          Boolean.parseBoolean(properties.getProperty(prefix + "summary"))));
+      }
+      return new State(properties.getProperty(KEY_SOURCE_COMMIT), comments);
+    }
+
+    Properties toProperties() {
+      Properties properties = new Properties();
+      if (sourceCommit != null) {
+        properties.setProperty(KEY_SOURCE_COMMIT, sourceCommit);
+      }
+      properties.setProperty(KEY_COMMENT_COUNT, Integer.toString(comments.size()));
+      for (int i = 0; i < comments.size(); i++) {
+        ReviewComment comment = comments.get(i);
+        String prefix = KEY_COMMENT + i + ".";
+        properties.setProperty(prefix + "id", Long.toString(comment.getId()));
+        if (comment.getPath() != null) {
+          properties.setProperty(prefix + "path", comment.getPath());
+        }
+        if (comment.getLine() != null) {
+          properties.setProperty(prefix + "line", Integer.toString(comment.getLine()));
+        }
+        properties.setProperty(prefix + "fingerprint", comment.getFingerprint());
+        if (comment.isSummary()) {
+          properties.setProperty(prefix + "summary", "true");
+        }
+      }
+      return properties;
+    }
+
+    /**
+     * @return the full hash of the commit analyzed last time
+     */
+    @CheckForNull
+    public String getSourceCommit() {
+      return sourceCommit;
+    }
+
+    public List<ReviewComment> getComments() {
+      return comments;
+    }
+  }
+}
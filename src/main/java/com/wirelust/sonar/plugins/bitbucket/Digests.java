@@ -0,0 +1,60 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Hex digests used to name cache files and to fingerprint comments.
+ */
+public final class Digests {
+
+  private Digests() {
+    // class should not be instantiated
+  }
+
+  /**
+   * @return lower case hex SHA-256 of the UTF-8 bytes of the value
+   */
+  public static String sha256Hex(String value) {
+    return hex("SHA-256", value);
+  }
+
+  /**
+   * @return lower case hex SHA-1 of the UTF-8 bytes of the value
+   */
+  public static String sha1Hex(String value) {
+    return hex("SHA-1", value);
+  }
+
+  private static String hex(String algorithm, String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(algorithm);
+      byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+      return DatatypeConverter.printHexBinary(hash).toLowerCase(Locale.ENGLISH);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " not supported", e);
+    }
+  }
+}
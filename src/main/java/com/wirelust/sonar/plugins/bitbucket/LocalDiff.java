@@ -0,0 +1,151 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compute the lines changed by a pull request from the local checkout instead of downloading its diff.
+ * The diff is taken between the merge base of the two commits and the source commit, like Bitbucket does.
+ */
+public class LocalDiff {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LocalDiff.class);
+
+  private LocalDiff() {
+    // class should not be instantiated
+  }
+
+  /**
+   * @param gitBaseDir working tree of the repository
+   * @param sourceHash full hash of the pull request source commit
+   * @param destinationHash full hash of the pull request destination commit
+   * @return added and modified lines by new file path, or null when the diff can't be computed locally
+   */
+  @CheckForNull
+  public static ChangedLines changedLines(File gitBaseDir, String sourceHash, String destinationHash) {
+    try (Repository repository = new FileRepositoryBuilder().setWorkTree(gitBaseDir).setMustExist(true).build();
+         RevWalk walk = new RevWalk(repository)) {
+
+      RevCommit source = walk.parseCommit(ObjectId.fromString(sourceHash));
+      RevCommit destination = walk.parseCommit(ObjectId.fromString(destinationHash));
+
+      walk.setRevFilter(RevFilter.MERGE_BASE);
+      walk.markStart(source);
+      walk.markStart(destination);
+      RevCommit mergeBase = walk.next();
+      if (mergeBase == null) {
+        LOGGER.debug("no merge base between {} and {}", sourceHash, destinationHash);
+        return null;
+      }
+
+      walk.reset();
+      walk.setRevFilter(RevFilter.ALL);
+      mergeBase = walk.parseCommit(mergeBase);
+      LOGGER.debug("diffing {} against merge base {}", sourceHash, mergeBase.name());
+
+      return changedLines(repository, mergeBase, source);
+    } catch (MissingObjectException e) {
+      LOGGER.debug("commit not available locally:{}", e.getObjectId());
+      return null;
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.debug("unable to compute the diff locally", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param gitBaseDir working tree of the repository
+   * @param fromHash full hash of the commit analyzed before
+   * @param toHash full hash of the commit analyzed now
+   * @return old and new paths of the files which differ between the two commits, or null when the commits are
+   * not available locally
+   */
+  @CheckForNull
+  public static Set<String> changedFiles(File gitBaseDir, String fromHash, String toHash) {
+    try (Repository repository = new FileRepositoryBuilder().setWorkTree(gitBaseDir).setMustExist(true).build();
+         RevWalk walk = new RevWalk(repository);
+         DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+
+      RevCommit from = walk.parseCommit(ObjectId.fromString(fromHash));
+      RevCommit to = walk.parseCommit(ObjectId.fromString(toHash));
+      formatter.setRepository(repository);
+
+      Set<String> paths = new HashSet<>();
+      for (DiffEntry entry : formatter.scan(from.getTree(), to.getTree())) {
+        if (entry.getChangeType() != DiffEntry.ChangeType.ADD) {
+          paths.add(entry.getOldPath());
+        }
+        if (entry.getChangeType() != DiffEntry.ChangeType.DELETE) {
+          paths.add(entry.getNewPath());
+        }
+      }
+      return paths;
+    } catch (MissingObjectException e) {
+      LOGGER.debug("commit not available locally:{}", e.getObjectId());
+      return null;
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.debug("unable to compute the changed files locally", e);
+      return null;
+    }
+  }
+
+  private static ChangedLines changedLines(Repository repository, RevCommit base, RevCommit source)
+    throws IOException {
+
+    ChangedLines.Builder builder = new ChangedLines.Builder();
+    try (DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+      formatter.setRepository(repository);
+      formatter.setDetectRenames(true);
+
+      for (DiffEntry entry : formatter.scan(base.getTree(), source.getTree())) {
+        if (entry.getChangeType() == DiffEntry.ChangeType.DELETE) {
+          continue;
+        }
+        builder.file(entry.getNewPath());
+
+        for (Edit edit : formatter.toFileHeader(entry).toEditList()) {
+          if (edit.getType() != Edit.Type.DELETE) {
+            builder.lines(edit.getBeginB() + 1, edit.getEndB());
+          }
+        }
+      }
+    }
+    return builder.build();
+  }
+}
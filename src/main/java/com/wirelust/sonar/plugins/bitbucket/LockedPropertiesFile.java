@@ -0,0 +1,136 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.Properties;
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Properties files on the agent shared by several scanners, locked while they are read or written.
+ *
+ * Files are named after a hash of their key so logins and URLs never show up in the file system.
+ */
+public final class LockedPropertiesFile {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LockedPropertiesFile.class);
+
+  // FileLock only guards against other processes, threads of this JVM have to be serialized separately
+  private static final Object JVM_LOCK = new Object();
+
+  private LockedPropertiesFile() {
+    // class should not be instantiated
+  }
+
+  /**
+   * @return the file of a key in the directory
+   */
+  public static File file(File directory, String key, String suffix) {
+    return new File(directory, Digests.sha256Hex(key) + suffix);
+  }
+
+  /**
+   * @return the properties, or null when there is no file
+   * @throws IllegalArgumentException when the file is not a properties file
+   */
+  @CheckForNull
+  public static Properties load(File file) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    synchronized (JVM_LOCK) {
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+           FileChannel channel = randomAccessFile.getChannel();
+           FileLock lock = channel.lock(0, Long.MAX_VALUE, true)) {
+
+        Properties properties = new Properties();
+        properties.load(Channels.newInputStream(channel));
+        return properties;
+      }
+    }
+  }
+
+  /**
+   * Replace the content of the file, creating it and its directory when needed.
+   * @param ownerOnly true when the file holds credentials, only the user running the analysis may read it then
+   */
+  public static void store(File file, Properties properties, boolean ownerOnly) throws IOException {
+    File directory = file.getParentFile();
+
+    synchronized (JVM_LOCK) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("unable to create directory:" + directory);
+      }
+
+      if (ownerOnly) {
+        // before anything is written, also when an older file is still readable by others
+        if (!file.exists() && !file.createNewFile()) {
+          LOGGER.debug("file created concurrently:{}", file);
+        }
+        restrictToOwner(file);
+      }
+
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+           FileChannel channel = randomAccessFile.getChannel();
+           FileLock lock = channel.lock()) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, null);
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(out.toByteArray()), 0);
+        channel.force(false);
+      }
+    }
+  }
+
+  public static void delete(File file) throws IOException {
+    synchronized (JVM_LOCK) {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  /**
+   * Only let the user running the analysis read and write the file, or list and change the directory.
+   */
+  public static void restrictToOwner(File file) {
+    boolean restricted = file.setReadable(false, false)
+      && file.setReadable(true, true)
+      && file.setWritable(false, false)
+      && file.setWritable(true, true);
+    if (restricted && file.isDirectory()) {
+      restricted = file.setExecutable(false, false) && file.setExecutable(true, true);
+    }
+    if (!restricted) {
+      LOGGER.debug("unable to restrict permissions of:{}", file);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.wirelust.sonar.plugins.bitbucket.client.ApiClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.BatchSide;
+import org.sonar.api.batch.InstantiationStrategy;
+
+/**
+ * The pull requests decorated by one analysis, one {@link PullRequestFacade} each.
+ *
+ * The first pull request is loaded like a single one. The others reuse its token and share the clients,
+ * connection pool and caches of the {@link ApiClientFactory}, and are handled a few at a time.
+ */
+@BatchSide
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class PullRequestBatch {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestBatch.class);
+
+  private final BitBucketPluginConfiguration config;
+  private final Supplier<PullRequestFacade> facadeFactory;
+  private final List<PullRequestFacade> facades = new ArrayList<>();
+
+  public PullRequestBatch(BitBucketPluginConfiguration config, PullRequestFacade pullRequestFacade,
+                          ApiClientFactory apiClientFactory) {
+    this(config, pullRequestFacade, () -> new PullRequestFacade(config, apiClientFactory));
+  }
+
+  PullRequestBatch(BitBucketPluginConfiguration config, PullRequestFacade pullRequestFacade,
+                   Supplier<PullRequestFacade> facadeFactory) {
+    this.config = config;
+    this.facadeFactory = facadeFactory;
+    facades.add(pullRequestFacade);
+  }
+
+  /**
+   * Load every pull request of {@link BitBucketPluginConfiguration#pullRequestNumbers()}.
+   * The first one must load, the others are skipped when they fail to load
+   * or when their source commit is not the one of the first.
+   */
+  public void init(File projectBaseDir) {
+    List<Integer> numbers = config.pullRequestNumbers();
+    PullRequestFacade first = facades.get(0);
+    first.init(numbers.isEmpty() ? 0 : numbers.get(0), projectBaseDir);
+    if (numbers.size() < 2) {
+      return;
+    }
+
+    // the issues are those of the analysed commit, they can only decorate pull requests of that commit
+    String commitHash = first.getCommitHash();
+    if (commitHash == null) {
+      LOGGER.warn("skipping the {} other pull requests, the analysed commit is unknown", numbers.size() - 1);
+      return;
+    }
+
+    LOGGER.info("loading {} more pull requests", numbers.size() - 1);
+    List<PullRequestFacade> others = new ArrayList<>();
+    boolean[] loaded = new boolean[numbers.size() - 1];
+    List<Runnable> inits = new ArrayList<>();
+    for (int i = 1; i < numbers.size(); i++) {
+      int number = numbers.get(i);
+      int index = i - 1;
+      PullRequestFacade facade = facadeFactory.get();
+      others.add(facade);
+      inits.add(() -> {
+        try {
+          facade.init(number, projectBaseDir, first.getAccessToken(), commitHash);
+          loaded[index] = true;
+        } catch (RuntimeException e) {
+          LOGGER.error("skipping pull request {}, it could not be loaded", number, e);
+        }
+      });
+    }
+    runAll(inits);
+
+    for (int i = 0; i < others.size(); i++) {
+      PullRequestFacade facade = others.get(i);
+      if (!loaded[i]) {
+        continue;
+      }
+      if (commitHash.equals(facade.getCommitHash())) {
+        facades.add(facade);
+      } else {
+        LOGGER.warn("skipping pull request {}, its source commit {} is not the analysed commit {}",
+          numbers.get(i + 1), facade.getCommitHash(), commitHash);
+      }
+    }
+  }
+
+  public List<PullRequestFacade> getFacades() {
+    return Collections.unmodifiableList(facades);
+  }
+
+  /**
+   * Run an action on every pull request, at most {@link BitBucketPluginConfiguration#pullRequestParallelism()}
+   * at the same time. One failing pull request does not stop the others.
+   * @throws IllegalStateException when the action failed on some pull requests, once it ran on all of them
+   */
+  public void forEach(Consumer<PullRequestFacade> action) {
+    List<Runnable> tasks = new ArrayList<>();
+    for (PullRequestFacade facade : facades) {
+      tasks.add(() -> action.accept(facade));
+    }
+    runAll(tasks);
+  }
+
+  private void runAll(List<Runnable> tasks) {
+    if (tasks.size() == 1) {
+      tasks.get(0).run();
+      return;
+    }
+
+    int parallelism = Math.min(tasks.size(), Math.max(1, config.pullRequestParallelism()));
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("bitbucket-batch"));
+    try {
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (Runnable task : tasks) {
+        futures.add(CompletableFuture.runAsync(task, executor));
+      }
+
+      List<Throwable> failures = new ArrayList<>();
+      for (CompletableFuture<Void> future : futures) {
+        try {
+          future.join();
+        } catch (CompletionException e) {
+          LOGGER.error("pull request failed", e.getCause());
+          failures.add(e.getCause());
+        }
+      }
+
+      if (!failures.isEmpty()) {
+        IllegalStateException exception = new IllegalStateException(
+          String.format("Failed on %d of %d pull requests", failures.size(), tasks.size()), failures.get(0));
+        for (Throwable cause : failures.subList(1, failures.size())) {
+          exception.addSuppressed(cause);
+        }
+        throw exception;
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
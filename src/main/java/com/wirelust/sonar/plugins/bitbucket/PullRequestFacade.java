@@ -19,34 +19,51 @@
  */
 package com.wirelust.sonar.plugins.bitbucket;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
 
 import com.wirelust.bitbucket.client.BitbucketAuthClient;
 import com.wirelust.bitbucket.client.BitbucketV2Client;
 import com.wirelust.bitbucket.client.representations.BuildStatus;
-import com.wirelust.bitbucket.client.representations.Comment;
-import com.wirelust.bitbucket.client.representations.CommentList;
 import com.wirelust.bitbucket.client.representations.Commit;
 import com.wirelust.bitbucket.client.representations.PullRequest;
 import com.wirelust.bitbucket.client.representations.User;
 import com.wirelust.bitbucket.client.representations.auth.OauthAccessToken;
+import com.wirelust.bitbucket.client.representations.v1.V1Comment;
 import com.wirelust.sonar.plugins.bitbucket.client.ApiClientFactory;
+import com.wirelust.sonar.plugins.bitbucket.client.CommentPage;
+import com.wirelust.sonar.plugins.bitbucket.client.TokenStore;
 import com.wirelust.sonar.plugins.bitbucket.client.dao.V2DAO;
-import org.eclipse.jgit.diff.Edit;
-import org.eclipse.jgit.patch.FileHeader;
-import org.eclipse.jgit.patch.HunkHeader;
-import org.eclipse.jgit.patch.Patch;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.BatchSide;
@@ -54,7 +71,6 @@ import org.sonar.api.batch.InstantiationStrategy;
 import org.sonar.api.batch.fs.InputComponent;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.InputPath;
-import org.sonar.api.scan.filesystem.PathResolver;
 
 /**
  * Facade for all WS interaction with GitHub.
@@ -64,20 +80,43 @@ import org.sonar.api.scan.filesystem.PathResolver;
 public class PullRequestFacade {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestFacade.class);
+  private static final int INIT_THREADS = 4;
+  private static final long BUILD_STATUS_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
 
   private final BitBucketPluginConfiguration config;
-  private Map<String, List<Integer>> modifiedLinesByFile;
-  private Map<String, Map<Integer, Comment>> existingReviewCommentsByLocationByFile = new HashMap<>();
+  private ChangedLines changedLines;
+  private final Queue<ReviewComment> existingReviewComments = new ConcurrentLinkedQueue<>();
+  private final Queue<ReviewComment> desiredReviewComments = new ConcurrentLinkedQueue<>();
+  private final Queue<ReviewComment> existingSummaries = new ConcurrentLinkedQueue<>();
+  // what this analysis left on the pull request, remembered for the next one
+  private final Map<Long, ReviewComment> leftReviewComments = new ConcurrentHashMap<>();
+  private volatile boolean leftReviewCommentsComplete = true;
+  private DecorationStore decorationStore;
+  private String decorationKey;
+  // source commit of the analysis the restored comments come from, set in interdiff mode only
+  private volatile String previousSourceCommit;
+  private Set<String> touchedFiles;
+  private boolean touchedFilesComputed;
 
   private PullRequest pullRequest;
-  private Commit commit;
+  private String commitHash;
+  private volatile TokenStore.StoredToken accessToken;
+  // a token read from disk may have been revoked since, it is checked by the first call
+  private boolean accessTokenFromCache;
 
-  private List<Long> commentsToBeDeleted = new ArrayList<>();
   private File gitBaseDir;
+  private final RelativePathCache pathCache = new RelativePathCache();
   private String authenticatedUser;
   private BitbucketV2Client bitbucketClient;
+  private WebTarget v2Target;
+  private volatile boolean serverSideCommentFilter = true;
   private V2DAO v2DAO;
   private ApiClientFactory apiClientFactory;
+  private CompletableFuture<Void> prefetch;
+  private BuildStatusPublisher buildStatusPublisher;
+  private CompletableFuture<Void> buildStatusLoaded;
+  private final StatusTransitions transitions = new StatusTransitions();
+  private boolean approvalLoaded;
 
   public PullRequestFacade(BitBucketPluginConfiguration config, ApiClientFactory apiClientFactory) {
     this.config = config;
@@ -85,6 +124,17 @@ public class PullRequestFacade {
   }
 
   public void init(int pullRequestNumber, File projectBaseDir) {
+    init(pullRequestNumber, projectBaseDir, null, null);
+  }
+
+  /**
+   * @param sharedToken token of another pull request of the same batch, null to get one
+   * @param expectedCommit full hash of the analysed commit, null to decorate whatever the source commit is.
+   *                       When the source commit is another one, init stops once it is known:
+   *                       no build status is sent, and neither comments nor diff are loaded.
+   */
+  public void init(int pullRequestNumber, File projectBaseDir, @Nullable TokenStore.StoredToken sharedToken,
+                   @Nullable String expectedCommit) {
     if (findGitBaseDir(projectBaseDir) == null) {
       throw new IllegalStateException(config.message("error.root_not_git", projectBaseDir.getPath()));
     }
@@ -108,56 +158,376 @@ public class PullRequestFacade {
       throw new IllegalStateException(config.message(Constants.KEY_ERROR_NULL, BitBucketPlugin.BITBUCKET_PULL_REQUEST));
     }
 
+    long startTime = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(INIT_THREADS, new DaemonThreadFactory("bitbucket-init"));
     try {
+      if (sharedToken != null) {
+        accessToken = sharedToken;
+      } else {
+        accessToken = timed("token", startTime, this::requestAccessToken);
+      }
+      if (accessToken == null) {
+        return;
+      }
 
-      BitbucketAuthClient authClient = apiClientFactory.getAuthClient();
-      Response response = authClient.getTokenByUsernamePassword("password", config.login(), config.password());
-      LOGGER.info("received bitbucket response to login:{}", response.getStatus());
+      createClients();
+      long pullRequestId = pullRequestNumber;
+      if (config.incrementalDecoration()) {
+        decorationStore = new DecorationStore(new File(config.cacheDir(), "state"));
+        decorationKey = DecorationStore.pullRequestKey(config.endpoint(), config.repositoryOwner(),
+          config.repository(), pullRequestId, login);
+      }
 
-      if (response.getStatus() != Response.Status.OK.getStatusCode()) {
-        LOGGER.error("error logging into bitbucket, response received:{}", response.getStatus());
-        return;
+      CompletableFuture<Void> pullRequestStage;
+      if (accessTokenFromCache) {
+        // nothing else may use the cached token before Bitbucket accepted it
+        timed("pullRequest", startTime, () -> loadPullRequestRenewingRejectedToken(pullRequestId));
+        pullRequestStage = CompletableFuture.completedFuture(null);
+      } else {
+        pullRequestStage = supplyTimed("pullRequest", startTime, () -> loadPullRequest(pullRequestId), executor);
       }
 
-      OauthAccessToken accessToken = response.readEntity(OauthAccessToken.class);
-      LOGGER.debug("bitbucket Access token:{}", accessToken.getAccessToken());
+      // everything below only depends on the token, so fan out as soon as the inputs of each stage exist:
+      //   user -> comments, pull request -> commit -> build status, diff
+      CompletableFuture<Void> userStage = supplyTimed("user", startTime,
+        () -> loadAuthenticatedUser(accessToken), executor);
+
+      CompletableFuture<Boolean> commitStage = pullRequestStage
+        .thenComposeAsync(v -> supplyTimed("commit", startTime, this::loadCommit, executor), executor)
+        .thenApply(v -> isExpectedCommit(expectedCommit));
+
+      CompletableFuture<Void> buildStatusStage = whenTrue(commitStage, () -> supplyTimed("buildStatus", startTime, () -> {
+        createOrUpdateBuildStatus(BuildStatus.State.INPROGRESS);
+        return null;
+      }, executor), executor);
+
+      // a pull request of another commit is only known to be one once its commit is loaded
+      CompletableFuture<Boolean> commentsGate = expectedCommit == null
+        ? userStage.thenApply(v -> true) : userStage.thenCombine(commitStage, (v, matches) -> matches);
+      CompletableFuture<Void> commentsStage = whenTrue(commentsGate, () -> supplyTimed("comments", startTime, () -> {
+        if (!restoreDecorationState(pullRequestId)) {
+          loadExistingReviewComments(pullRequestId);
+        }
+        return null;
+      }, executor), executor);
+
+      CompletableFuture<Boolean> diffGate;
+      if (expectedCommit != null) {
+        diffGate = commitStage;
+      } else if (config.localDiff()) {
+        // the local diff needs the commits from the pull request
+        diffGate = pullRequestStage.thenApply(v -> true);
+      } else {
+        diffGate = CompletableFuture.completedFuture(true);
+      }
+      CompletableFuture<Void> diffStage = whenTrue(diffGate, () -> supplyTimed("diff", startTime, () -> {
+        loadPatch(pullRequestId);
+        return null;
+      }, executor), executor);
+
+      if (config.prefetchEnabled()) {
+        // comments and diff are only needed by the post job, let them download while the sensors run
+        prefetch = CompletableFuture.allOf(commentsStage, diffStage);
+        // stages still chain tasks onto the executor until the last of them is done
+        CompletableFuture.allOf(userStage, pullRequestStage, buildStatusStage, commentsStage, diffStage)
+          .whenComplete((v, e) -> executor.shutdown());
+
+        CompletableFuture.allOf(userStage, pullRequestStage, buildStatusStage).join();
+        LOGGER.info("bitbucket pull request loaded in {} ms, prefetching comments and diff", elapsedMillis(startTime));
+      } else {
+        CompletableFuture.allOf(userStage, pullRequestStage, buildStatusStage, commentsStage, diffStage).join();
+        LOGGER.info("bitbucket pull request data loaded in {} ms", elapsedMillis(startTime));
+      }
 
-      bitbucketClient = apiClientFactory.getV2Client(accessToken.getAccessToken());
-      v2DAO = new V2DAO(bitbucketClient, config);
+    } catch (CompletionException e) {
+      throw new IllegalStateException("Unable to perform Bitbucket WS operation", e.getCause());
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to perform Bitbucket WS operation", e);
+    } finally {
+      if (prefetch == null) {
+        executor.shutdownNow();
+      }
+    }
+  }
 
-      Response userResponse = bitbucketClient.getUser();
-      User user = userResponse.readEntity(User.class);
-      authenticatedUser = user.getUsername();
-      LOGGER.debug("authenticated bitbucket as username:{}", authenticatedUser);
+  /**
+   * @return the token this pull request was loaded with, for the other pull requests of a batch
+   */
+  @CheckForNull
+  public TokenStore.StoredToken getAccessToken() {
+    if (accessToken == null || authenticatedUser == null) {
+      return accessToken;
+    }
+    // the username saves the others a call
+    return accessToken.withUsername(authenticatedUser);
+  }
+
+  /**
+   * @return full hash of the source commit the statuses are sent for, null before init
+   */
+  @CheckForNull
+  public String getCommitHash() {
+    return commitHash;
+  }
+
+  /**
+   * Wait for the comments and diff downloaded in the background when prefetching is enabled.
+   * Does nothing once they are loaded, or when they were loaded by init.
+   */
+  public void awaitPrefetch() {
+    if (prefetch == null) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    try {
+      prefetch.join();
+    } catch (CompletionException e) {
+      throw new IllegalStateException("Unable to prefetch pull request comments and diff from Bitbucket",
+        e.getCause());
+    }
+    LOGGER.info("waited {} ms for prefetched pull request data", elapsedMillis(startTime));
+    prefetch = null;
+  }
+
+  /**
+   * Reuse the cached token while it is valid, otherwise try the refresh grant and only then log in again.
+   */
+  @CheckForNull
+  private TokenStore.StoredToken requestAccessToken() {
+    TokenStore tokenStore = apiClientFactory.getTokenStore();
+    if (tokenStore == null) {
+      return requestAccessTokenWithPassword();
+    }
+
+    TokenStore.StoredToken cachedToken = tokenStore.load(config.clientId(), config.login());
+    if (cachedToken != null && cachedToken.isValid(System.currentTimeMillis(), config.tokenExpiryMarginMillis())) {
+      LOGGER.info("using cached bitbucket access token");
+      accessTokenFromCache = true;
+      return cachedToken;
+    }
+    return renewAccessToken(tokenStore, cachedToken);
+  }
+
+  /**
+   * Try the refresh grant of the previous token, then log in again, and store the new token.
+   */
+  @CheckForNull
+  private TokenStore.StoredToken renewAccessToken(TokenStore tokenStore,
+                                                  @Nullable TokenStore.StoredToken cachedToken) {
+    TokenStore.StoredToken accessToken = null;
+    if (cachedToken != null && cachedToken.getRefreshToken() != null) {
+      accessToken = refreshAccessToken(cachedToken);
+    }
+    if (accessToken == null) {
+      accessToken = requestAccessTokenWithPassword();
+    }
+    if (accessToken != null) {
+      tokenStore.save(config.clientId(), config.login(), accessToken);
+    }
+    return accessToken;
+  }
+
+  @CheckForNull
+  private TokenStore.StoredToken refreshAccessToken(TokenStore.StoredToken cachedToken) {
+    Response response = apiClientFactory.refreshAccessToken(cachedToken.getRefreshToken());
+    LOGGER.info("received bitbucket response to token refresh:{}", response.getStatus());
+
+    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+      response.close();
+      return null;
+    }
+
+    OauthAccessToken accessToken = response.readEntity(OauthAccessToken.class);
+    // the token belongs to the same login, so the cached username is still valid
+    return TokenStore.StoredToken.from(accessToken, System.currentTimeMillis())
+      .withUsername(cachedToken.getUsername());
+  }
+
+  @CheckForNull
+  private TokenStore.StoredToken requestAccessTokenWithPassword() {
+    BitbucketAuthClient authClient = apiClientFactory.getAuthClient();
+    Response response = authClient.getTokenByUsernamePassword("password", config.login(), config.password());
+    LOGGER.info("received bitbucket response to login:{}", response.getStatus());
+
+    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+      LOGGER.error("error logging into bitbucket, response received:{}", response.getStatus());
+      return null;
+    }
+
+    OauthAccessToken accessToken = response.readEntity(OauthAccessToken.class);
+    LOGGER.debug("bitbucket Access token:{}", accessToken.getAccessToken());
+    return TokenStore.StoredToken.from(accessToken, System.currentTimeMillis());
+  }
+
+  private Void loadAuthenticatedUser(TokenStore.StoredToken accessToken) {
+    if (accessToken.getUsername() != null) {
+      authenticatedUser = accessToken.getUsername();
+      LOGGER.debug("using cached bitbucket username:{}", authenticatedUser);
+      return null;
+    }
+
+    Response userResponse = bitbucketClient.getUser();
+    User user = userResponse.readEntity(User.class);
+    authenticatedUser = user.getUsername();
+    LOGGER.debug("authenticated bitbucket as username:{}", authenticatedUser);
+
+    TokenStore tokenStore = apiClientFactory.getTokenStore();
+    if (tokenStore != null) {
+      tokenStore.save(config.clientId(), config.login(), accessToken.withUsername(authenticatedUser));
+    }
+    return null;
+  }
 
-      Response pullRequestResponse = bitbucketClient.getPullRequestById(
-        config.repositoryOwner(), config.repository(), (long)pullRequestNumber);
-      setPullRequest(pullRequestResponse.readEntity(PullRequest.class));
+  private void createClients() {
+    bitbucketClient = apiClientFactory.getV2Client(accessToken.getAccessToken());
+    v2Target = apiClientFactory.getV2Target(accessToken.getAccessToken());
+    v2DAO = new V2DAO(bitbucketClient, config, apiClientFactory::submit);
+  }
+
+  /**
+   * Load the pull request with the cached token, dropping the token and logging in again once when
+   * Bitbucket no longer accepts it.
+   */
+  private Void loadPullRequestRenewingRejectedToken(long pullRequestId) {
+    if (readPullRequest(pullRequestId)) {
+      return null;
+    }
+
+    LOGGER.info("cached bitbucket access token was rejected, requesting a new one");
+    TokenStore tokenStore = apiClientFactory.getTokenStore();
+    tokenStore.delete(config.clientId(), config.login());
+    TokenStore.StoredToken renewedToken = renewAccessToken(tokenStore, accessToken);
+    if (renewedToken == null) {
+      throw new IllegalStateException("Unable to renew the rejected Bitbucket access token");
+    }
+    accessToken = renewedToken;
+    accessTokenFromCache = false;
+    createClients();
+    return loadPullRequest(pullRequestId);
+  }
+
+  private Void loadPullRequest(long pullRequestId) {
+    if (!readPullRequest(pullRequestId)) {
+      throw new IllegalStateException("Bitbucket rejected the access token");
+    }
+    return null;
+  }
+
+  /**
+   * @return false when the token was rejected
+   */
+  private boolean readPullRequest(long pullRequestId) {
+    Response pullRequestResponse = bitbucketClient.getPullRequestById(
+      config.repositoryOwner(), config.repository(), pullRequestId);
+    if (pullRequestResponse.getStatus() == Response.Status.UNAUTHORIZED.getStatusCode()) {
       pullRequestResponse.close();
+      return false;
+    }
+    setPullRequest(pullRequestResponse.readEntity(PullRequest.class));
+    pullRequestResponse.close();
+
+    LOGGER.info("Starting analysis of pull request: " + pullRequest.getId());
+    return true;
+  }
 
-      // The pull request commit has a shortened hash which doesn't work for setting status
-      // so let's get the commit from the API so we have the full hash
-      Response commitResponse = bitbucketClient.getCommitByOwnerRepoRevision(
-        config.repositoryOwner(), config.repository(), pullRequest.getSource().getCommit().getHash());
-      setCommit(commitResponse.readEntity(Commit.class));
-      commitResponse.close();
+  private Void loadCommit() {
+    // The pull request commit has a shortened hash which doesn't work for setting status.
+    // The scanner usually runs on a checkout of that commit, so expand it locally before asking the API
+    String shortHash = pullRequest.getSource().getCommit().getHash();
+    String fullHash = resolveCommitHash(gitBaseDir, shortHash);
+    if (fullHash != null) {
+      LOGGER.debug("resolved commit {} to {} from the local repository", shortHash, fullHash);
+      commitHash = fullHash;
+      return null;
+    }
 
-      LOGGER.info("Starting analysis of pull request: " + pullRequest.getId());
+    Response commitResponse = bitbucketClient.getCommitByOwnerRepoRevision(
+      config.repositoryOwner(), config.repository(), shortHash);
+    setCommit(commitResponse.readEntity(Commit.class));
+    commitResponse.close();
+    return null;
+  }
+
+  /**
+   * Expand an abbreviated commit hash with the object database of the local repository.
+   * @param gitBaseDir working tree of the repository
+   * @param abbreviatedHash hash as sent by Bitbucket
+   * @return the full hash, or null when the commit is not found locally or the prefix is ambiguous
+   */
+  @CheckForNull
+  static String resolveCommitHash(@Nullable File gitBaseDir, @Nullable String abbreviatedHash) {
+    if (gitBaseDir == null || abbreviatedHash == null || !AbbreviatedObjectId.isId(abbreviatedHash)) {
+      return null;
+    }
 
-      createOrUpdateBuildStatus(BuildStatus.State.INPROGRESS);
-      loadExistingReviewComments();
-      loadPatch(pullRequest);
+    try (Repository repository = new FileRepositoryBuilder().setWorkTree(gitBaseDir).setMustExist(true).build();
+         ObjectReader reader = repository.newObjectReader()) {
 
-    } catch (Exception e) {
-      throw new IllegalStateException("Unable to perform Bitbucket WS operation", e);
+      ObjectId match = null;
+      for (ObjectId candidate : reader.resolve(AbbreviatedObjectId.fromString(abbreviatedHash))) {
+        if (reader.open(candidate).getType() == org.eclipse.jgit.lib.Constants.OBJ_COMMIT) {
+          if (match != null) {
+            return null;
+          }
+          match = candidate;
+        }
+      }
+      return match == null ? null : match.name();
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.debug("unable to resolve commit {} locally", abbreviatedHash, e);
+      return null;
+    }
+  }
+
+  private boolean isExpectedCommit(@Nullable String expectedCommit) {
+    if (expectedCommit == null || expectedCommit.equals(commitHash)) {
+      return true;
     }
+    LOGGER.info("source commit {} of pull request {} is not the analysed commit {}, not loading it further",
+      commitHash, pullRequest.getId(), expectedCommit);
+    return false;
+  }
+
+  /**
+   * Run a stage of the init pipeline once its gate completed with true, skip it when the gate completed with false.
+   */
+  private static CompletableFuture<Void> whenTrue(CompletableFuture<Boolean> gate,
+                                                  Supplier<CompletableFuture<Void>> stage, Executor executor) {
+    return gate.thenComposeAsync(run -> run ? stage.get() : CompletableFuture.<Void>completedFuture(null), executor);
+  }
+
+  /**
+   * Run one stage of the init pipeline on the executor, logging when it finished relative to the start of init.
+   */
+  private static <T> CompletableFuture<T> supplyTimed(String stage, long startTime, Callable<T> work, Executor executor) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return timed(stage, startTime, work);
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  private static <T> T timed(String stage, long startTime, Callable<T> work) throws Exception {
+    long stageStart = System.nanoTime();
+    T result = work.call();
+    LOGGER.info("init stage {} took {} ms, finished at {} ms",
+      stage, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stageStart), elapsedMillis(startTime));
+    return result;
+  }
+
+  private static long elapsedMillis(long startTime) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
   }
 
   void setPullRequest(PullRequest pullRequest) {
     this.pullRequest = pullRequest;
   }
 
-  void setCommit(Commit commit) { this.commit = commit; }
+  void setCommit(Commit commit) {
+    this.commitHash = commit == null ? null : commit.getHash();
+  }
 
   public File findGitBaseDir(@Nullable File baseDir) {
     if (baseDir == null) {
@@ -175,84 +545,184 @@ public class PullRequestFacade {
   }
 
   public void loadPatch(PullRequest pullRequest) throws IOException {
+    loadPatch(pullRequest.getId());
+  }
+
+  private void loadPatch(long pullRequestId) throws IOException {
+    if (config.localDiff()) {
+      ChangedLines localLines = loadLocalPatch();
+      if (localLines != null) {
+        LOGGER.info("pull request diff computed from the local repository, {} files", localLines.fileCount());
+        changedLines = localLines;
+        return;
+      }
+      LOGGER.info("pull request commits not available locally, downloading the diff from Bitbucket");
+    }
 
-    Response response = bitbucketClient.getPullRequestDiff(config.repositoryOwner(), config.repository(), pullRequest.getId());
+    Response response = bitbucketClient.getPullRequestDiff(config.repositoryOwner(), config.repository(), pullRequestId);
     LOGGER.debug("received bitbucket response getPullRequestDiff:{}", response.getStatus());
 
-    String diffString = response.readEntity(String.class);
-    InputStream diffStream = new ByteArrayInputStream(diffString.getBytes(StandardCharsets.UTF_8));
+    // parse straight from the connection, the diff can be far too large to hold in memory
+    try (InputStream diffStream = response.readEntity(InputStream.class)) {
+      changedLines = UnifiedDiffParser.changedLines(diffStream);
+    } finally {
+      response.close();
+    }
+  }
 
-    Patch patch = new Patch();
-    patch.parse(diffStream);
+  @CheckForNull
+  private ChangedLines loadLocalPatch() {
+    String sourceHash = resolveCommitHash(gitBaseDir, pullRequest.getSource().getCommit().getHash());
+    String destinationHash = resolveCommitHash(gitBaseDir, pullRequest.getDestination().getCommit().getHash());
+    if (sourceHash == null || destinationHash == null) {
+      return null;
+    }
+    return LocalDiff.changedLines(gitBaseDir, sourceHash, destinationHash);
+  }
 
-    modifiedLinesByFile = new HashMap<>();
+  /**
+   * Start from the comments the previous analysis left, when our comments on the pull request still add up to them.
+   * @return false when all comments have to be loaded
+   */
+  private boolean restoreDecorationState(long pullRequestId) {
+    if (decorationStore == null) {
+      return false;
+    }
+    DecorationStore.State state = decorationStore.load(decorationKey);
+    if (state == null) {
+      return false;
+    }
 
-    for (FileHeader fileHeader : patch.getFiles()) {
-      List<Integer> patchLocationMapping = new ArrayList<>();
-      modifiedLinesByFile.put(fileHeader.getNewPath(), patchLocationMapping);
+    Integer count = null;
+    if (v2Target != null) {
+      count = v2DAO.countUserPullRequestComments(v2Target, pullRequestId, authenticatedUser);
+    }
+    if (count == null || count != state.getComments().size()) {
+      LOGGER.info("pull request comments changed since the last analysis ({} instead of {}), loading them",
+        count, state.getComments().size());
+      return false;
+    }
 
-      if (fileHeader.getHunks() != null) {
-        loadHeaderHunks(patchLocationMapping, fileHeader);
-      }
+    LOGGER.info("reusing the {} comments left by the analysis of {}", count, state.getSourceCommit());
+    existingReviewComments.addAll(state.getComments());
+    if (config.interdiff()) {
+      previousSourceCommit = state.getSourceCommit();
     }
+    return true;
   }
 
-  private void loadHeaderHunks(List<Integer> patchLocationMapping, FileHeader fileHeader) {
-    for (HunkHeader hunk : fileHeader.getHunks()) {
-      for (Edit edit : hunk.toEditList()) {
-        if (!edit.getType().equals(Edit.Type.DELETE)) {
-          for (int line=edit.getBeginB(); line<edit.getEndB(); line++) {
-            patchLocationMapping.add(line+1);
-          }
-        }
-      }
+  /**
+   * Files changed between the commit the restored comments were made for and the one analyzed now.
+   * @return null when every file has to be reconciled
+   */
+  @CheckForNull
+  private synchronized Set<String> touchedFiles() {
+    if (touchedFilesComputed) {
+      return touchedFiles;
+    }
+    touchedFilesComputed = true;
+    if (previousSourceCommit == null || commitHash == null || gitBaseDir == null) {
+      return null;
     }
+
+    if (previousSourceCommit.equals(commitHash)) {
+      touchedFiles = Collections.emptySet();
+    } else {
+      touchedFiles = LocalDiff.changedFiles(gitBaseDir, previousSourceCommit, commitHash);
+    }
+    if (touchedFiles == null) {
+      LOGGER.info("commit {} not available locally, reconciling the comments of every file", previousSourceCommit);
+    } else {
+      LOGGER.info("{} files changed since the analysis of {}", touchedFiles.size(), previousSourceCommit);
+    }
+    return touchedFiles;
   }
 
   /**
    * Load all previous comments made by provided bitbucket account.
    */
-  private void loadExistingReviewComments() throws IOException {
-    loadExistingReviewCommentsWithPage(1);
-  }
-
-  private void loadExistingReviewCommentsWithPage(int page) throws IOException {
-    Response commentResponse = bitbucketClient.getPullRequestCommentsWithPage(
-      config.repositoryOwner(), config.repository(), pullRequest.getId(), page);
-    CommentList commentList = commentResponse.readEntity(CommentList.class);
+  private void loadExistingReviewComments(long pullRequestId) throws IOException {
+    CommentPage firstPage = loadCommentPage(pullRequestId, 1);
+    Set<Long> loadedIds = new HashSet<>();
+    addExistingReviewComments(firstPage, loadedIds);
+
+    // the first page tells how many there are, the others are loaded a few at a time and merged in order
+    int pageCount = pageCount(firstPage);
+    int windowSize = config.commentParallelism();
+    Executor executor = apiClientFactory.getRequestExecutor();
+    Deque<CompletableFuture<CommentPage>> window = new ArrayDeque<>();
+    int nextPage = 2;
+    CommentPage lastPage = firstPage;
+    while (nextPage <= pageCount || !window.isEmpty()) {
+      while (nextPage <= pageCount && window.size() < windowSize) {
+        final int page = nextPage++;
+        window.add(CompletableFuture.supplyAsync(() -> loadCommentPage(pullRequestId, page), executor));
+      }
+      lastPage = joinPage(window.poll());
+      addExistingReviewComments(lastPage, loadedIds);
+    }
 
-    if (commentList.getValues() == null) {
-      return;
+    // without a size, or when comments were added meanwhile, follow the links
+    int page = Math.max(pageCount, 1);
+    while (lastPage.getValueCount() > 0 && lastPage.getNext() != null) {
+      page++;
+      lastPage = loadCommentPage(pullRequestId, page);
+      addExistingReviewComments(lastPage, loadedIds);
     }
+  }
 
-    for (Comment comment : commentList.getValues()) {
-      if (!authenticatedUser.equals(comment.getUser().getUsername())) {
-        // Ignore comments from other users
-        continue;
+  private CommentPage loadCommentPage(long pullRequestId, int page) {
+    if (v2Target != null && serverSideCommentFilter) {
+      // only our own comments and the fields we read, which is a small part of a busy pull request
+      CommentPage commentPage = v2DAO.getUserPullRequestComments(v2Target, pullRequestId, authenticatedUser, page);
+      if (commentPage != null) {
+        return commentPage;
       }
-      String commentPath = null;
-      if (comment.getInline() != null) {
-        commentPath = comment.getInline().getPath();
-      }
-      if (commentPath != null) {
-        if (!existingReviewCommentsByLocationByFile.containsKey(commentPath)) {
-          existingReviewCommentsByLocationByFile.put(commentPath, new HashMap<Integer, Comment>());
-        }
-        existingReviewCommentsByLocationByFile.get(commentPath).put(comment.getInline().getTo(), comment);
+      if (page > 1) {
+        throw new IllegalStateException("Bitbucket rejected the comment query on page " + page);
       }
+      LOGGER.info("comment query rejected by Bitbucket, filtering comments on our side");
+      serverSideCommentFilter = false;
+    }
 
-      // By default all previous comments will be marked for deletion
-      commentsToBeDeleted.add(comment.getId());
+    return v2DAO.getPullRequestComments(pullRequestId, authenticatedUser, page);
+  }
+
+  private static int pageCount(CommentPage firstPage) {
+    Integer size = firstPage.getSize();
+    Integer pagelen = firstPage.getPagelen();
+    if (size == null || pagelen == null || pagelen <= 0) {
+      return 1;
+    }
+    return (size + pagelen - 1) / pagelen;
+  }
+
+  private static CommentPage joinPage(CompletableFuture<CommentPage> page) {
+    try {
+      return page.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Unable to load pull request comments", e.getCause());
     }
+  }
 
-    // if we have more comments, load the next page.
-    if (commentList.getNext() != null) {
-      loadExistingReviewCommentsWithPage(page+1);
+  private void addExistingReviewComments(CommentPage commentPage, Set<Long> loadedIds) {
+    // comments from other users were already left out while the page was read
+    for (ReviewComment comment : commentPage.getComments()) {
+      if (!loadedIds.add(comment.getId())) {
+        // pages shift when comments are added while they are loaded
+        continue;
+      }
+
+      // comments which are not matched by the reconciliation will be deleted
+      existingReviewComments.add(comment);
     }
   }
 
   private String getPath(InputPath inputPath) {
-    return new PathResolver().relativePath(gitBaseDir, inputPath.file());
+    return pathCache.relativePath(gitBaseDir, inputPath.file());
   }
 
   /**
@@ -261,7 +731,8 @@ public class PullRequestFacade {
    * @return true if the pull request contains the provided file path
    */
   public boolean hasFile(InputFile inputFile) {
-    return modifiedLinesByFile.containsKey(getPath(inputFile));
+    awaitPrefetch();
+    return changedLines.hasFile(getPath(inputFile));
   }
 
   /**
@@ -271,48 +742,151 @@ public class PullRequestFacade {
    * @return true if the pull request has the line of the error
    */
   public boolean hasFileLine(InputFile inputFile, int line) {
-    return modifiedLinesByFile.get(getPath(inputFile)).contains(line);
+    awaitPrefetch();
+    return changedLines.hasLine(getPath(inputFile), line);
+  }
+
+  /**
+   * Test if the comments of a file can stay as the previous analysis left them (interdiff mode)
+   * @param inputFile file to check
+   * @return true when the file did not change since the last analyzed commit
+   */
+  public boolean isUnchangedSinceLastAnalysis(InputFile inputFile) {
+    awaitPrefetch();
+    Set<String> touched = touchedFiles();
+    return touched != null && !touched.contains(getPath(inputFile));
   }
 
   public void createOrUpdateReviewComment(InputFile inputFile, Integer line, String body) {
+    awaitPrefetch();
 
     String fullpath = getPath(inputFile);
-    LOGGER.info("creating comment:{} line:{}", fullpath, line, body);
-
-    if (existingReviewCommentsByLocationByFile.containsKey(fullpath)
-      && existingReviewCommentsByLocationByFile.get(fullpath).containsKey(line)) {
-      Comment existingReview = existingReviewCommentsByLocationByFile.get(fullpath).get(line);
-
-      if (existingReview.getContent() != null
-        && existingReview.getContent().getRaw() != null
-        && !existingReview.getContent().getRaw().equals(body)) {
-          existingReview.getContent().setMarkup(body);
-
-          v2DAO.createOrUpdatePullRequestComment(pullRequest,
-            existingReview.getId(),
-            body,
-            fullpath,
-            line);
+    LOGGER.debug("review comment:{} line:{}", fullpath, line);
+    desiredReviewComments.add(ReviewComment.desired(fullpath, line, body));
+  }
+
+  /**
+   * Bring the comments of the pull request in line with the ones passed to {@link #createOrUpdateReviewComment},
+   * moving or editing existing comments where possible instead of deleting and creating them.
+   * @throws IllegalStateException when some comments could not be published, once all the others were
+   */
+  public void publishReviewComments() {
+    awaitPrefetch();
+    takeSummaryComments();
+
+    List<ReviewComment> existing = new ArrayList<>();
+    List<ReviewComment> desired = new ArrayList<>();
+    Set<String> touched = touchedFiles();
+    for (ReviewComment comment : existingReviewComments) {
+      if (isTouched(touched, comment)) {
+        existing.add(comment);
+      } else {
+        // the file did not change, neither did its comment
+        leftReviewComments.put(comment.getId(), comment);
       }
-      commentsToBeDeleted.remove(existingReview.getId());
-    } else {
-        v2DAO.createOrUpdatePullRequestComment(pullRequest,
-          null,
-          body,
-          fullpath,
-          line);
+    }
+    for (ReviewComment comment : desiredReviewComments) {
+      if (isTouched(touched, comment)) {
+        desired.add(comment);
+      }
+    }
+    if (touched != null) {
+      LOGGER.info("{} comments left as they are on files not changed since the last analysis",
+        leftReviewComments.size());
+    }
+
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(existing, desired);
+    LOGGER.info("review comments: {}, {} calls", plan, plan.operationCount());
+
+    CommentPublisher publisher = new CommentPublisher(config.commentParallelism());
+    for (ReviewComment comment : plan.getKept()) {
+      leftReviewComments.put(comment.getId(), comment);
+    }
+    for (CommentReconciler.Pair pair : plan.getMoved()) {
+      updateReviewComment(publisher, pair);
+    }
+    for (CommentReconciler.Pair pair : plan.getEdited()) {
+      updateReviewComment(publisher, pair);
+    }
+    for (ReviewComment comment : plan.getCreated()) {
+      publisher.submit(comment.toString(), () -> createOrUpdateCommentAsync(null, comment)
+        .thenAccept(posted -> leftReviewComment(posted.getCommentId(), comment)));
+    }
+    for (ReviewComment comment : plan.getDeleted()) {
+      LOGGER.debug("deleting outdated comment:{}", comment);
+      publisher.submit(comment.toString(), () -> deleteCommentAsync(comment.getId()));
+    }
+    // the plan covers everything known so far, publishing again must not replay it
+    existingReviewComments.clear();
+    desiredReviewComments.clear();
+
+    try {
+      publisher.awaitAll();
+    } catch (IllegalStateException e) {
+      // some comments are not where we think they are
+      leftReviewCommentsComplete = false;
+      throw e;
+    } finally {
+      saveDecorationState();
     }
   }
 
-  public void deleteOutdatedComments() {
-    for (Long commentId : commentsToBeDeleted) {
-      LOGGER.info("deleting outdated comment:{}", commentId);
-      v2DAO.deletePullRequestComment(pullRequest, commentId);
+  private static boolean isTouched(@Nullable Set<String> touched, ReviewComment comment) {
+    // global comments are always reconciled
+    return touched == null || comment.getPath() == null || touched.contains(comment.getPath());
+  }
+
+  private void updateReviewComment(CommentPublisher publisher, CommentReconciler.Pair pair) {
+    ReviewComment desired = pair.getDesired();
+    long id = pair.getExisting().getId();
+    publisher.submit(pair.getExisting().toString(), () -> createOrUpdateCommentAsync(id, desired)
+      .thenAccept(posted -> leftReviewComment(id, desired)));
+  }
+
+  private CompletableFuture<V1Comment> createOrUpdateCommentAsync(@Nullable Long id, ReviewComment comment) {
+    if (v2Target == null) {
+      return CompletableFuture.supplyAsync(() -> v2DAO.createOrUpdatePullRequestComment(pullRequest, id,
+        comment.getBody(), comment.getPath(), comment.getLine()), apiClientFactory.getRequestExecutor());
+    }
+    return v2DAO.createOrUpdatePullRequestCommentAsync(v2Target, pullRequest, id, comment.getBody(),
+      comment.getPath(), comment.getLine());
+  }
+
+  private CompletableFuture<Void> deleteCommentAsync(long id) {
+    if (v2Target == null) {
+      return CompletableFuture.runAsync(() -> v2DAO.deletePullRequestComment(pullRequest, id),
+        apiClientFactory.getRequestExecutor());
+    }
+    return v2DAO.deletePullRequestCommentAsync(v2Target, pullRequest, id);
+  }
+
+  private void leftReviewComment(@Nullable Long id, ReviewComment comment) {
+    if (id == null) {
+      // without its id the comment can't be found again
+      leftReviewCommentsComplete = false;
+      return;
     }
+    leftReviewComments.put(id, ReviewComment.restored(id, comment.getPath(), comment.getLine(),
+      comment.getFingerprint(), comment.isSummary()));
+  }
+
+  private void saveDecorationState() {
+    if (decorationStore == null) {
+      return;
+    }
+    if (!leftReviewCommentsComplete) {
+      decorationStore.delete(decorationKey);
+      return;
+    }
+    decorationStore.save(decorationKey, new DecorationStore.State(commitHash, leftReviewComments.values()));
   }
 
   public void addGlobalComment(String comment) {
     LOGGER.debug("global comment:{}", comment);
+    if (config.upsertSummary()) {
+      upsertSummaryComment(comment);
+      return;
+    }
 
     Response response = bitbucketClient.postPullRequestComment(
       config.repositoryOwner(),
@@ -326,27 +900,155 @@ public class PullRequestFacade {
       throw new IllegalStateException(String.format("Unable to comment the pull request:%d", pullRequest.getId()));
     }
 
+    if (decorationStore != null) {
+      leftReviewComment(V2DAO.readCommentId(response), ReviewComment.posted(0, null, null, comment));
+      saveDecorationState();
+    }
+
+  }
+
+  /**
+   * Keep a single summary comment on the pull request, edited only when its content changes.
+   */
+  private void upsertSummaryComment(String comment) {
+    awaitPrefetch();
+    takeSummaryComments();
+
+    ReviewComment summary = ReviewComment.summary(comment);
+    ReviewComment existing = existingSummaries.poll();
+    for (ReviewComment duplicate : existingSummaries) {
+      // left by analyses which ran at the same time
+      LOGGER.debug("deleting duplicate summary comment:{}", duplicate);
+      v2DAO.deletePullRequestComment(pullRequest, duplicate.getId());
+    }
+    existingSummaries.clear();
+
+    if (existing != null && existing.getFingerprint().equals(summary.getFingerprint())) {
+      LOGGER.debug("summary comment unchanged:{}", existing);
+      leftReviewComment(existing.getId(), existing);
+    } else {
+      Long id = v2DAO.createOrUpdatePullRequestComment(pullRequest, existing == null ? null : existing.getId(),
+        summary.getBody(), null, null).getCommentId();
+      leftReviewComment(id, summary);
+    }
+    saveDecorationState();
+  }
+
+  /**
+   * Set the summary comments apart from the comments the reconciliation deletes, when they are upserted.
+   */
+  private void takeSummaryComments() {
+    if (!config.upsertSummary()) {
+      return;
+    }
+    for (Iterator<ReviewComment> iterator = existingReviewComments.iterator(); iterator.hasNext(); ) {
+      ReviewComment comment = iterator.next();
+      if (comment.isSummary()) {
+        existingSummaries.add(comment);
+        iterator.remove();
+      }
+    }
   }
 
   public void approvePullRequest() {
     LOGGER.info("approving pull request");
+    createOrUpdateBuildStatus(BuildStatus.State.SUCCESSFUL);
     createOrUpdateApproval(true);
   }
 
   public void unapprovePullRequest() {
     LOGGER.info("removing pull request approval");
+    createOrUpdateBuildStatus(BuildStatus.State.FAILED);
     createOrUpdateApproval(false);
   }
 
+  /**
+   * Remove our approval when the analysis failed before deciding it.
+   */
+  public void removeApproval() {
+    createOrUpdateApproval(false);
+  }
+
+  /**
+   * Send the build status in the background, replacing any status not sent yet.
+   * See {@link #awaitBuildStatus()}.
+   */
   public void createOrUpdateBuildStatus(BuildStatus.State state) {
+    getBuildStatusPublisher().submit(state);
+  }
+
+  /**
+   * Wait a bounded time for the last build status to be sent.
+   * @throws IllegalStateException when Bitbucket refused it
+   */
+  public void awaitBuildStatus() {
+    BuildStatusPublisher publisher;
+    synchronized (this) {
+      publisher = buildStatusPublisher;
+    }
+    if (publisher != null && !publisher.await(BUILD_STATUS_TIMEOUT, TimeUnit.MILLISECONDS)) {
+      LOGGER.warn("build status still not sent after {} ms, not waiting for it", BUILD_STATUS_TIMEOUT);
+    }
+  }
+
+  private synchronized BuildStatusPublisher getBuildStatusPublisher() {
+    if (buildStatusPublisher == null) {
+      buildStatusPublisher = new BuildStatusPublisher(apiClientFactory.getRequestExecutor(), this::sendBuildStatus);
+    }
+    return buildStatusPublisher;
+  }
+
+  private CompletableFuture<Void> sendBuildStatus(BuildStatus.State state) {
+    return loadBuildStatus().thenCompose(loaded -> sendBuildStatusChange(state));
+  }
+
+  /**
+   * Read once the build status the commit already has for our key, it stays unknown when Bitbucket can't tell.
+   */
+  private synchronized CompletableFuture<Void> loadBuildStatus() {
+    if (buildStatusLoaded == null) {
+      if (v2Target == null || commitHash == null) {
+        buildStatusLoaded = CompletableFuture.completedFuture(null);
+      } else {
+        buildStatusLoaded = v2DAO.getBuildStatusAsync(v2Target, commitHash, config.ciKey())
+          .handle((status, error) -> {
+            if (error != null) {
+              LOGGER.debug("unable to read the build status", error);
+            } else {
+              transitions.setBuildStatus(status);
+            }
+            return null;
+          });
+      }
+    }
+    return buildStatusLoaded;
+  }
+
+  private CompletableFuture<Void> sendBuildStatusChange(BuildStatus.State state) {
     BuildStatus buildStatus = new BuildStatus();
     buildStatus.setKey(config.ciKey());
     buildStatus.setName(config.ciName());
     buildStatus.setUrl(config.ciURL());
     buildStatus.setState(state);
 
-    Response statusResponse = bitbucketClient.postBuildStatus(config.repositoryOwner(), config.repository(),
-      commit.getHash(), buildStatus);
+    // from the status read once, the status is the last one we sent
+    if (!transitions.isBuildStatusChange(buildStatus)) {
+      LOGGER.debug("build status already {}", state);
+      return CompletableFuture.completedFuture(null);
+    }
+    transitions.setBuildStatus(null);
+
+    CompletableFuture<Response> sent;
+    if (v2Target == null) {
+      sent = CompletableFuture.supplyAsync(() -> bitbucketClient.postBuildStatus(config.repositoryOwner(),
+        config.repository(), commitHash, buildStatus), apiClientFactory.getRequestExecutor());
+    } else {
+      sent = v2DAO.postBuildStatusAsync(v2Target, commitHash, buildStatus);
+    }
+    return sent.thenAccept(statusResponse -> checkBuildStatus(buildStatus, statusResponse));
+  }
+
+  private void checkBuildStatus(BuildStatus buildStatus, Response statusResponse) {
     statusResponse.close();
 
     Response.Status buildStatusStatus = Response.Status.fromStatusCode(statusResponse.getStatus());
@@ -359,6 +1061,7 @@ public class PullRequestFacade {
         String.format("Unable to update pull request build status. expected:%d, got:%d",
           200, statusResponse.getStatus()));
     }
+    transitions.setBuildStatus(buildStatus);
   }
 
   private void createOrUpdateApproval(boolean isApproved) {
@@ -366,21 +1069,23 @@ public class PullRequestFacade {
     String repoOwner = config.repositoryOwner();
     String repo = config.repository();
 
+    loadApproval();
+    if (!transitions.isApprovalChange(isApproved)) {
+      LOGGER.debug("pull request approval already {}", isApproved);
+      return;
+    }
+
     Response approvalResponse;
     if (isApproved) {
-      createOrUpdateBuildStatus(BuildStatus.State.SUCCESSFUL);
-
       approvalResponse = bitbucketClient.postPullRequestApproval(repoOwner, repo, pullRequest.getId());
     } else {
-      createOrUpdateBuildStatus(BuildStatus.State.FAILED);
-
       approvalResponse = bitbucketClient.deletePullRequestApproval(repoOwner, repo, pullRequest.getId());
     }
 
     approvalResponse.close();
 
     // we are allowing Conflict (409) and Not Found (404)
-    // because we are not first checking if a request is already approved before sending the calls
+    // because the approval may not have been known before sending the calls
     // if a request is approved and another approval is sent it will return 409
     // if you try to delete an approval that doesn't exist you will get a 404
     Response.Status approvalStatus = Response.Status.fromStatusCode(approvalResponse.getStatus());
@@ -388,11 +1093,51 @@ public class PullRequestFacade {
       && approvalStatus != Response.Status.NO_CONTENT
       && approvalStatus != Response.Status.CONFLICT
       && approvalStatus != Response.Status.NOT_FOUND) {
+      transitions.setApproved(null);
       throw new IllegalStateException(
         String.format("Unable to update pull request approval status. expected:%d, got:%d",
           200, approvalResponse.getStatus()));
     }
+    transitions.setApproved(isApproved);
+  }
+
+  /**
+   * Read once whether we already approve the pull request, it stays unknown when Bitbucket can't tell.
+   */
+  private synchronized void loadApproval() {
+    if (approvalLoaded) {
+      return;
+    }
+    approvalLoaded = true;
+    if (v2Target == null || authenticatedUser == null) {
+      return;
+    }
+    try {
+      transitions.setApproved(v2DAO.isApprovedBy(v2Target, pullRequest.getId(), authenticatedUser));
+    } catch (IllegalStateException e) {
+      LOGGER.debug("unable to read the pull request approval", e);
+    }
+  }
 
+  /**
+   * Log what the analysis cost in terms of Bitbucket traffic.
+   */
+  public void logStatistics() {
+    apiClientFactory.logStatistics();
+    BuildStatusPublisher publisher;
+    synchronized (this) {
+      publisher = buildStatusPublisher;
+    }
+    if (publisher != null) {
+      LOGGER.info("build status: sent:{} replaced before being sent:{}", publisher.getSent(), publisher.getCoalesced());
+    }
+    LOGGER.info("approval and build status: calls not sent because nothing changed:{}", transitions.getElided());
+    if (changedLines != null) {
+      LOGGER.info("changed lines index: files:{} lines:{} size:~{} bytes",
+        changedLines.fileCount(), changedLines.lineCount(), changedLines.estimatedSize());
+    }
+    LOGGER.info("relative path cache: files:{} hits:{} misses:{}",
+      pathCache.size(), pathCache.getHits(), pathCache.getMisses());
   }
 
   @CheckForNull
@@ -20,10 +20,14 @@
 package com.wirelust.sonar.plugins.bitbucket;
 
 import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.StreamSupport;
 
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+import com.wirelust.sonar.plugins.bitbucket.client.ApiClientFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.fs.InputComponent;
@@ -41,16 +45,19 @@ public class PullRequestIssuePostJob implements PostJob {
   private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestIssuePostJob.class);
   private static final Comparator<PostJobIssue> ISSUE_COMPARATOR = new IssueComparator();
 
-  private final PullRequestFacade pullRequestFacade;
+  private final PullRequestBatch pullRequestBatch;
   private final BitBucketPluginConfiguration config;
   private final MarkDownUtils markDownUtils;
+  private final ApiClientFactory apiClientFactory;
 
   public PullRequestIssuePostJob(BitBucketPluginConfiguration bitBucketPluginConfiguration,
-                                 PullRequestFacade pullRequestFacade,
-                                 MarkDownUtils markDownUtils) {
+                                 PullRequestBatch pullRequestBatch,
+                                 MarkDownUtils markDownUtils,
+                                 ApiClientFactory apiClientFactory) {
     this.config = bitBucketPluginConfiguration;
-    this.pullRequestFacade = pullRequestFacade;
+    this.pullRequestBatch = pullRequestBatch;
     this.markDownUtils = markDownUtils;
+    this.apiClientFactory = apiClientFactory;
   }
 
   @Override
@@ -61,26 +68,67 @@ public class PullRequestIssuePostJob implements PostJob {
 
   @Override
   public void execute(PostJobContext context) {
+    try {
+      // read once, on the scanner thread, for every pull request
+      List<PostJobIssue> issues = new ArrayList<>();
+      context.issues().forEach(issues::add);
+      pullRequestBatch.forEach(pullRequestFacade -> publish(pullRequestFacade, issues));
+    } finally {
+      for (PullRequestFacade pullRequestFacade : pullRequestBatch.getFacades()) {
+        pullRequestFacade.logStatistics();
+      }
+      // the post job is the last to call Bitbucket
+      apiClientFactory.close();
+    }
+  }
 
-    GlobalReport report = new GlobalReport(markDownUtils, config);
-    Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine = processIssues(report, context.issues());
+  private void publish(PullRequestFacade pullRequestFacade, List<PostJobIssue> issues) {
+    boolean statusSubmitted = false;
+    try {
+      pullRequestFacade.awaitPrefetch();
 
-    updateReviewComments(commentsToBeAddedByLine);
+      GlobalReport report = new GlobalReport(markDownUtils, config);
+      Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine = processIssues(pullRequestFacade, report,
+        issues);
 
-    pullRequestFacade.deleteOutdatedComments();
+      updateReviewComments(pullRequestFacade, commentsToBeAddedByLine);
 
-    LOGGER.info("report: hasNewIssues:{}", report.hasNewIssue());
-    if (report.hasNewIssue()) {
-      pullRequestFacade.addGlobalComment(report.formatForMarkdown());
-    } else {
-      pullRequestFacade.addGlobalComment("SonarQube reported no issues");
-    }
+      pullRequestFacade.publishReviewComments();
+
+      LOGGER.info("report: hasNewIssues:{}", report.hasNewIssue());
+      if (report.hasNewIssue()) {
+        pullRequestFacade.addGlobalComment(report.formatForMarkdown());
+      } else {
+        pullRequestFacade.addGlobalComment("SonarQube reported no issues");
+      }
 
-    if (report.isApproved(config.issueThreshold())) {
-      pullRequestFacade.approvePullRequest();
-    } else {
-      pullRequestFacade.unapprovePullRequest();
+      // both submit the final build status before anything else can fail
+      statusSubmitted = true;
+      if (report.isApproved(config.issueThreshold())) {
+        pullRequestFacade.approvePullRequest();
+      } else {
+        pullRequestFacade.unapprovePullRequest();
+      }
+    } catch (RuntimeException e) {
+      if (!statusSubmitted) {
+        // the build status must not stay in progress, nor an approval of an earlier analysis
+        pullRequestFacade.createOrUpdateBuildStatus(BuildStatus.State.FAILED);
+        try {
+          pullRequestFacade.removeApproval();
+        } catch (IllegalStateException approvalFailure) {
+          e.addSuppressed(approvalFailure);
+        }
+      }
+      try {
+        pullRequestFacade.awaitBuildStatus();
+      } catch (IllegalStateException statusFailure) {
+        e.addSuppressed(statusFailure);
+      }
+      throw e;
     }
+
+    // the only time anything waits for the build status
+    pullRequestFacade.awaitBuildStatus();
   }
 
   @Override
@@ -88,7 +136,9 @@ public class PullRequestIssuePostJob implements PostJob {
     return "Bitbucket Pull Request Issue Publisher";
   }
 
-  private Map<InputFile, Map<Integer, StringBuilder>> processIssues(GlobalReport report, Iterable<PostJobIssue> issues) {
+  private Map<InputFile, Map<Integer, StringBuilder>> processIssues(PullRequestFacade pullRequestFacade,
+                                                                    GlobalReport report,
+                                                                    Iterable<PostJobIssue> issues) {
     LOGGER.debug("processing issues");
     Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine = new HashMap<>();
 
@@ -102,12 +152,12 @@ public class PullRequestIssuePostJob implements PostJob {
           pullRequestFacade.hasFile((InputFile) inputComponent);
       })
       .sorted(ISSUE_COMPARATOR)
-      .forEach(i -> processIssue(report, commentToBeAddedByFileAndByLine, i));
+      .forEach(i -> processIssue(pullRequestFacade, report, commentToBeAddedByFileAndByLine, i));
     return commentToBeAddedByFileAndByLine;
 
   }
 
-  private boolean tryReportInline(Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine, PostJobIssue issue, InputFile inputFile) {
+  private boolean tryReportInline(PullRequestFacade pullRequestFacade, Map<InputFile, Map<Integer, StringBuilder>> commentToBeAddedByFileAndByLine, PostJobIssue issue, InputFile inputFile) {
     Integer lineOrNull = issue.line();
     if (inputFile != null && lineOrNull != null) {
       int line = lineOrNull.intValue();
@@ -128,21 +178,27 @@ public class PullRequestIssuePostJob implements PostJob {
     return false;
   }
 
-  private void processIssue(GlobalReport report,
+  private void processIssue(PullRequestFacade pullRequestFacade,
+                            GlobalReport report,
                             Map<InputFile,Map<Integer, StringBuilder>>commentToBeAddedByFileAndByLine,
                             PostJobIssue issue) {
     boolean reportedInline = false;
     InputComponent inputComponent = issue.inputComponent();
     if (inputComponent != null
       && inputComponent.isFile()) {
-      reportedInline = tryReportInline(commentToBeAddedByFileAndByLine, issue, (InputFile) inputComponent);
+      reportedInline = tryReportInline(pullRequestFacade, commentToBeAddedByFileAndByLine, issue, (InputFile) inputComponent);
     }
     report.process(issue, pullRequestFacade.getWebUrl(inputComponent, issue.line()), reportedInline);
   }
 
 
-  private void updateReviewComments(Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine) {
+  private void updateReviewComments(PullRequestFacade pullRequestFacade,
+                                    Map<InputFile, Map<Integer, StringBuilder>> commentsToBeAddedByLine) {
     for (Map.Entry<InputFile, Map<Integer, StringBuilder>> entry : commentsToBeAddedByLine.entrySet()) {
+      if (pullRequestFacade.isUnchangedSinceLastAnalysis(entry.getKey())) {
+        // its comments are still the ones posted by the last analysis
+        continue;
+      }
       for (Map.Entry<Integer, StringBuilder> entryPerLine : entry.getValue().entrySet()) {
         String body = entryPerLine.getValue().toString();
         pullRequestFacade.createOrUpdateReviewComment(entry.getKey(), entryPerLine.getKey(), body);
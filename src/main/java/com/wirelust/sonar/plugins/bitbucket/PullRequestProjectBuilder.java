@@ -32,12 +32,12 @@ import org.sonar.api.utils.MessageException;
 public class PullRequestProjectBuilder extends ProjectBuilder {
 
   private final BitBucketPluginConfiguration config;
-  private final PullRequestFacade pullRequestFacade;
+  private final PullRequestBatch pullRequestBatch;
   private final AnalysisMode mode;
 
-  public PullRequestProjectBuilder(BitBucketPluginConfiguration bitBucketPluginConfiguration, PullRequestFacade pullRequestFacade, AnalysisMode mode) {
+  public PullRequestProjectBuilder(BitBucketPluginConfiguration bitBucketPluginConfiguration, PullRequestBatch pullRequestBatch, AnalysisMode mode) {
     this.config = bitBucketPluginConfiguration;
-    this.pullRequestFacade = pullRequestFacade;
+    this.pullRequestBatch = pullRequestBatch;
     this.mode = mode;
   }
 
@@ -47,10 +47,8 @@ public class PullRequestProjectBuilder extends ProjectBuilder {
       return;
     }
     checkMode();
-    int pullRequestNumber = config.pullRequestNumber();
-    pullRequestFacade.init(pullRequestNumber, context.projectReactor().getRoot().getBaseDir());
-
-    pullRequestFacade.unapprovePullRequest();
+    // the approval is only decided by the post job, an unchanged one is left alone
+    pullRequestBatch.init(context.projectReactor().getRoot().getBaseDir());
   }
 
   private void checkMode() {
@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+
+import org.sonar.api.scan.filesystem.PathResolver;
+
+/**
+ * Repository relative paths of the analyzed files, resolved once per file.
+ * The same file is looked up for every issue it has, and resolving normalizes both paths each time.
+ */
+public class RelativePathCache {
+
+  private final PathResolver pathResolver = new PathResolver();
+  private final ConcurrentMap<File, String> pathsByFile = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile File baseDir;
+
+  /**
+   * @param baseDir directory the paths are relative to, the cache is emptied when it changes
+   * @param file file to resolve
+   * @return the relative path with forward slashes, or null when the file is not under the base directory
+   */
+  @CheckForNull
+  public String relativePath(File baseDir, File file) {
+    if (!baseDir.equals(this.baseDir)) {
+      reset(baseDir);
+    }
+
+    String path = pathsByFile.get(file);
+    if (path != null) {
+      hits.incrementAndGet();
+      return path;
+    }
+
+    misses.incrementAndGet();
+    path = pathResolver.relativePath(baseDir, file);
+    if (path != null) {
+      pathsByFile.put(file, path);
+    }
+    return path;
+  }
+
+  private synchronized void reset(File baseDir) {
+    if (!baseDir.equals(this.baseDir)) {
+      pathsByFile.clear();
+      this.baseDir = baseDir;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int size() {
+    return pathsByFile.size();
+  }
+}
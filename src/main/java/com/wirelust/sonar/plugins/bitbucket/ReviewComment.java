@@ -0,0 +1,147 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Inline comment of the pull request, either already posted or to be posted.
+ *
+ * The fingerprint identifies the content regardless of the line, so a comment whose issue moved can be found again.
+ * It is written in the comments we post as an invisible Markdown link reference, and read back from there,
+ * since Bitbucket does not always give back the markup exactly as it was sent.
+ * The summary of the analysis, a comment on the whole pull request, carries a second marker to be found again.
+ */
+public class ReviewComment {
+
+  private final Long id;
+  private final String path;
+  private final Integer line;
+  private final String body;
+  private final String fingerprint;
+  private final boolean summary;
+
+  static final int FINGERPRINT_LENGTH = 16;
+  private static final Pattern MARKER = Pattern.compile("\\[//\\]: # \\(sonar-bitbucket:fp=([0-9a-f]+)\\)");
+  private static final String SUMMARY_MARKER = "[//]: # (sonar-bitbucket:summary)";
+
+  private ReviewComment(@Nullable Long id, @Nullable String path, @Nullable Integer line, String body,
+                        String fingerprint, boolean summary) {
+    this.id = id;
+    this.path = path;
+    this.line = line;
+    this.body = body;
+    this.fingerprint = fingerprint;
+    this.summary = summary;
+  }
+
+  /**
+   * @param path file of the comment, null for comments on the whole pull request
+   * @param line line of the comment in the new file, null for comments left on removed lines
+   */
+  public static ReviewComment posted(long id, @Nullable String path, @Nullable Integer line, @Nullable String body) {
+    String raw = body == null ? "" : body;
+    Matcher marker = MARKER.matcher(raw);
+    // comments posted before the marker existed can only be compared on their content
+    String fingerprint = marker.find() ? marker.group(1) : fingerprint(raw);
+    // the fingerprint is all the reconciliation compares, keeping every posted body would only cost memory
+    return new ReviewComment(id, path, line, "", fingerprint, path == null && raw.contains(SUMMARY_MARKER));
+  }
+
+  /**
+   * A posted comment as remembered by a previous analysis, see {@link DecorationStore}.
+   */
+  static ReviewComment restored(long id, @Nullable String path, @Nullable Integer line, String fingerprint) {
+    return restored(id, path, line, fingerprint, false);
+  }
+
+  static ReviewComment restored(long id, @Nullable String path, @Nullable Integer line, String fingerprint,
+                                boolean summary) {
+    return new ReviewComment(id, path, line, "", fingerprint, summary);
+  }
+
+  /**
+   * @param body comment content, the fingerprint marker is appended to it
+   */
+  public static ReviewComment desired(String path, int line, String body) {
+    String fingerprint = fingerprint(body);
+    return new ReviewComment(null, path, line, withMarker(body, fingerprint), fingerprint, false);
+  }
+
+  /**
+   * @param body summary of the analysis, both markers are appended to it
+   */
+  public static ReviewComment summary(String body) {
+    String fingerprint = fingerprint(body);
+    return new ReviewComment(null, null, null, withMarker(body, fingerprint) + "\n" + SUMMARY_MARKER, fingerprint,
+      true);
+  }
+
+  static String withMarker(String body, String fingerprint) {
+    // a link reference after a blank line renders as nothing
+    return body.replaceAll("\\s+$", "") + "\n\n[//]: # (sonar-bitbucket:fp=" + fingerprint + ")";
+  }
+
+  static String fingerprint(String body) {
+    String normalized = body.replace("\r\n", "\n").trim();
+    return Digests.sha1Hex(normalized).substring(0, FINGERPRINT_LENGTH);
+  }
+
+  @CheckForNull
+  public Long getId() {
+    return id;
+  }
+
+  @CheckForNull
+  public String getPath() {
+    return path;
+  }
+
+  @CheckForNull
+  public Integer getLine() {
+    return line;
+  }
+
+  /**
+   * @return the content to post, marker included, empty for posted comments
+   */
+  public String getBody() {
+    return body;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return true for the summary comment of the analysis, see {@link #summary(String)}
+   */
+  public boolean isSummary() {
+    return summary;
+  }
+
+  @Override
+  public String toString() {
+    return path + ":" + line + (id == null ? "" : " #" + id);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+
+/**
+ * The approval and build status of a pull request as far as we know them, so only calls changing them are sent.
+ *
+ * A value is known once read from Bitbucket or sent by us, an unknown value lets every call through.
+ */
+public class StatusTransitions {
+
+  private Boolean approved;
+  private BuildStatus buildStatus;
+  private int elided;
+
+  /**
+   * @param approved whether we approve the pull request, null when unknown
+   */
+  public synchronized void setApproved(@Nullable Boolean approved) {
+    this.approved = approved;
+  }
+
+  /**
+   * @return false when the pull request already is in that state, the call is counted as elided
+   */
+  public synchronized boolean isApprovalChange(boolean approve) {
+    if (approved != null && approved == approve) {
+      elided++;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param buildStatus build status of the commit for our key, null when unknown
+   */
+  public synchronized void setBuildStatus(@Nullable BuildStatus buildStatus) {
+    this.buildStatus = buildStatus;
+  }
+
+  /**
+   * @return false when the commit already has that build status, with the same state, name and URL;
+   * the call is counted as elided
+   */
+  public synchronized boolean isBuildStatusChange(BuildStatus status) {
+    if (buildStatus != null
+      && buildStatus.getState() == status.getState()
+      && Objects.equals(buildStatus.getName(), status.getName())
+      && Objects.equals(buildStatus.getUrl(), status.getUrl())) {
+      elided++;
+      return false;
+    }
+    return true;
+  }
+
+  public synchronized int getElided() {
+    return elided;
+  }
+}
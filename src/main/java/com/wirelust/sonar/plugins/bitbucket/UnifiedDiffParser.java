@@ -0,0 +1,323 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Single pass parser for git unified diffs.
+ *
+ * Only file headers, hunk headers and the first character of content lines are looked at, content is skipped
+ * without being buffered, so memory use does not depend on the size of the diff or of its lines.
+ */
+public class UnifiedDiffParser {
+
+  /**
+   * Receives the changes of a diff in order.
+   */
+  public interface Handler {
+
+    /**
+     * A new file section starts.
+     * @param newPath path of the file after the change, null when the file was deleted
+     */
+    void onFile(@Nullable String newPath);
+
+    /**
+     * Lines added or modified in the current file.
+     * @param firstLine first changed line in the new file, 1 based
+     * @param lastLine last changed line in the new file, inclusive
+     */
+    void onChangedLines(int firstLine, int lastLine);
+  }
+
+  /**
+   * Headers longer than this are truncated, which only matters for absurdly long paths.
+   */
+  static final int MAX_HEADER_LENGTH = 8192;
+
+  private static final String DIFF_GIT = "diff --git ";
+  private static final String NEW_FILE_PREFIX = "+++ ";
+  private static final String OLD_FILE_PREFIX = "--- ";
+  private static final String RENAME_TO = "rename to ";
+  private static final String DEV_NULL = "/dev/null";
+  private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -\\d+(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+  private final InputStream in;
+  private final Handler handler;
+  private final byte[] lineBuffer = new byte[MAX_HEADER_LENGTH];
+
+  private String pendingPath;
+  private boolean pendingFile;
+  private int oldRemaining;
+  private int newRemaining;
+  private int newLine;
+  private int rangeStart = -1;
+
+  private UnifiedDiffParser(InputStream in, Handler handler) {
+    this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    this.handler = handler;
+  }
+
+  public static void parse(InputStream in, Handler handler) throws IOException {
+    new UnifiedDiffParser(in, handler).parse();
+  }
+
+  /**
+   * @return added and modified lines by new file path, deleted files are left out
+   */
+  public static ChangedLines changedLines(InputStream in) throws IOException {
+    final ChangedLines.Builder builder = new ChangedLines.Builder();
+    parse(in, new Handler() {
+      @Override
+      public void onFile(@Nullable String newPath) {
+        builder.file(newPath);
+      }
+
+      @Override
+      public void onChangedLines(int firstLine, int lastLine) {
+        builder.lines(firstLine, lastLine);
+      }
+    });
+    return builder.build();
+  }
+
+  private void parse() throws IOException {
+    int first;
+    while ((first = in.read()) != -1) {
+      if (inHunk()) {
+        readContentLine(first);
+      } else {
+        readHeaderLine(first);
+      }
+    }
+    endFile();
+  }
+
+  private boolean inHunk() {
+    return oldRemaining > 0 || newRemaining > 0;
+  }
+
+  private void readContentLine(int marker) throws IOException {
+    boolean endOfLine = marker == '\n';
+    switch (marker) {
+      case '+':
+        if (rangeStart < 0) {
+          rangeStart = newLine;
+        }
+        newLine++;
+        newRemaining--;
+        break;
+      case '-':
+        endRange();
+        oldRemaining--;
+        break;
+      case '\\':
+        // "\ No newline at end of file"
+        break;
+      default:
+        // context, some tools strip the leading space of empty context lines
+        endRange();
+        newLine++;
+        newRemaining--;
+        oldRemaining--;
+        break;
+    }
+    if (!endOfLine) {
+      skipLine();
+    }
+    if (!inHunk()) {
+      endRange();
+    }
+  }
+
+  private void readHeaderLine(int first) throws IOException {
+    String line = readLine(first);
+
+    if (line.startsWith(DIFF_GIT)) {
+      endFile();
+      pendingFile = true;
+      pendingPath = pathFromDiffGit(line);
+    } else if (line.startsWith(NEW_FILE_PREFIX)) {
+      pendingFile = true;
+      pendingPath = stripPrefix(line.substring(NEW_FILE_PREFIX.length()));
+    } else if (line.startsWith(OLD_FILE_PREFIX) && !pendingFile) {
+      // plain unified diff without the git header
+      endFile();
+      pendingFile = true;
+    } else if (line.startsWith(RENAME_TO)) {
+      pendingPath = unquote(line.substring(RENAME_TO.length()));
+    } else if (line.startsWith("@@")) {
+      startHunk(line);
+    }
+  }
+
+  private void startHunk(String line) {
+    Matcher matcher = HUNK_HEADER.matcher(line);
+    if (!matcher.matches()) {
+      return;
+    }
+    emitFile();
+    oldRemaining = matcher.group(1) == null ? 1 : Integer.parseInt(matcher.group(1));
+    newLine = Integer.parseInt(matcher.group(2));
+    newRemaining = matcher.group(3) == null ? 1 : Integer.parseInt(matcher.group(3));
+  }
+
+  private void endRange() {
+    if (rangeStart >= 0) {
+      handler.onChangedLines(rangeStart, newLine - 1);
+      rangeStart = -1;
+    }
+  }
+
+  private void emitFile() {
+    if (pendingFile) {
+      handler.onFile(pendingPath);
+      pendingFile = false;
+    }
+  }
+
+  private void endFile() {
+    endRange();
+    emitFile();
+    pendingPath = null;
+    oldRemaining = 0;
+    newRemaining = 0;
+  }
+
+  @Nullable
+  private static String stripPrefix(String path) {
+    String trimmed = path;
+    int tab = trimmed.indexOf('\t');
+    if (tab >= 0) {
+      trimmed = trimmed.substring(0, tab);
+    }
+    trimmed = unquote(trimmed);
+    if (DEV_NULL.equals(trimmed)) {
+      return null;
+    }
+    if (trimmed.startsWith("b/")) {
+      return trimmed.substring(2);
+    }
+    return trimmed;
+  }
+
+  @Nullable
+  private static String pathFromDiffGit(String line) {
+    if (line.endsWith("\"")) {
+      int index = line.lastIndexOf(" \"b/");
+      return index < 0 ? null : unquote(line.substring(index + 1)).substring(2);
+    }
+    int index = line.lastIndexOf(" b/");
+    if (index < 0) {
+      return null;
+    }
+    return line.substring(index + 3);
+  }
+
+  /**
+   * Decode a path git quoted because of special or non ASCII characters, like {@code "caf\303\251.txt"}.
+   * @return the path itself when it is not quoted
+   */
+  static String unquote(String path) {
+    if (path.length() < 2 || !path.startsWith("\"") || !path.endsWith("\"")) {
+      return path;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+    int end = path.length() - 1;
+    int i = 1;
+    while (i < end) {
+      int c = path.codePointAt(i);
+      i += Character.charCount(c);
+      if (c != '\\' || i == end) {
+        // the line was read as UTF-8, non ASCII characters git did not escape are encoded back
+        byte[] encoded = new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8);
+        bytes.write(encoded, 0, encoded.length);
+        continue;
+      }
+      char escaped = path.charAt(i++);
+      if (escaped >= '0' && escaped <= '3' && i + 1 < end && isOctal(path.charAt(i)) && isOctal(path.charAt(i + 1))) {
+        bytes.write(((escaped - '0') << 6) | ((path.charAt(i) - '0') << 3) | (path.charAt(i + 1) - '0'));
+        i += 2;
+      } else {
+        bytes.write(unescape(escaped));
+      }
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static boolean isOctal(char c) {
+    return c >= '0' && c <= '7';
+  }
+
+  private static int unescape(char escaped) {
+    switch (escaped) {
+      case 'a':
+        return 0x07;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'v':
+        return 0x0b;
+      default:
+        // \" and \\
+        return escaped;
+    }
+  }
+
+  /**
+   * Read the rest of a header line, keeping at most {@link #MAX_HEADER_LENGTH} bytes of it.
+   */
+  private String readLine(int first) throws IOException {
+    int length = 0;
+    int b = first;
+    while (b != -1 && b != '\n') {
+      if (length < lineBuffer.length) {
+        lineBuffer[length++] = (byte) b;
+      }
+      b = in.read();
+    }
+    if (length > 0 && lineBuffer[length - 1] == '\r') {
+      length--;
+    }
+    return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private void skipLine() throws IOException {
+    int b;
+    do {
+      b = in.read();
+    } while (b != -1 && b != '\n');
+  }
+}
@@ -19,18 +19,32 @@
  */
 package com.wirelust.sonar.plugins.bitbucket.client;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.CheckForNull;
 import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.xml.bind.DatatypeConverter;
 
 import com.wirelust.bitbucket.client.BitbucketAuthClient;
 import com.wirelust.bitbucket.client.BitbucketV2Client;
 import com.wirelust.sonar.plugins.bitbucket.BitBucketPluginConfiguration;
+import com.wirelust.sonar.plugins.bitbucket.DaemonThreadFactory;
+import org.apache.http.client.config.RequestConfig;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.ProxyBuilder;
 import org.jboss.resteasy.client.jaxrs.ProxyConfig;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,26 +62,64 @@ public class ApiClientFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ApiClientFactory.class);
 
+  static final String ACCESS_TOKEN_PATH = "oauth2/access_token";
+
   private final BitBucketPluginConfiguration config;
+  private final TokenStore tokenStore;
   ResteasyProviderFactory resteasyProviderFactory = ResteasyProviderFactory.getInstance();
   ProxyConfig resteasyProxyConfig = new ProxyConfig(this.getClass().getClassLoader(), null, null);
 
   ClientHttpEngine clientHttpEngine;
+  private boolean providersRegistered;
+  private HttpConnectionPool connectionPool;
+  private AsyncHttpClientEngine asyncHttpClientEngine;
+  private RateLimitedHttpEngine asyncEngine;
+  private RateGovernor rateGovernor;
+  private ResponseCache responseCache;
+  private boolean responseCacheLoaded;
+  private ExecutorService requestExecutor;
 
   public ApiClientFactory(BitBucketPluginConfiguration config) {
     this.config = config;
 
-    // We need to register Resteasy providers ourselves to make sure they are bound to the correct classloader
-    try {
-      ResteasyRegisterBuiltin.registerDefaultProviders(resteasyProviderFactory);
-    } catch (IOException e) {
-      LOGGER.error("unable to register jax-rs providers", e);
+    if (config.tokenCacheEnabled()) {
+      tokenStore = new TokenStore(config.cacheDir());
+    } else {
+      tokenStore = null;
     }
   }
 
   public BitbucketAuthClient getAuthClient() {
+    return ProxyBuilder.proxy(BitbucketAuthClient.class, getAuthTarget(), resteasyProxyConfig);
+  }
+
+  /**
+   * The generated auth client only knows the password grant, the refresh grant is posted directly.
+   * @param refreshToken refresh token received with a previous access token
+   * @return the token endpoint response, an OauthAccessToken when successful
+   */
+  public Response refreshAccessToken(String refreshToken) {
+    Form form = new Form()
+      .param("grant_type", "refresh_token")
+      .param("refresh_token", refreshToken);
 
-    ResteasyClient client = getRestEasyClient();
+    return getAuthTarget()
+      .path(ACCESS_TOKEN_PATH)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .post(Entity.form(form));
+  }
+
+  /**
+   * @return the on-disk token store, or null when token caching is disabled
+   */
+  @CheckForNull
+  public TokenStore getTokenStore() {
+    return tokenStore;
+  }
+
+  private ResteasyWebTarget getAuthTarget() {
+
+    ResteasyClient client = getRestEasyClient(false);
 
     client.register((ClientRequestFilter) clientRequestContext -> {
       String token = config.clientId() + ":" + config.clientSecret();
@@ -78,36 +130,189 @@ public class ApiClientFactory {
       clientRequestContext.getHeaders().add("Authorization", basicAuthentication);
     });
 
-    ResteasyWebTarget target = client.target(config.tokenEndpoint());
-    return ProxyBuilder.proxy(BitbucketAuthClient.class, target, resteasyProxyConfig);
+    return client.target(config.tokenEndpoint());
   }
 
 
+  /**
+   * The generated client can only block, so it always uses the pooled engine, which also streams large bodies
+   * like the diff instead of buffering them as the async engine does.
+   */
   public BitbucketV2Client getV2Client(final String authToken) {
+    return ProxyBuilder.proxy(BitbucketV2Client.class, getV2Target(authToken, true), resteasyProxyConfig);
+  }
+
+  /**
+   * Target for the calls the generated client does not cover, or that should not block, see {@link #submit}.
+   */
+  public ResteasyWebTarget getV2Target(final String authToken) {
+    return getV2Target(authToken, false);
+  }
+
+  private ResteasyWebTarget getV2Target(final String authToken, boolean blocking) {
 
-    ResteasyClient client = getRestEasyClient();
+    ResteasyClient client = getRestEasyClient(blocking);
 
     if (authToken != null) {
       client.register((ClientRequestFilter) requestContext
         -> requestContext.getHeaders().add("Authorization", "Bearer " + authToken));
     }
 
-    ResteasyWebTarget target = client.target(config.endpoint());
-
-    return ProxyBuilder.proxy(BitbucketV2Client.class, target, resteasyProxyConfig);
+    return client.target(config.endpoint());
   }
 
   public void setClientHttpEngine(ClientHttpEngine clientHttpEngine) {
     this.clientHttpEngine = clientHttpEngine;
   }
 
-  private ResteasyClient getRestEasyClient() {
+  private synchronized HttpConnectionPool getConnectionPool() {
+    if (connectionPool == null) {
+      connectionPool = new HttpConnectionPool(config.maxConnections(), config.maxConnectionsPerRoute());
+    }
+    return connectionPool;
+  }
+
+  private synchronized RateLimitedHttpEngine getAsyncEngine() {
+    if (asyncEngine == null) {
+      asyncHttpClientEngine = AsyncHttpClientEngine.create(config.maxConnections(), config.maxConnectionsPerRoute(),
+        RequestConfig.DEFAULT);
+      asyncEngine = new RateLimitedHttpEngine(asyncHttpClientEngine, getRateGovernor());
+    }
+    return asyncEngine;
+  }
+
+  /**
+   * Bitbucket limits requests per account, so clients of the same login share the governor.
+   */
+  synchronized RateGovernor getRateGovernor() {
+    if (rateGovernor == null) {
+      String account = config.login() == null ? "" : config.login();
+      rateGovernor = RateGovernor.forAccount(account, config.requestsPerSecond(), config.requestBurst());
+    }
+    return rateGovernor;
+  }
+
+  /**
+   * @return the disk cache of GET responses, or null when it is disabled
+   */
+  @CheckForNull
+  synchronized ResponseCache getResponseCache() {
+    if (!responseCacheLoaded) {
+      responseCacheLoaded = true;
+      if (config.httpCacheEnabled()) {
+        String account = config.login() == null ? "" : config.login();
+        responseCache = new ResponseCache(new File(config.cacheDir(), "http"), account, config.httpCacheMaxBytes(),
+          config.httpCacheMaxAgeMillis());
+      }
+    }
+    return responseCache;
+  }
+
+  /**
+   * Threads for the calls that go through the generated proxies, which can only block, and for the
+   * submitted ones when the blocking engine is used.
+   * Sized like the per host connection limit since that is how many of those calls can progress at once.
+   */
+  public synchronized Executor getRequestExecutor() {
+    if (requestExecutor == null) {
+      requestExecutor = Executors.newFixedThreadPool(config.maxConnectionsPerRoute(),
+        new DaemonThreadFactory("bitbucket-request"));
+    }
+    return requestExecutor;
+  }
+
+  /**
+   * Send a request built from one of our clients' WebTargets. With the async engine the future is completed
+   * by an I/O thread and no thread waits on the socket, with the blocking engine the call runs on the
+   * {@link #getRequestExecutor() request executor}.
+   * @param invocation request built with {@code target.request().build(...)}
+   * @return the response, which the caller must close
+   */
+  public CompletableFuture<Response> submit(Invocation invocation) {
+    if (invocation instanceof ClientInvocation) {
+      ClientInvocation clientInvocation = (ClientInvocation) invocation;
+      ClientHttpEngine engine = clientInvocation.getClient().httpEngine();
+      if (engine instanceof CachingHttpEngine) {
+        // only the blocking calls go through the cache, what is submitted here changes data anyway
+        engine = ((CachingHttpEngine) engine).getDelegate();
+      }
+      if (engine instanceof AsyncHttpClientEngine) {
+        return ((AsyncHttpClientEngine) engine).submit(clientInvocation);
+      }
+      if (engine instanceof RateLimitedHttpEngine && ((RateLimitedHttpEngine) engine).isAsync()) {
+        return ((RateLimitedHttpEngine) engine).submit(clientInvocation);
+      }
+    }
+
+    return CompletableFuture.supplyAsync(invocation::invoke, getRequestExecutor());
+  }
+
+  /**
+   * Stop the threads and release the connections of the engines and executor created so far.
+   * Clients obtained before must not be used anymore.
+   */
+  public synchronized void close() {
+    if (requestExecutor != null) {
+      requestExecutor.shutdown();
+      requestExecutor = null;
+    }
+    if (asyncHttpClientEngine != null) {
+      asyncHttpClientEngine.shutdown();
+      asyncHttpClientEngine = null;
+      asyncEngine = null;
+    }
+    if (connectionPool != null) {
+      connectionPool.close();
+      connectionPool = null;
+    }
+  }
+
+  public synchronized void logStatistics() {
+    if (connectionPool != null) {
+      connectionPool.logStatistics();
+    }
+    if (rateGovernor != null) {
+      rateGovernor.logStatistics();
+    }
+    if (responseCache != null) {
+      responseCache.logStatistics();
+    }
+  }
+
+  /**
+   * We need to register Resteasy providers ourselves to make sure they are bound to the correct classloader.
+   * This is left to the first client so analyses that never call Bitbucket don't pay for it.
+   */
+  private synchronized void registerProviders() {
+    if (providersRegistered) {
+      return;
+    }
+    try {
+      ResteasyRegisterBuiltin.registerProviders(resteasyProviderFactory);
+    } catch (IOException e) {
+      LOGGER.error("unable to register jax-rs providers", e);
+    }
+    providersRegistered = true;
+  }
+
+  /**
+   * @param blocking true to use the pooled engine even when the async one is configured
+   */
+  private ResteasyClient getRestEasyClient(boolean blocking) {
+    registerProviders();
 
     CustomResteasyClientBuilder clientBuilder = new CustomResteasyClientBuilder();
     clientBuilder.providerFactory(resteasyProviderFactory);
 
+    ResponseCache cache = getResponseCache();
     if (clientHttpEngine != null) {
       clientBuilder.httpEngine(clientHttpEngine);
+    } else if (config.asyncHttpEngine() && !blocking) {
+      clientBuilder.httpEngine(cache == null ? getAsyncEngine() : new CachingHttpEngine(getAsyncEngine(), cache));
+    } else {
+      clientBuilder.connectionPool(getConnectionPool());
+      clientBuilder.rateGovernor(getRateGovernor());
+      clientBuilder.responseCache(cache);
     }
     ResteasyClient client = clientBuilder.build();
 
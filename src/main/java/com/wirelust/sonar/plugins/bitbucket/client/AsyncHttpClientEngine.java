@@ -0,0 +1,295 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.client.ResponseProcessingException;
+import javax.ws.rs.core.Response;
+
+import com.wirelust.sonar.plugins.bitbucket.DaemonThreadFactory;
+import com.wirelust.sonar.plugins.bitbucket.client.exception.ClientException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ssl.BrowserCompatHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.client.jaxrs.internal.ClientRequestContextImpl;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponseContextImpl;
+
+/**
+ * Non-blocking alternative to {@link CustomApacheHttpClient4Engine} built on Apache HttpAsyncClient.
+ *
+ * Requests are multiplexed over a few I/O reactor threads, so many calls can be in flight without parking a
+ * thread per socket. Callers that want a future use {@link #submit(ClientInvocation)}; the regular
+ * {@link #invoke(ClientInvocation)} used by generated proxies simply waits for it.
+ */
+public class AsyncHttpClientEngine implements ClientHttpEngine {
+
+  static final int IO_THREAD_COUNT = 2;
+
+  private final CloseableHttpAsyncClient httpClient;
+  private final boolean closeHttpClient;
+  private final SSLContext sslContext;
+  private final HostnameVerifier hostnameVerifier;
+
+  /**
+   * @param httpClient async client used for the requests, started if it is not running yet
+   * @param closeHttpClient false when the client is shared and must survive this engine
+   */
+  public AsyncHttpClientEngine(CloseableHttpAsyncClient httpClient, boolean closeHttpClient,
+                               SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+    this.httpClient = httpClient;
+    this.closeHttpClient = closeHttpClient;
+    this.sslContext = sslContext;
+    this.hostnameVerifier = hostnameVerifier;
+
+    if (!httpClient.isRunning()) {
+      httpClient.start();
+    }
+  }
+
+  /**
+   * Build an engine meant to be shared by several clients. Closing a client leaves it running,
+   * its owner stops it with {@link #shutdown()}.
+   */
+  public static AsyncHttpClientEngine create(int maxTotal, int maxPerRoute, RequestConfig requestConfig) {
+    try {
+      SSLContext tlsContext = SSLContext.getInstance(SSLConnectionSocketFactory.TLS);
+      tlsContext.init(null, null, null);
+      X509HostnameVerifier verifier = new BrowserCompatHostnameVerifier();
+
+      CloseableHttpAsyncClient httpClient = HttpAsyncClientBuilder.create()
+        .setSSLContext(tlsContext)
+        .setHostnameVerifier(verifier)
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .setDefaultRequestConfig(requestConfig)
+        .setRedirectStrategy(new LaxRedirectStrategy())
+        .setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(IO_THREAD_COUNT).build())
+        .setThreadFactory(new DaemonThreadFactory("bitbucket-io"))
+        .build();
+
+      return new AsyncHttpClientEngine(httpClient, false, tlsContext, verifier);
+    } catch (Exception e) {
+      throw new ClientException(e);
+    }
+  }
+
+  @Override
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  @Override
+  public HostnameVerifier getHostnameVerifier() {
+    return hostnameVerifier;
+  }
+
+  /**
+   * Run an invocation the way {@link ClientInvocation#invoke()} does, filters included, without blocking.
+   * @param request invocation built from a WebTarget of a client using this engine
+   * @return the response, completed on an I/O thread
+   */
+  public CompletableFuture<Response> submit(final ClientInvocation request) {
+    return submit(request, this::execute);
+  }
+
+  /**
+   * Run the filters of an invocation around a non-blocking send, so decorators can wrap the send only.
+   * @param send sends the request once the request filters ran
+   */
+  static CompletableFuture<Response> submit(final ClientInvocation request,
+                                            Function<ClientInvocation, CompletableFuture<ClientResponse>> send) {
+    final ClientRequestContextImpl requestContext = new ClientRequestContextImpl(request);
+    try {
+      for (ClientRequestFilter filter : request.getRequestFilters()) {
+        filter.filter(requestContext);
+        if (requestContext.getAbortedWithResponse() != null) {
+          return CompletableFuture.completedFuture(requestContext.getAbortedWithResponse());
+        }
+      }
+    } catch (IOException e) {
+      return failed(new ProcessingException(e));
+    }
+
+    return send.apply(request).thenApply(response -> {
+      response.setProperties(request.getMutableProperties());
+      ClientResponseFilter[] responseFilters = request.getResponseFilters();
+      if (responseFilters != null && responseFilters.length > 0) {
+        ClientResponseContextImpl responseContext = new ClientResponseContextImpl(response);
+        for (ClientResponseFilter filter : responseFilters) {
+          try {
+            filter.filter(requestContext, responseContext);
+          } catch (IOException e) {
+            throw new ResponseProcessingException(response, e);
+          }
+        }
+      }
+      return response;
+    });
+  }
+
+  @Override
+  public ClientResponse invoke(ClientInvocation request) {
+    try {
+      return execute(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessingException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ProcessingException) {
+        throw (ProcessingException) e.getCause();
+      }
+      throw new ProcessingException(e.getCause());
+    }
+  }
+
+  /**
+   * Send a request without running its filters.
+   */
+  public CompletableFuture<ClientResponse> execute(final ClientInvocation request) {
+    final HttpUriRequest httpRequest;
+    try {
+      httpRequest = buildRequest(request);
+    } catch (IOException e) {
+      return failed(new ProcessingException(e));
+    }
+
+    final CompletableFuture<ClientResponse> future = new CompletableFuture<>();
+    httpClient.execute(httpRequest, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse httpResponse) {
+        future.complete(buildResponse(request, httpResponse));
+      }
+
+      @Override
+      public void failed(Exception e) {
+        future.completeExceptionally(new ProcessingException("Unable to invoke request", e));
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel(false);
+      }
+    });
+    return future;
+  }
+
+  private static HttpUriRequest buildRequest(ClientInvocation request) throws IOException {
+    RequestBuilder builder = RequestBuilder.create(request.getMethod()).setUri(request.getUri());
+
+    for (Map.Entry<String, List<String>> header : request.getHeaders().asMap().entrySet()) {
+      for (String value : header.getValue()) {
+        builder.addHeader(header.getKey(), value);
+      }
+    }
+
+    if (request.getEntity() != null) {
+      // the async client needs a repeatable entity, so bodies are buffered before being sent
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      request.getDelegatingOutputStream().setDelegate(body);
+      request.writeRequestBody(request.getEntityStream());
+      builder.setEntity(new ByteArrayEntity(body.toByteArray()));
+    }
+    return builder.build();
+  }
+
+  private static ClientResponse buildResponse(ClientInvocation request, final HttpResponse httpResponse) {
+    final HttpEntity httpEntity = httpResponse.getEntity();
+
+    ClientResponse response = new ClientResponse(request.getClientConfiguration()) {
+      InputStream stream;
+
+      @Override
+      protected InputStream getInputStream() {
+        if (stream == null && httpEntity != null) {
+          try {
+            stream = httpEntity.getContent();
+          } catch (IOException e) {
+            throw new ProcessingException(e);
+          }
+        }
+        return stream;
+      }
+
+      @Override
+      protected void setInputStream(InputStream is) {
+        stream = is;
+      }
+
+      @Override
+      public void releaseConnection() throws IOException {
+        // the async client already consumed the response, only the buffered stream is left to close
+        if (stream != null) {
+          stream.close();
+        }
+      }
+    };
+    response.setStatus(httpResponse.getStatusLine().getStatusCode());
+    response.setHeaders(ApacheHttpClient4Engine.extractHeaders(httpResponse));
+    return response;
+  }
+
+  private static <T> CompletableFuture<T> failed(Throwable e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  @Override
+  public void close() {
+    if (closeHttpClient) {
+      shutdown();
+    }
+  }
+
+  public void shutdown() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      throw new ClientException(e);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.annotation.Nullable;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
+import org.jboss.resteasy.util.CaseInsensitiveMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Engine decorator revalidating GET requests against a {@link ResponseCache}.
+ *
+ * A cached response is never used as is, the request is sent with its ETag and Last-Modified and the body comes
+ * from disk only when Bitbucket answers 304, so nothing can be stale. Responses with a validator are written to the
+ * cache while the caller reads them, large diffs are not held in memory for that.
+ */
+public class CachingHttpEngine implements ClientHttpEngine {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachingHttpEngine.class);
+
+  static final String IF_NONE_MATCH = "If-None-Match";
+  static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  static final String ETAG = "ETag";
+  static final String NO_STORE = "no-store";
+  static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+  private final ClientHttpEngine delegate;
+  private final ResponseCache cache;
+
+  public CachingHttpEngine(ClientHttpEngine delegate, ResponseCache cache) {
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  @Override
+  public SSLContext getSslContext() {
+    return delegate.getSslContext();
+  }
+
+  @Override
+  public HostnameVerifier getHostnameVerifier() {
+    return delegate.getHostnameVerifier();
+  }
+
+  @Override
+  public ClientResponse invoke(ClientInvocation request) {
+    if (!HttpMethod.GET.equals(request.getMethod())) {
+      return delegate.invoke(request);
+    }
+
+    String uri = request.getUri().toString();
+    String key = cache.key(uri, request.getHeaders().getHeader(HttpHeaders.ACCEPT));
+    ResponseCache.Entry cached = cache.load(key, uri);
+    if (cached != null) {
+      if (cached.etag != null) {
+        request.getHeaders().header(IF_NONE_MATCH, cached.etag);
+      }
+      if (cached.lastModified != null) {
+        request.getHeaders().header(IF_MODIFIED_SINCE, cached.lastModified);
+      }
+    }
+
+    ClientResponse response = delegate.invoke(request);
+    int status = response.getStatus();
+    if (cached != null && status == Response.Status.NOT_MODIFIED.getStatusCode()) {
+      return fromCache(request, response, cached);
+    }
+    if (status == Response.Status.OK.getStatusCode() && isCacheable(response)) {
+      return storing(request, response, key, uri);
+    }
+    return response;
+  }
+
+  private static boolean isCacheable(ClientResponse response) {
+    String cacheControl = response.getHeaderString(HttpHeaders.CACHE_CONTROL);
+    if (cacheControl != null && cacheControl.contains(NO_STORE)) {
+      return false;
+    }
+    return response.getHeaderString(ETAG) != null || response.getHeaderString(HttpHeaders.LAST_MODIFIED) != null;
+  }
+
+  private ClientResponse fromCache(ClientInvocation request, ClientResponse notModified,
+                                   ResponseCache.Entry cached) {
+    InputStream body;
+    try {
+      body = cached.openBody();
+    } catch (IOException e) {
+      // the entry went away since it was loaded, ask again without the validators
+      LOGGER.debug("unable to read cached response:{}", cached.file, e);
+      notModified.close();
+      request.getHeaders().getHeaders().remove(IF_NONE_MATCH);
+      request.getHeaders().getHeaders().remove(IF_MODIFIED_SINCE);
+      return delegate.invoke(request);
+    }
+    cache.revalidated(cached);
+
+    MultivaluedMap<String, String> headers = copyHeaders(notModified);
+    // the length of the 304 is not the one of the body
+    headers.remove(HttpHeaders.CONTENT_LENGTH);
+    headers.remove(TRANSFER_ENCODING);
+    if (cached.contentType != null) {
+      headers.putSingle(HttpHeaders.CONTENT_TYPE, cached.contentType);
+    }
+    notModified.close();
+    return response(request, Response.Status.OK.getStatusCode(), headers, body, null);
+  }
+
+  private ClientResponse storing(ClientInvocation request, ClientResponse response, String key, String uri) {
+    if (response.getLength() > 0 && !cache.fits(response.getLength())) {
+      // the body would be copied to disk only to be discarded
+      return response;
+    }
+    ResponseCache.Writer writer = cache.writer(key, uri, response.getHeaderString(ETAG),
+      response.getHeaderString(HttpHeaders.LAST_MODIFIED), response.getHeaderString(HttpHeaders.CONTENT_TYPE));
+    if (writer == null) {
+      return response;
+    }
+
+    response.setProperties(request.getMutableProperties());
+    InputStream body = response.readEntity(InputStream.class);
+    if (body == null) {
+      writer.close(true);
+      return response;
+    }
+    return response(request, response.getStatus(), copyHeaders(response),
+      new TeeInputStream(body, writer), response);
+  }
+
+  private static MultivaluedMap<String, String> copyHeaders(ClientResponse response) {
+    // header names come in any case, a 304 must not leave its Content-Length next to the cached Content-Type
+    MultivaluedMap<String, String> headers = new CaseInsensitiveMap<>();
+    headers.putAll(response.getStringHeaders());
+    return headers;
+  }
+
+  private static ClientResponse response(ClientInvocation request, int status, MultivaluedMap<String, String> headers,
+                                         final InputStream body, @Nullable final ClientResponse original) {
+    ClientResponse response = new ClientResponse(request.getClientConfiguration()) {
+      InputStream stream = body;
+
+      @Override
+      protected InputStream getInputStream() {
+        return stream;
+      }
+
+      @Override
+      protected void setInputStream(InputStream is) {
+        stream = is;
+      }
+
+      @Override
+      public void releaseConnection() throws IOException {
+        try {
+          body.close();
+        } finally {
+          if (original != null) {
+            original.close();
+          }
+        }
+      }
+    };
+    response.setStatus(status);
+    response.setHeaders(headers);
+    return response;
+  }
+
+  public ClientHttpEngine getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  /**
+   * Copies the body to the cache as it is read, the entry is kept only when the end was reached.
+   *
+   * JSON readers stop at the end of the root value without reading the end of the stream, so a short remainder
+   * is read on close before giving up on the entry.
+   */
+  static class TeeInputStream extends FilterInputStream {
+
+    static final int MAX_DRAIN = 8192;
+
+    private final ResponseCache.Writer writer;
+    private boolean complete;
+    private boolean closed;
+
+    TeeInputStream(InputStream in, ResponseCache.Writer writer) {
+      super(in);
+      this.writer = writer;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        complete = true;
+      } else {
+        writer.write(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = super.read(buffer, offset, length);
+      if (count < 0) {
+        complete = true;
+      } else {
+        writer.write(buffer, offset, count);
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped bytes would be missing from the entry
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int count = read(buffer, 0, buffer.length);
+      return Math.max(count, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        drain();
+        super.close();
+      } finally {
+        writer.close(complete);
+      }
+    }
+
+    private void drain() {
+      byte[] buffer = new byte[MAX_DRAIN];
+      int remaining = MAX_DRAIN;
+      try {
+        while (!complete && remaining > 0) {
+          int count = read(buffer, 0, remaining);
+          if (count > 0) {
+            remaining -= count;
+          }
+        }
+        if (!complete && read() >= 0) {
+          LOGGER.debug("response left unread, not cached");
+        }
+      } catch (IOException e) {
+        LOGGER.debug("unable to read the end of the response", e);
+      }
+    }
+  }
+}
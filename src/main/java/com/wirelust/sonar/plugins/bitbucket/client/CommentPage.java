@@ -0,0 +1,71 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.CheckForNull;
+
+import com.wirelust.sonar.plugins.bitbucket.ReviewComment;
+
+/**
+ * Page of pull request comments reduced to what the reconciliation needs, see {@link CommentPageParser}.
+ */
+public class CommentPage {
+
+  Integer size;
+  Integer pagelen;
+  String next;
+  int valueCount;
+  final List<ReviewComment> comments = new ArrayList<>();
+
+  /**
+   * @return total number of comments, when Bitbucket sent it
+   */
+  @CheckForNull
+  public Integer getSize() {
+    return size;
+  }
+
+  @CheckForNull
+  public Integer getPagelen() {
+    return pagelen;
+  }
+
+  @CheckForNull
+  public String getNext() {
+    return next;
+  }
+
+  /**
+   * @return number of comments on the page, including those of other users
+   */
+  public int getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * @return the comments of the requested user, in page order
+   */
+  public List<ReviewComment> getComments() {
+    return Collections.unmodifiableList(comments);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.wirelust.sonar.plugins.bitbucket.ReviewComment;
+
+/**
+ * Reads a page of pull request comments token by token instead of binding it to a CommentList.
+ *
+ * Comments of other users are skipped without building anything, and ours are reduced to a ReviewComment
+ * which keeps the fingerprint instead of the body. On busy pull requests most of a page is other people's
+ * discussion, links and rendered html that we would otherwise allocate and throw away.
+ */
+public class CommentPageParser {
+
+  private final JsonFactory jsonFactory;
+
+  public CommentPageParser() {
+    this(JacksonObjectMapper.get().getFactory());
+  }
+
+  public CommentPageParser(JsonFactory jsonFactory) {
+    this.jsonFactory = jsonFactory;
+  }
+
+  /**
+   * @param input page as returned by the comments endpoint, left open for the caller to close
+   * @param username only the comments of this user are kept
+   */
+  public CommentPage parse(InputStream input, String username) throws IOException {
+    CommentPage page = new CommentPage();
+    try (JsonParser parser = jsonFactory.createParser(input)) {
+      // the factory is shared with the object mapper, only this parser leaves its source open
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("comment page is not a JSON object: " + parser.getCurrentToken());
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        switch (field) {
+          case "size":
+            page.size = intValue(parser, value);
+            break;
+          case "pagelen":
+            page.pagelen = intValue(parser, value);
+            break;
+          case "next":
+            page.next = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+            break;
+          case "values":
+            readComments(parser, value, username, page);
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+    }
+    return page;
+  }
+
+  private static void readComments(JsonParser parser, JsonToken value, String username, CommentPage page)
+    throws IOException {
+    if (value == JsonToken.START_OBJECT) {
+      // a single comment is sometimes sent without the array
+      page.valueCount++;
+      readComment(parser, username, page.comments);
+      return;
+    }
+    if (value != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return;
+    }
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.START_OBJECT) {
+        page.valueCount++;
+        readComment(parser, username, page.comments);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private static void readComment(JsonParser parser, String username, List<ReviewComment> comments)
+    throws IOException {
+    Long id = null;
+    String author = null;
+    String path = null;
+    Integer line = null;
+    String raw = null;
+    boolean foreign = false;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (foreign) {
+        parser.skipChildren();
+        continue;
+      }
+      switch (field) {
+        case "id":
+          id = value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : null;
+          break;
+        case "user":
+          author = stringField(parser, value, "username");
+          // the rest of someone else's comment is not even read
+          foreign = !username.equals(author);
+          break;
+        case "inline":
+          if (value == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+              String inlineField = parser.getCurrentName();
+              JsonToken inlineValue = parser.nextToken();
+              if ("path".equals(inlineField) && inlineValue == JsonToken.VALUE_STRING) {
+                path = parser.getText();
+              } else if ("to".equals(inlineField)) {
+                line = intValue(parser, inlineValue);
+              } else {
+                parser.skipChildren();
+              }
+            }
+          } else {
+            parser.skipChildren();
+          }
+          break;
+        case "content":
+          raw = stringField(parser, value, "raw");
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+
+    if (!foreign && author != null && id != null) {
+      comments.add(ReviewComment.posted(id, path, line, raw));
+    }
+  }
+
+  private static String stringField(JsonParser parser, JsonToken value, String name) throws IOException {
+    if (value != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    String result = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken fieldValue = parser.nextToken();
+      if (name.equals(field) && fieldValue == JsonToken.VALUE_STRING) {
+        result = parser.getText();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return result;
+  }
+
+  private static Integer intValue(JsonParser parser, JsonToken value) throws IOException {
+    return value == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : null;
+  }
+}
@@ -45,8 +45,16 @@ import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
 public class CustomApacheHttpClient4Engine extends ApacheHttpClient4Engine {
 
   public CustomApacheHttpClient4Engine(HttpClient httpClient) {
+    this(httpClient, true);
+  }
+
+  /**
+   * @param httpClient client used for the requests
+   * @param closeHttpClient false when the client's connection manager is shared and must survive this engine
+   */
+  public CustomApacheHttpClient4Engine(HttpClient httpClient, boolean closeHttpClient) {
     this.httpClient = httpClient;
-    this.createdHttpClient = true;
+    this.createdHttpClient = closeHttpClient;
   }
 
   @Override
@@ -50,9 +50,53 @@ public class CustomResteasyClientBuilder extends ResteasyClientBuilder {
 
   public static final TrustSelfSignedStrategy TRUST_STRATEGY_INSTANCE = new TrustSelfSignedStrategy();
 
+  private HttpConnectionPool connectionPool;
+  private RateGovernor rateGovernor;
+  private ResponseCache responseCache;
+
+  /**
+   * Use connections from a shared pool instead of creating a connection manager for this client only.
+   * The pool brings its own SSL configuration.
+   */
+  public CustomResteasyClientBuilder connectionPool(HttpConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+    return this;
+  }
+
+  /**
+   * Pace the requests of the default engine, see {@link RateLimitedHttpEngine}.
+   */
+  public CustomResteasyClientBuilder rateGovernor(RateGovernor rateGovernor) {
+    this.rateGovernor = rateGovernor;
+    return this;
+  }
+
+  /**
+   * Revalidate GET requests against a disk cache, see {@link CachingHttpEngine}.
+   */
+  public CustomResteasyClientBuilder responseCache(ResponseCache responseCache) {
+    this.responseCache = responseCache;
+    return this;
+  }
+
   @Override
   protected ClientHttpEngine initDefaultEngine() {
+    ClientHttpEngine engine = initUnlimitedEngine();
+    if (rateGovernor != null) {
+      engine = new RateLimitedHttpEngine(engine, rateGovernor);
+    }
+    if (responseCache != null) {
+      // outside of the rate limiting so a retried request keeps its validators
+      engine = new CachingHttpEngine(engine, responseCache);
+    }
+    return engine;
+  }
+
+  private ClientHttpEngine initUnlimitedEngine() {
     RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
+    if (connectionPool != null) {
+      return initPooledEngine(requestConfigBuilder);
+    }
 
     X509HostnameVerifier verifier = new BrowserCompatHostnameVerifier();;
 
@@ -82,16 +126,7 @@ public class CustomResteasyClientBuilder extends ResteasyClientBuilder {
         sslsf = new SSLConnectionSocketFactory(tlsContext, verifier);
       }
 
-      if (socketTimeout > -1) {
-        requestConfigBuilder.setSocketTimeout((int) socketTimeoutUnits.toMillis(socketTimeout));
-      }
-      if (establishConnectionTimeout > -1) {
-        requestConfigBuilder
-          .setConnectTimeout((int) establishConnectionTimeoutUnits.toMillis(establishConnectionTimeout));
-      }
-      if (connectionCheckoutTimeoutMs > -1) {
-        requestConfigBuilder.setConnectionRequestTimeout(connectionCheckoutTimeoutMs);
-      }
+      applyTimeouts(requestConfigBuilder);
 
       CloseableHttpClient httpClient = HttpClientBuilder.create()
         .setDefaultRequestConfig(requestConfigBuilder.build())
@@ -109,4 +144,29 @@ public class CustomResteasyClientBuilder extends ResteasyClientBuilder {
       throw new ClientException(e);
     }
   }
+
+  private ClientHttpEngine initPooledEngine(RequestConfig.Builder requestConfigBuilder) {
+    applyTimeouts(requestConfigBuilder);
+
+    CloseableHttpClient httpClient = connectionPool.createHttpClient(requestConfigBuilder.build());
+
+    CustomApacheHttpClient4Engine engine = new CustomApacheHttpClient4Engine(httpClient, false);
+    engine.setResponseBufferSize(responseBufferSize);
+    engine.setHostnameVerifier(connectionPool.getHostnameVerifier());
+    engine.setSslContext(connectionPool.getSslContext());
+    return engine;
+  }
+
+  private void applyTimeouts(RequestConfig.Builder requestConfigBuilder) {
+    if (socketTimeout > -1) {
+      requestConfigBuilder.setSocketTimeout((int) socketTimeoutUnits.toMillis(socketTimeout));
+    }
+    if (establishConnectionTimeout > -1) {
+      requestConfigBuilder
+        .setConnectTimeout((int) establishConnectionTimeoutUnits.toMillis(establishConnectionTimeout));
+    }
+    if (connectionCheckoutTimeoutMs > -1) {
+      requestConfigBuilder.setConnectionRequestTimeout(connectionCheckoutTimeoutMs);
+    }
+  }
 }
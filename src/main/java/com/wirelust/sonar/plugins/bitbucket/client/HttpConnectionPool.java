@@ -0,0 +1,133 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+import com.wirelust.sonar.plugins.bitbucket.DaemonThreadFactory;
+import com.wirelust.sonar.plugins.bitbucket.client.exception.ClientException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.BrowserCompatHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection pool shared by every Bitbucket client of an analysis, so TCP connections and TLS sessions
+ * are reused between the auth client and the v2 client instead of being opened again for each of them.
+ */
+public class HttpConnectionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HttpConnectionPool.class);
+
+  static final long KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final ScheduledExecutorService evictor;
+  private final SSLContext sslContext;
+  private final X509HostnameVerifier hostnameVerifier = new BrowserCompatHostnameVerifier();
+
+  private final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+    // honor the Keep-Alive header when the server sends one, otherwise keep connections for a while
+    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+    return keepAlive > 0 ? keepAlive : KEEP_ALIVE_MILLIS;
+  };
+
+  public HttpConnectionPool(int maxTotal, int maxPerRoute) {
+    try {
+      // a single SSL context means a single session cache, so TLS sessions are resumed on new connections
+      sslContext = SSLContext.getInstance(SSLConnectionSocketFactory.TLS);
+      sslContext.init(null, null, null);
+    } catch (Exception e) {
+      throw new ClientException(e);
+    }
+
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+      .register("http", PlainConnectionSocketFactory.getSocketFactory())
+      .register("https", new SSLConnectionSocketFactory(sslContext, hostnameVerifier))
+      .build();
+
+    connectionManager = new PoolingHttpClientConnectionManager(registry);
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+    evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bitbucket-http-evictor"));
+    evictor.scheduleWithFixedDelay(this::evictConnections,
+      IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Build an HTTP client on top of the shared pool. Closing it is not needed, the pool outlives it.
+   */
+  public CloseableHttpClient createHttpClient(RequestConfig requestConfig) {
+    return HttpClientBuilder.create()
+      .setConnectionManager(connectionManager)
+      .setKeepAliveStrategy(keepAliveStrategy)
+      // connections are not bound to a user principal, any request may reuse any pooled connection
+      .disableConnectionState()
+      .setDefaultRequestConfig(requestConfig)
+      .setRedirectStrategy(new LaxRedirectStrategy())
+      .build();
+  }
+
+  void evictConnections() {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public PoolStats getTotalStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  public void logStatistics() {
+    PoolStats stats = getTotalStats();
+    LOGGER.info("bitbucket connection pool: leased:{} pending:{} available:{} max:{}",
+      stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+  }
+
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  public X509HostnameVerifier getHostnameVerifier() {
+    return hostnameVerifier;
+  }
+
+  public void close() {
+    evictor.shutdownNow();
+    connectionManager.shutdown();
+  }
+}
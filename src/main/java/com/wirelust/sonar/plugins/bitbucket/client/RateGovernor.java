@@ -0,0 +1,147 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket pacing the requests of a Bitbucket account.
+ *
+ * Requests are never refused, a caller over the rate is told how long to wait instead. When Bitbucket says
+ * the account is throttled, every request waits until the server's delay is over.
+ * Bitbucket limits accounts, not connections, so there is one governor per account shared by every client.
+ */
+public class RateGovernor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RateGovernor.class);
+  private static final ConcurrentMap<String, RateGovernor> GOVERNORS_BY_ACCOUNT = new ConcurrentHashMap<>();
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private double permitsPerSecond;
+  private int burst;
+  private double tokens;
+  private long lastRefill;
+  private long pausedUntil;
+
+  private long requests;
+  private long waitedRequests;
+  private long waitNanos;
+  private long throttled;
+
+  /**
+   * @param permitsPerSecond requests allowed per second on average, 0 or less to only honor server delays
+   * @param burst requests that may be sent at once after a quiet period
+   */
+  public RateGovernor(double permitsPerSecond, int burst) {
+    configure(permitsPerSecond, burst);
+    tokens = this.burst;
+    lastRefill = System.nanoTime();
+    pausedUntil = lastRefill;
+  }
+
+  /**
+   * @return the governor shared by every client of the account, updated to the given rate
+   */
+  public static RateGovernor forAccount(String account, double permitsPerSecond, int burst) {
+    RateGovernor governor = GOVERNORS_BY_ACCOUNT.computeIfAbsent(account,
+      key -> new RateGovernor(permitsPerSecond, burst));
+    governor.configure(permitsPerSecond, burst);
+    return governor;
+  }
+
+  public final synchronized void configure(double permitsPerSecond, int burst) {
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = Math.max(1, burst);
+    tokens = Math.min(tokens, this.burst);
+  }
+
+  /**
+   * Take a token for one request.
+   * @return nanoseconds the caller must wait before sending it
+   */
+  public synchronized long reserve() {
+    long now = System.nanoTime();
+    requests++;
+
+    long start = pausedUntil - now > 0 ? pausedUntil : now;
+    if (permitsPerSecond > 0) {
+      tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerSecond / NANOS_PER_SECOND);
+      lastRefill = now;
+      if (tokens < 1) {
+        long available = now + (long) ((1 - tokens) * NANOS_PER_SECOND / permitsPerSecond);
+        if (available - start > 0) {
+          start = available;
+        }
+      }
+      // tokens may go negative, later callers then wait behind this one
+      tokens -= 1;
+    }
+
+    long wait = start - now;
+    if (wait > 0) {
+      waitedRequests++;
+      waitNanos += wait;
+    }
+    return wait;
+  }
+
+  /**
+   * Take a token, sleeping as long as needed.
+   */
+  public void acquire() throws InterruptedException {
+    long wait = reserve();
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Hold every request of the account, used when Bitbucket answers that it is throttling us.
+   */
+  public synchronized void pause(long millis) {
+    throttled++;
+    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+    }
+  }
+
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  public synchronized long getThrottled() {
+    return throttled;
+  }
+
+  public synchronized long getWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+  }
+
+  public synchronized void logStatistics() {
+    LOGGER.info("bitbucket rate governor: requests:{} throttled:{} waited:{} wait:{}ms",
+      requests, throttled, waitedRequests, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+  }
+}
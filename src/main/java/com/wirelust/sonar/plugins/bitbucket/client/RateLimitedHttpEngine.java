@@ -0,0 +1,210 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Response;
+
+import com.wirelust.sonar.plugins.bitbucket.DaemonThreadFactory;
+import org.apache.http.client.utils.DateUtils;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Engine decorator pacing requests with a {@link RateGovernor}.
+ *
+ * Throttled requests (429, or 503 with a Retry-After) are sent again once the server's delay is over instead of
+ * failing, and an exhausted X-RateLimit quota holds the next requests until it resets.
+ */
+public class RateLimitedHttpEngine implements ClientHttpEngine {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RateLimitedHttpEngine.class);
+
+  static final int TOO_MANY_REQUESTS = 429;
+  static final int MAX_RETRIES = 5;
+  static final long DEFAULT_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  static final long MAX_PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  static final String RETRY_AFTER = "Retry-After";
+  static final String RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+  static final String RATE_LIMIT_RESET = "X-RateLimit-Reset";
+
+  private final ClientHttpEngine delegate;
+  private final RateGovernor governor;
+
+  public RateLimitedHttpEngine(ClientHttpEngine delegate, RateGovernor governor) {
+    this.delegate = delegate;
+    this.governor = governor;
+  }
+
+  @Override
+  public SSLContext getSslContext() {
+    return delegate.getSslContext();
+  }
+
+  @Override
+  public HostnameVerifier getHostnameVerifier() {
+    return delegate.getHostnameVerifier();
+  }
+
+  @Override
+  public ClientResponse invoke(ClientInvocation request) {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        governor.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ProcessingException(e);
+      }
+
+      ClientResponse response = delegate.invoke(request);
+      long retryMillis = retryMillis(response, attempt);
+      if (retryMillis < 0) {
+        return response;
+      }
+      response.close();
+      governor.pause(retryMillis);
+    }
+  }
+
+  /**
+   * @return true when {@link #submit} does not block, see {@link AsyncHttpClientEngine}
+   */
+  public boolean isAsync() {
+    return delegate instanceof AsyncHttpClientEngine;
+  }
+
+  /**
+   * Non-blocking counterpart of {@link #invoke}, waits are scheduled rather than slept.
+   */
+  public CompletableFuture<Response> submit(ClientInvocation request) {
+    return AsyncHttpClientEngine.submit(request, invocation -> execute(invocation, 0));
+  }
+
+  private CompletableFuture<ClientResponse> execute(ClientInvocation request, int attempt) {
+    AsyncHttpClientEngine asyncDelegate = (AsyncHttpClientEngine) delegate;
+    return delay(governor.reserve())
+      .thenCompose(v -> asyncDelegate.execute(request))
+      .thenCompose(response -> {
+        long retryMillis = retryMillis(response, attempt);
+        if (retryMillis < 0) {
+          return CompletableFuture.completedFuture(response);
+        }
+        response.close();
+        governor.pause(retryMillis);
+        return execute(request, attempt + 1);
+      });
+  }
+
+  /**
+   * Look at the rate limit headers of a response.
+   * @return how long to wait before sending the request again, or -1 to keep the response
+   */
+  private long retryMillis(ClientResponse response, int attempt) {
+    int status = response.getStatus();
+    Long retryAfter = retryAfterMillis(response.getHeaderString(RETRY_AFTER));
+
+    if (status == TOO_MANY_REQUESTS
+      || (status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode() && retryAfter != null)) {
+      if (attempt >= MAX_RETRIES) {
+        LOGGER.warn("bitbucket still throttling after {} retries: {}", attempt, status);
+        return -1;
+      }
+      long wait = retryAfter != null ? retryAfter : DEFAULT_RETRY_MILLIS << attempt;
+      wait = Math.min(wait, MAX_PAUSE_MILLIS);
+      LOGGER.info("bitbucket throttled the request ({}), retrying in {}ms", status, wait);
+      return wait;
+    }
+
+    if ("0".equals(response.getHeaderString(RATE_LIMIT_REMAINING))) {
+      Long resetMillis = resetMillis(response.getHeaderString(RATE_LIMIT_RESET));
+      if (resetMillis != null) {
+        LOGGER.info("bitbucket rate limit reached, holding requests for {}ms", resetMillis);
+        governor.pause(Math.min(resetMillis, MAX_PAUSE_MILLIS));
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param value delay in seconds or HTTP date
+   */
+  @CheckForNull
+  static Long retryAfterMillis(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value.trim());
+      return date == null ? null : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @param value epoch seconds at which the quota resets
+   */
+  @CheckForNull
+  static Long resetMillis(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())) - System.currentTimeMillis());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static CompletableFuture<Void> delay(long nanos) {
+    if (nanos <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    Scheduler.INSTANCE.schedule(() -> future.complete(null), nanos, TimeUnit.NANOSECONDS);
+    return future;
+  }
+
+  public RateGovernor getGovernor() {
+    return governor;
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  private static class Scheduler {
+    static final ScheduledExecutorService INSTANCE =
+      Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bitbucket-throttle"));
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import com.wirelust.sonar.plugins.bitbucket.Digests;
+import com.wirelust.sonar.plugins.bitbucket.LockedPropertiesFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bodies of Bitbucket GET responses kept on disk with their validators, see {@link CachingHttpEngine}.
+ *
+ * Each entry is one file, the validators first and then the body, written to a temporary file and moved in place
+ * so readers never see half an entry. Entries unused for longer than the maximum age are deleted, and the least
+ * recently used ones go when the directory grows over the maximum size.
+ *
+ * The directory is only listed on the first store and when the size counted since goes over the maximum.
+ * Responses can hold private repository content, so the directory and its files are only readable by their owner.
+ */
+public class ResponseCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+
+  static final int FORMAT_VERSION = 1;
+  static final String ENTRY_SUFFIX = ".entry";
+  static final String TEMP_SUFFIX = ".tmp";
+
+  private static final Object JVM_LOCK = new Object();
+
+  private final File directory;
+  private final String namespace;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+
+  private final AtomicLong revalidated = new AtomicLong();
+  private final AtomicLong stored = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+
+  // bytes in the directory, guarded by JVM_LOCK, -1 until it was listed
+  private long size = -1;
+
+  /**
+   * @param namespace keeps the entries of different accounts apart, the login rather than the token
+   *                  since tokens change between analyses
+   */
+  public ResponseCache(File directory, String namespace, long maxBytes, long maxAgeMillis) {
+    this.directory = directory;
+    this.namespace = namespace;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  String key(String uri, @Nullable String accept) {
+    return Digests.sha256Hex(namespace + "\n" + uri + "\n" + accept);
+  }
+
+  @CheckForNull
+  Entry load(String key, String uri) {
+    File file = new File(directory, key + ENTRY_SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      Entry entry = Entry.read(in, file);
+      return uri.equals(entry.uri) ? entry : null;
+    } catch (IOException e) {
+      LOGGER.debug("unable to read cached response:{}", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Start writing an entry, the body is added as it is read by the caller.
+   * @return the writer, or null when the cache directory can't be written
+   */
+  @CheckForNull
+  Writer writer(String key, String uri, @Nullable String etag, @Nullable String lastModified,
+                @Nullable String contentType) {
+    synchronized (JVM_LOCK) {
+      if (size < 0) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          LOGGER.warn("unable to create response cache directory:{}", directory);
+          return null;
+        }
+        LockedPropertiesFile.restrictToOwner(directory);
+        evict();
+      }
+    }
+    Entry entry = new Entry(uri, etag, lastModified, contentType, new File(directory, key + ENTRY_SUFFIX));
+    try {
+      // created readable by the owner only
+      File temp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX).toFile();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      entry.writeHeader(out);
+      return new Writer(entry, temp, out);
+    } catch (IOException e) {
+      LOGGER.warn("unable to write response cache:{}", directory, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return false when a body of this length would not fit in the cache anyway
+   */
+  boolean fits(long length) {
+    return length <= maxBytes;
+  }
+
+  void revalidated(Entry entry) {
+    revalidated.incrementAndGet();
+    // eviction goes by last use
+    if (!entry.file.setLastModified(System.currentTimeMillis())) {
+      LOGGER.debug("unable to touch cached response:{}", entry.file);
+    }
+  }
+
+  /**
+   * Count a stored entry, and list the directory to delete the least recently used entries once it is too large.
+   * @param added bytes the directory grew by
+   */
+  private void added(long added) {
+    synchronized (JVM_LOCK) {
+      size += added;
+      if (size > maxBytes) {
+        evict();
+      }
+    }
+  }
+
+  void evict() {
+    synchronized (JVM_LOCK) {
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX) || name.endsWith(TEMP_SUFFIX));
+      if (files == null) {
+        size = 0;
+        return;
+      }
+      Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+
+      long oldest = System.currentTimeMillis() - maxAgeMillis;
+      long total = 0;
+      long kept = 0;
+      for (File file : files) {
+        boolean entry = file.getName().endsWith(ENTRY_SUFFIX);
+        long length = file.length();
+        total += length;
+        // temporary files are only kept while they are written, a stale one is left from a crash
+        if ((entry && total > maxBytes) || file.lastModified() < oldest) {
+          delete(file);
+          evicted.incrementAndGet();
+        } else if (entry) {
+          kept += length;
+        }
+      }
+      size = kept;
+    }
+  }
+
+  private static void delete(File file) {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      LOGGER.debug("unable to delete cached response:{}", file, e);
+    }
+  }
+
+  public void logStatistics() {
+    LOGGER.info("response cache: revalidated:{}, stored:{}, evicted:{}", revalidated.get(), stored.get(),
+      evicted.get());
+  }
+
+  long getRevalidated() {
+    return revalidated.get();
+  }
+
+  long getStored() {
+    return stored.get();
+  }
+
+  /**
+   * Validators of a cached response and the file holding its body.
+   */
+  static class Entry {
+
+    final String uri;
+    final String etag;
+    final String lastModified;
+    final String contentType;
+    final File file;
+
+    Entry(String uri, @Nullable String etag, @Nullable String lastModified, @Nullable String contentType,
+          File file) {
+      this.uri = uri;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.contentType = contentType;
+      this.file = file;
+    }
+
+    static Entry read(DataInputStream in, File file) throws IOException {
+      if (in.readInt() != FORMAT_VERSION) {
+        throw new IOException("unknown cache format");
+      }
+      return new Entry(in.readUTF(), emptyToNull(in.readUTF()), emptyToNull(in.readUTF()),
+        emptyToNull(in.readUTF()), file);
+    }
+
+    void writeHeader(DataOutputStream out) throws IOException {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(uri);
+      out.writeUTF(etag == null ? "" : etag);
+      out.writeUTF(lastModified == null ? "" : lastModified);
+      out.writeUTF(contentType == null ? "" : contentType);
+    }
+
+    /**
+     * @return the body, the caller closes it
+     */
+    InputStream openBody() throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        read(in, file);
+        return in;
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    private static String emptyToNull(String value) {
+      return value.isEmpty() ? null : value;
+    }
+  }
+
+  /**
+   * Entry being written, only moved in place once the whole body went through.
+   */
+  class Writer {
+
+    private final Entry entry;
+    private final File temp;
+    private final OutputStream out;
+    private long written;
+    private boolean failed;
+
+    Writer(Entry entry, File temp, OutputStream out) {
+      this.entry = entry;
+      this.temp = temp;
+      this.out = out;
+    }
+
+    void write(byte[] buffer, int offset, int length) {
+      if (failed) {
+        return;
+      }
+      written += length;
+      if (!fits(written)) {
+        LOGGER.debug("response too large for the cache:{}", entry.uri);
+        failed = true;
+        return;
+      }
+      try {
+        out.write(buffer, offset, length);
+      } catch (IOException e) {
+        LOGGER.warn("unable to write cached response:{}", temp, e);
+        failed = true;
+      }
+    }
+
+    /**
+     * @param complete true when the body was read to the end, anything else is discarded
+     */
+    void close(boolean complete) {
+      try {
+        out.close();
+        if (complete && !failed) {
+          long replaced = entry.file.length();
+          Files.move(temp.toPath(), entry.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+          stored.incrementAndGet();
+          added(entry.file.length() - replaced);
+          return;
+        }
+      } catch (IOException e) {
+        LOGGER.warn("unable to store cached response:{}", entry.file, e);
+      }
+      delete(temp);
+    }
+  }
+}
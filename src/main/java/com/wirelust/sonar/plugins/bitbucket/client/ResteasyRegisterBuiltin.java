@@ -38,10 +38,41 @@ public class ResteasyRegisterBuiltin {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ResteasyRegisterBuiltin.class);
 
+  /**
+   * Written by the maven build from the resteasy service files, limited to the providers the Bitbucket client uses.
+   */
+  static final String PROVIDER_INDEX = "providers.idx";
+
   private ResteasyRegisterBuiltin() {
     // class should not be instantiated
   }
 
+  /**
+   * Register the providers listed in the build-time index, falling back to scanning the classpath when the index
+   * is missing, for instance when running from an IDE that skipped the maven build.
+   */
+  public static void registerProviders(ResteasyProviderFactory factory) throws IOException {
+    registerProviders(factory, ResteasyRegisterBuiltin.class.getResource(PROVIDER_INDEX));
+  }
+
+  static void registerProviders(ResteasyProviderFactory factory, URL index) throws IOException {
+    if (index == null) {
+      LOGGER.debug("no provider index, scanning the classpath");
+      registerDefaultProviders(factory);
+      return;
+    }
+
+    List<String> classes = new ArrayList<>();
+    addUrl(classes, index);
+    if (classes.isEmpty()) {
+      // a filter in the build matching nothing would otherwise leave the client without any reader
+      LOGGER.warn("provider index {} is empty, scanning the classpath", index);
+      registerDefaultProviders(factory);
+      return;
+    }
+    registerClasses(factory, classes);
+  }
+
   public static void registerDefaultProviders(ResteasyProviderFactory factory) throws IOException {
     Enumeration<URL> resources = ResteasyRegisterBuiltin.class.getClassLoader().getResources("META-INF/services/" +
       Providers.class.getName());
@@ -53,9 +84,13 @@ public class ResteasyRegisterBuiltin {
       addUrl(classes, url);
     }
 
+    registerClasses(factory, classes);
+  }
+
+  private static void registerClasses(ResteasyProviderFactory factory, List<String> classes) {
     for (String thisClass : classes) {
       try {
-        LOGGER.info("provider:{}", thisClass);
+        LOGGER.debug("provider:{}", thisClass);
         Class clazz = ResteasyRegisterBuiltin.class.getClassLoader().loadClass(thisClass);
         factory.registerProvider(clazz, true);
       } catch (NoClassDefFoundError e) {
@@ -0,0 +1,176 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import com.wirelust.bitbucket.client.representations.auth.OauthAccessToken;
+import com.wirelust.sonar.plugins.bitbucket.LockedPropertiesFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps OAuth tokens on disk between analyses, one file per client id and login.
+ *
+ * Files are locked while they are read or written so several scanners on the same agent can share them.
+ */
+public class TokenStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenStore.class);
+
+  private static final String KEY_ACCESS_TOKEN = "access_token";
+  private static final String KEY_REFRESH_TOKEN = "refresh_token";
+  private static final String KEY_EXPIRES_AT = "expires_at";
+  private static final String KEY_USERNAME = "username";
+
+  private final File directory;
+
+  public TokenStore(File directory) {
+    this.directory = directory;
+  }
+
+  @CheckForNull
+  public StoredToken load(@Nullable String clientId, String login) {
+    File file = tokenFile(clientId, login);
+    try {
+      Properties properties = LockedPropertiesFile.load(file);
+      return properties == null ? null : StoredToken.fromProperties(properties);
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.warn("unable to read cached bitbucket token:{}", file, e);
+      return null;
+    }
+  }
+
+  public void save(@Nullable String clientId, String login, StoredToken token) {
+    File file = tokenFile(clientId, login);
+    try {
+      LockedPropertiesFile.store(file, token.toProperties(), true);
+    } catch (IOException e) {
+      LOGGER.warn("unable to write cached bitbucket token:{}", file, e);
+    }
+  }
+
+  /**
+   * Forget the token of a login, for instance after Bitbucket rejected it.
+   */
+  public void delete(@Nullable String clientId, String login) {
+    File file = tokenFile(clientId, login);
+    try {
+      LockedPropertiesFile.delete(file);
+    } catch (IOException e) {
+      LOGGER.warn("unable to delete cached bitbucket token:{}", file, e);
+    }
+  }
+
+  File tokenFile(@Nullable String clientId, String login) {
+    return LockedPropertiesFile.file(directory, clientId + "\n" + login, ".token");
+  }
+
+  /**
+   * An access token with the instant it expires and the user it was issued to, when known.
+   */
+  public static class StoredToken {
+
+    private final String accessToken;
+    private final String refreshToken;
+    private final long expiresAt;
+    private final String username;
+
+    public StoredToken(@Nullable String accessToken, @Nullable String refreshToken, long expiresAt,
+                       @Nullable String username) {
+      this.accessToken = accessToken;
+      this.refreshToken = refreshToken;
+      this.expiresAt = expiresAt;
+      this.username = username;
+    }
+
+    public static StoredToken from(OauthAccessToken token, long now) {
+      Number expiresIn = token.getExpiresIn();
+      long expiresAt = now;
+      if (expiresIn != null) {
+        expiresAt += expiresIn.longValue() * 1000L;
+      }
+      return new StoredToken(token.getAccessToken(), token.getRefreshToken(), expiresAt, null);
+    }
+
+    static StoredToken fromProperties(Properties properties) {
+      String expiresAt = properties.getProperty(KEY_EXPIRES_AT);
+      if (expiresAt == null) {
+        throw new IllegalArgumentException("missing " + KEY_EXPIRES_AT);
+      }
+      return new StoredToken(
+        properties.getProperty(KEY_ACCESS_TOKEN),
+        properties.getProperty(KEY_REFRESH_TOKEN),
+        Long.parseLong(expiresAt),
+        properties.getProperty(KEY_USERNAME));
+    }
+
+    Properties toProperties() {
+      Properties properties = new Properties();
+      if (accessToken != null) {
+        properties.setProperty(KEY_ACCESS_TOKEN, accessToken);
+      }
+      if (refreshToken != null) {
+        properties.setProperty(KEY_REFRESH_TOKEN, refreshToken);
+      }
+      properties.setProperty(KEY_EXPIRES_AT, Long.toString(expiresAt));
+      if (username != null) {
+        properties.setProperty(KEY_USERNAME, username);
+      }
+      return properties;
+    }
+
+    public StoredToken withUsername(@Nullable String username) {
+      return new StoredToken(accessToken, refreshToken, expiresAt, username);
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @param marginMillis how long the token must still be valid for
+     * @return true if the token can be used without asking Bitbucket for a new one
+     */
+    public boolean isValid(long now, long marginMillis) {
+      return accessToken != null && expiresAt - marginMillis > now;
+    }
+
+    @CheckForNull
+    public String getAccessToken() {
+      return accessToken;
+    }
+
+    @CheckForNull
+    public String getRefreshToken() {
+      return refreshToken;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+
+    @CheckForNull
+    public String getUsername() {
+      return username;
+    }
+  }
+}
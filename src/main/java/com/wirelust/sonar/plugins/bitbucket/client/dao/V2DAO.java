@@ -19,12 +19,27 @@
  */
 package com.wirelust.sonar.plugins.bitbucket.client.dao;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.wirelust.bitbucket.client.BitbucketV2Client;
+import com.wirelust.bitbucket.client.representations.BuildStatus;
 import com.wirelust.bitbucket.client.representations.PullRequest;
 import com.wirelust.bitbucket.client.representations.v1.V1Comment;
 import com.wirelust.sonar.plugins.bitbucket.BitBucketPluginConfiguration;
+import com.wirelust.sonar.plugins.bitbucket.client.CommentPage;
+import com.wirelust.sonar.plugins.bitbucket.client.CommentPageParser;
+import com.wirelust.sonar.plugins.bitbucket.client.JacksonObjectMapper;
 
 /**
  * Date: 11-Jun-2016
@@ -33,12 +48,33 @@ import com.wirelust.sonar.plugins.bitbucket.BitBucketPluginConfiguration;
  */
 public class V2DAO {
 
+  static final String PULL_REQUEST_PATH = "2.0/repositories/{owner}/{repo}/pullrequests/{id}";
+  static final String COMMENTS_PATH = PULL_REQUEST_PATH + "/comments";
+  static final String COMMENT_FIELDS = "size,page,pagelen,next,"
+    + "values.id,values.user.username,values.inline.path,values.inline.to,values.content.raw";
+  static final int MAX_COMMENT_PAGELEN = 100;
+
+  public static final String COMMENTS_V1_PATH = "1.0/repositories/{owner}/{repo}/pullrequests/{id}/comments";
+  public static final String COMMENT_V1_PATH = COMMENTS_V1_PATH + "/{commentId}";
+  public static final String BUILD_STATUS_PATH = "2.0/repositories/{owner}/{repo}/commit/{revision}/statuses/build";
+
   BitbucketV2Client client;
   BitBucketPluginConfiguration config;
+  CommentPageParser commentPageParser = new CommentPageParser();
+  private final Function<Invocation, CompletableFuture<Response>> sender;
 
   public V2DAO(BitbucketV2Client client, BitBucketPluginConfiguration config) {
+    this(client, config, V2DAO::invoke);
+  }
+
+  /**
+   * @param sender sends the invocations the asynchronous calls build, see ApiClientFactory#submit
+   */
+  public V2DAO(BitbucketV2Client client, BitBucketPluginConfiguration config,
+               Function<Invocation, CompletableFuture<Response>> sender) {
     this.client = client;
     this.config = config;
+    this.sender = sender;
   }
 
   public V1Comment createOrUpdatePullRequestComment(final PullRequest pullRequest,
@@ -47,13 +83,7 @@ public class V2DAO {
                                                   final String fileName,
                                                   final Integer line) {
 
-      V1Comment comment = new V1Comment();
-      if (id != null) {
-        comment.setCommentId(id);
-      }
-      comment.setContent(body);
-      comment.setFilename(fileName);
-      comment.setLineTo(line);
+      V1Comment comment = v1Comment(id, body, fileName, line);
       Response response;
       if (id == null) {
         response = client.postPullRequestComment(
@@ -62,34 +92,295 @@ public class V2DAO {
         response = client.putPullRequestComment(
           config.repositoryOwner(), config.repository(), pullRequest.getId(), id, comment);
       }
+      return readPostedComment(response, comment, fileName);
+  }
 
-      if (response == null || response.getStatus() != Response.Status.OK.getStatusCode()) {
-        String responseBody = null;
-        int responseStatus = 0;
-        if (response != null) {
-          responseStatus = response.getStatus();
-          responseBody = response.readEntity(String.class);
+  /**
+   * Same as {@link #createOrUpdatePullRequestComment} without waiting for Bitbucket.
+   * @param target v2 target of the authenticated client, the request is built from it and given to the sender
+   */
+  public CompletableFuture<V1Comment> createOrUpdatePullRequestCommentAsync(final WebTarget target,
+                                                                          final PullRequest pullRequest,
+                                                                          final Long id,
+                                                                          final String body,
+                                                                          final String fileName,
+                                                                          final Integer line) {
+    V1Comment comment = v1Comment(id, body, fileName, line);
+    WebTarget commentTarget = id == null
+      ? target.path(COMMENTS_V1_PATH)
+      : target.path(COMMENT_V1_PATH).resolveTemplate("commentId", id);
+    Invocation invocation = resolvePullRequest(commentTarget, pullRequest.getId())
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .build(id == null ? HttpMethod.POST : HttpMethod.PUT, Entity.json(comment));
 
-          response.close();
-        }
+    return sender.apply(invocation).thenApply(response -> readPostedComment(response, comment, fileName));
+  }
+
+  private static V1Comment v1Comment(Long id, String body, String fileName, Integer line) {
+    V1Comment comment = new V1Comment();
+    if (id != null) {
+      comment.setCommentId(id);
+    }
+    comment.setContent(body);
+    comment.setFilename(fileName);
+    comment.setLineTo(line);
+    return comment;
+  }
+
+  private static V1Comment readPostedComment(Response response, V1Comment comment, String fileName) {
+    if (response == null || response.getStatus() != Response.Status.OK.getStatusCode()) {
+      String responseBody = null;
+      int responseStatus = 0;
+      if (response != null) {
+        responseStatus = response.getStatus();
+        responseBody = response.readEntity(String.class);
+
+        response.close();
+      }
+      throw new IllegalStateException(
+        String.format("Unable to update review comment file:%s, expected:%d, got:%d, body:%s",
+          fileName, 200, responseStatus, responseBody));
+    }
+
+    Long postedId = readCommentId(response);
+    if (postedId != null) {
+      comment.setCommentId(postedId);
+    }
+    response.close();
+    return comment;
+  }
+
+  /**
+   * @return the id of the comment a v1 comment call answered with, null when the response has none
+   */
+  @CheckForNull
+  public static Long readCommentId(Response response) {
+    try {
+      V1Comment posted = response.readEntity(V1Comment.class);
+      return posted == null ? null : posted.getCommentId();
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return Bitbucket query matching the items of one user, quotes and backslashes in the name escaped
+   */
+  static String userFilter(String username) {
+    return "user.username=\"" + username.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Count the comments written by one user, which is one small call whatever the size of the pull request.
+   * @param target v2 target of the authenticated client
+   * @return the count, or null when Bitbucket can't answer it
+   */
+  @CheckForNull
+  public Integer countUserPullRequestComments(final WebTarget target,
+                                              final long pullRequestId,
+                                              final String username) {
+    Response response = target.path(COMMENTS_PATH)
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("id", pullRequestId)
+      .queryParam("q", userFilter(username))
+      .queryParam("fields", "size")
+      .queryParam("pagelen", 1)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .get();
+
+    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+      response.close();
+      return null;
+    }
+    return readCommentPage(response, username, 1).getSize();
+  }
+
+  /**
+   * Read from the participants of the pull request whether a user approves it.
+   * @param target v2 target of the authenticated client
+   * @throws IllegalStateException when Bitbucket does not answer it
+   */
+  public boolean isApprovedBy(final WebTarget target, final long pullRequestId, final String username) {
+    Response response = target.path(PULL_REQUEST_PATH)
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("id", pullRequestId)
+      .queryParam("fields", "participants.user.username,participants.approved")
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .get();
+
+    try {
+      if (response.getStatus() != Response.Status.OK.getStatusCode()) {
         throw new IllegalStateException(
-          String.format("Unable to update review comment file:%s, expected:%d, got:%d, body:%s",
-            fileName, 200, responseStatus, responseBody));
+          String.format("Unable to load pull request participants, expected:%d, got:%d", 200, response.getStatus()));
+      }
+      try (InputStream input = response.readEntity(InputStream.class)) {
+        for (JsonNode participant : JacksonObjectMapper.get().readTree(input).path("participants")) {
+          if (username.equals(participant.path("user").path("username").asText())) {
+            return participant.path("approved").asBoolean(false);
+          }
+        }
+        return false;
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read pull request participants", e);
       }
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Load a page of the comments written by one user, with only the fields we read, as large as Bitbucket allows.
+   * @param target v2 target of the authenticated client
+   * @return the page, or null when Bitbucket rejects the query and comments must be filtered on our side
+   */
+  @CheckForNull
+  public CommentPage getUserPullRequestComments(final WebTarget target,
+                                                final long pullRequestId,
+                                                final String username,
+                                                final int page) {
+    Response response = target.path(COMMENTS_PATH)
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("id", pullRequestId)
+      .queryParam("q", userFilter(username))
+      .queryParam("fields", COMMENT_FIELDS)
+      .queryParam("pagelen", MAX_COMMENT_PAGELEN)
+      .queryParam("page", page)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .get();
+
+    if (response.getStatus() == Response.Status.BAD_REQUEST.getStatusCode()) {
+      response.close();
+      return null;
+    }
+    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+      response.close();
+      throw new IllegalStateException(
+        String.format("Unable to load pull request comments page:%d, expected:%d, got:%d",
+          page, 200, response.getStatus()));
+    }
+    return readCommentPage(response, username, page);
+  }
 
+  /**
+   * Load a page of all the comments of the pull request, keeping those written by one user.
+   */
+  public CommentPage getPullRequestComments(final long pullRequestId, final String username, final int page) {
+    Response response = client.getPullRequestCommentsWithPage(
+      config.repositoryOwner(), config.repository(), pullRequestId, page);
+    return readCommentPage(response, username, page);
+  }
+
+  private CommentPage readCommentPage(Response response, String username, int page) {
+    try (InputStream input = response.readEntity(InputStream.class)) {
+      return commentPageParser.parse(input, username);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read pull request comments page:" + page, e);
+    } finally {
       response.close();
-      return comment;
+    }
+  }
+
+  /**
+   * Same as {@link #deletePullRequestComment} without waiting for Bitbucket.
+   * @param target v2 target of the authenticated client, the request is built from it and given to the sender
+   */
+  public CompletableFuture<Void> deletePullRequestCommentAsync(final WebTarget target,
+                                                              final PullRequest pullRequest,
+                                                              final Long commentId) {
+    Invocation invocation = resolvePullRequest(target.path(COMMENT_V1_PATH), pullRequest.getId())
+      .resolveTemplate("commentId", commentId)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .build(HttpMethod.DELETE);
+
+    return sender.apply(invocation).thenAccept(response -> {
+      response.close();
+      checkDeleted(response, commentId);
+    });
   }
 
   public void deletePullRequestComment(final PullRequest pullRequest, final Long commentId) {
       Response response = client.deletePullRequestComment(
         config.repositoryOwner(), config.repository(), pullRequest.getId(), commentId);
       response.close();
+      checkDeleted(response, commentId);
+  }
 
-      if (response.getStatus() != Response.Status.OK.getStatusCode()) {
-        throw new IllegalStateException(
-          String.format("Unable to delete review comment id:%d, expected:%d, got:%d",
-            commentId, 200, response.getStatus()));
+  private static void checkDeleted(Response response, Long commentId) {
+    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+      throw new IllegalStateException(
+        String.format("Unable to delete review comment id:%d, expected:%d, got:%d",
+          commentId, 200, response.getStatus()));
+    }
+  }
+
+  /**
+   * Post a build status of a commit without waiting for Bitbucket.
+   * @param target v2 target of the authenticated client, the request is built from it and given to the sender
+   * @return the response, which the caller must close
+   */
+  public CompletableFuture<Response> postBuildStatusAsync(final WebTarget target,
+                                                          final String commitHash,
+                                                          final BuildStatus buildStatus) {
+    Invocation invocation = target.path(BUILD_STATUS_PATH)
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("revision", commitHash)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .build(HttpMethod.POST, Entity.json(buildStatus));
+
+    return sender.apply(invocation);
+  }
+
+  /**
+   * Read the build status a commit has for one key, without waiting for Bitbucket.
+   * @param target v2 target of the authenticated client, the request is built from it and given to the sender
+   * @return the status, null when the commit has no status for that key; the future fails when Bitbucket
+   * does not answer it
+   */
+  public CompletableFuture<BuildStatus> getBuildStatusAsync(final WebTarget target,
+                                                            final String commitHash,
+                                                            final String key) {
+    Invocation invocation = target.path(BUILD_STATUS_PATH + "/{key}")
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("revision", commitHash)
+      .resolveTemplate("key", key)
+      .request(MediaType.APPLICATION_JSON_TYPE)
+      .build(HttpMethod.GET);
+
+    return sender.apply(invocation).thenApply(response -> {
+      try {
+        if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+          return null;
+        }
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+          throw new IllegalStateException(
+            String.format("Unable to load build status %s, expected:%d, got:%d", key, 200, response.getStatus()));
+        }
+        return response.readEntity(BuildStatus.class);
+      } finally {
+        response.close();
       }
+    });
+  }
+
+  private WebTarget resolvePullRequest(WebTarget target, long pullRequestId) {
+    return target
+      .resolveTemplate("owner", config.repositoryOwner())
+      .resolveTemplate("repo", config.repository())
+      .resolveTemplate("id", pullRequestId);
+  }
+
+  private static CompletableFuture<Response> invoke(Invocation invocation) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    try {
+      future.complete(invocation.invoke());
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
   }
 }
@@ -19,6 +19,8 @@
  */
 package com.wirelust.sonar.plugins.bitbucket;
 
+import java.io.File;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.sonar.api.CoreProperties;
@@ -85,6 +87,12 @@ public class BitBucketPluginConfigurationTest {
     settings.setProperty(BitBucketPlugin.BITBUCKET_PULL_REQUEST, "3");
     assertThat(config.pullRequestNumber()).isEqualTo(3);
     assertThat(config.isEnabled()).isTrue();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_PULL_REQUEST, "3, 5,3");
+    assertThat(config.pullRequestNumber()).isEqualTo(3);
+    assertThat(config.pullRequestNumbers()).containsExactly(3, 5);
+    assertThat(config.pullRequestParallelism()).isEqualTo(2);
+    settings.setProperty(BitBucketPlugin.BITBUCKET_PULL_REQUEST_PARALLELISM, "0");
+    assertThat(config.pullRequestParallelism()).isEqualTo(1);
 
     assertThat(config.endpoint()).isEqualTo("https://bitbucket.org/api");
     settings.setProperty(BitBucketPlugin.BITBUCKET_ENDPOINT, "http://myprivate-endpoint");
@@ -114,4 +122,94 @@ public class BitBucketPluginConfigurationTest {
     settings.setProperty(BitBucketPlugin.BITBUCKET_CI_URL, "ci_url");
     assertEquals("ci_url", config.ciURL());
   }
+
+  @Test
+  public void shouldBeAbleToDefaultCacheDir() {
+    assertThat(config.tokenCacheEnabled()).isFalse();
+    assertEquals(new File(System.getProperty("user.home"), BitBucketPlugin.DEFAULT_CACHE_DIR), config.cacheDir());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_TOKEN_CACHE, "true");
+    settings.setProperty(BitBucketPlugin.BITBUCKET_CACHE_DIR, "/tmp/bitbucket");
+    assertThat(config.tokenCacheEnabled()).isTrue();
+    assertEquals(new File("/tmp/bitbucket"), config.cacheDir());
+  }
+
+  @Test
+  public void shouldBeAbleToConfigureTokenExpiryMargin() {
+    assertEquals(BitBucketPlugin.DEFAULT_TOKEN_CACHE_MARGIN * 60L * 1000L, config.tokenExpiryMarginMillis());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_TOKEN_CACHE_MARGIN, "0");
+    assertEquals(BitBucketPlugin.DEFAULT_TOKEN_CACHE_MARGIN * 60L * 1000L, config.tokenExpiryMarginMillis());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_TOKEN_CACHE_MARGIN, "90");
+    assertEquals(90L * 60L * 1000L, config.tokenExpiryMarginMillis());
+  }
+
+  @Test
+  public void shouldBeAbleToDefaultConnectionLimits() {
+    assertEquals(BitBucketPlugin.DEFAULT_MAX_CONNECTIONS, config.maxConnections());
+    assertEquals(BitBucketPlugin.DEFAULT_MAX_CONNECTIONS_PER_ROUTE, config.maxConnectionsPerRoute());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS, "0");
+    assertEquals(BitBucketPlugin.DEFAULT_MAX_CONNECTIONS, config.maxConnections());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS, "50");
+    settings.setProperty(BitBucketPlugin.BITBUCKET_MAX_CONNECTIONS_PER_ROUTE, "5");
+    assertEquals(50, config.maxConnections());
+    assertEquals(5, config.maxConnectionsPerRoute());
+  }
+
+  @Test
+  public void shouldKeepCommentParallelismPositive() {
+    assertEquals(BitBucketPlugin.DEFAULT_COMMENT_PARALLELISM, config.commentParallelism());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM, "0");
+    assertEquals(1, config.commentParallelism());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM, "16");
+    assertEquals(16, config.commentParallelism());
+  }
+
+  @Test
+  public void shouldBeAbleToConfigureHttpCache() {
+    assertThat(config.httpCacheEnabled()).isFalse();
+    assertEquals(BitBucketPlugin.DEFAULT_HTTP_CACHE_MAX_SIZE * 1024L * 1024L, config.httpCacheMaxBytes());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_CACHE, "true");
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_SIZE, "2");
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_CACHE_MAX_AGE, "1");
+    assertThat(config.httpCacheEnabled()).isTrue();
+    assertEquals(2L * 1024L * 1024L, config.httpCacheMaxBytes());
+    assertEquals(24L * 60L * 60L * 1000L, config.httpCacheMaxAgeMillis());
+  }
+
+  @Test
+  public void shouldBeAbleToConfigureRateLimit() {
+    assertThat(config.requestsPerSecond()).isEqualTo(BitBucketPlugin.DEFAULT_RATE_LIMIT);
+    assertEquals(BitBucketPlugin.DEFAULT_RATE_LIMIT_BURST, config.requestBurst());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_RATE_LIMIT, "0.5");
+    settings.setProperty(BitBucketPlugin.BITBUCKET_RATE_LIMIT_BURST, "3");
+    assertThat(config.requestsPerSecond()).isEqualTo(0.5);
+    assertEquals(3, config.requestBurst());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_RATE_LIMIT, "-1");
+    assertThat(config.requestsPerSecond()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldDefaultToNoPrefetch() {
+    assertThat(config.prefetchEnabled()).isFalse();
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_PREFETCH, "true");
+    assertThat(config.prefetchEnabled()).isTrue();
+  }
+
+  @Test
+  public void shouldDefaultToBlockingHttpEngine() {
+    assertThat(config.asyncHttpEngine()).isFalse();
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_ENGINE, BitBucketPlugin.HTTP_ENGINE_ASYNC);
+    assertThat(config.asyncHttpEngine()).isTrue();
+  }
 }
@@ -0,0 +1,142 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class BuildStatusPublisherTest {
+
+  private final Queue<Runnable> tasks = new ArrayDeque<>();
+  private final List<BuildStatus.State> sent = new ArrayList<>();
+
+  private CompletableFuture<?> send(BuildStatus.State state) {
+    sent.add(state);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Test
+  public void shouldOnlySendLastQueuedStatus() {
+    BuildStatusPublisher publisher = new BuildStatusPublisher(tasks::add, this::send);
+
+    publisher.submit(BuildStatus.State.INPROGRESS);
+    publisher.submit(BuildStatus.State.FAILED);
+    assertThat(publisher.await(0, TimeUnit.MILLISECONDS)).isFalse();
+
+    runTasks();
+
+    assertThat(sent).containsExactly(BuildStatus.State.FAILED);
+    assertThat(publisher.getSent()).isEqualTo(1);
+    assertThat(publisher.getCoalesced()).isEqualTo(1);
+    assertThat(publisher.await(0, TimeUnit.MILLISECONDS)).isTrue();
+  }
+
+  @Test
+  public void shouldSendStatusSubmittedWhileSending() {
+    List<BuildStatus.State> order = new ArrayList<>();
+    BuildStatusPublisher[] publisher = new BuildStatusPublisher[1];
+    publisher[0] = new BuildStatusPublisher(tasks::add, state -> {
+      order.add(state);
+      if (state == BuildStatus.State.INPROGRESS) {
+        publisher[0].submit(BuildStatus.State.SUCCESSFUL);
+      }
+      return CompletableFuture.completedFuture(null);
+    });
+
+    publisher[0].submit(BuildStatus.State.INPROGRESS);
+    runTasks();
+
+    assertThat(order).containsExactly(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+    assertThat(publisher[0].getCoalesced()).isZero();
+  }
+
+  @Test
+  public void shouldReportFailureOfLastStatus() {
+    BuildStatusPublisher publisher = new BuildStatusPublisher(Runnable::run, state -> {
+      if (state == BuildStatus.State.FAILED) {
+        throw new IllegalStateException("refused");
+      }
+      return CompletableFuture.completedFuture(null);
+    });
+
+    publisher.submit(BuildStatus.State.FAILED);
+    try {
+      publisher.await(1, TimeUnit.SECONDS);
+      fail("failure expected");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("refused");
+    }
+
+    publisher.submit(BuildStatus.State.SUCCESSFUL);
+    assertThat(publisher.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void shouldSendNextStatusOnceTheCallCompletes() {
+    List<CompletableFuture<Void>> calls = new ArrayList<>();
+    BuildStatusPublisher publisher = new BuildStatusPublisher(Runnable::run, state -> {
+      sent.add(state);
+      CompletableFuture<Void> call = new CompletableFuture<>();
+      calls.add(call);
+      return call;
+    });
+
+    publisher.submit(BuildStatus.State.INPROGRESS);
+    publisher.submit(BuildStatus.State.SUCCESSFUL);
+    assertThat(sent).containsExactly(BuildStatus.State.INPROGRESS);
+    assertThat(publisher.await(0, TimeUnit.MILLISECONDS)).isFalse();
+
+    calls.get(0).complete(null);
+    assertThat(sent).containsExactly(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+
+    calls.get(1).completeExceptionally(new IllegalStateException("refused"));
+    try {
+      publisher.await(0, TimeUnit.MILLISECONDS);
+      fail("failure expected");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("refused");
+    }
+    assertThat(publisher.getSent()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldNotWaitWhenNothingWasSubmitted() {
+    BuildStatusPublisher publisher = new BuildStatusPublisher(tasks::add, this::send);
+
+    assertThat(publisher.await(0, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(tasks).isEmpty();
+  }
+
+  private void runTasks() {
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+  }
+}
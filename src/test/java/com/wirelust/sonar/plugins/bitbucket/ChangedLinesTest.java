@@ -0,0 +1,77 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangedLinesTest {
+
+  @Test
+  public void shouldMergeAndSearchRanges() {
+    ChangedLines changedLines = new ChangedLines.Builder()
+      .file("a.txt")
+      .lines(1000, 1002)
+      .lines(10, 12)
+      .lines(13, 13)
+      .lines(11, 11)
+      .file("empty.txt")
+      .file(null)
+      .lines(1, 5)
+      .build();
+
+    assertThat(changedLines.fileCount()).isEqualTo(2);
+    assertThat(changedLines.lineCount()).isEqualTo(7);
+    assertThat(changedLines.lines("a.txt")).containsExactly(10, 11, 12, 13, 1000, 1001, 1002);
+
+    assertThat(changedLines.hasLine("a.txt", 9)).isFalse();
+    assertThat(changedLines.hasLine("a.txt", 10)).isTrue();
+    assertThat(changedLines.hasLine("a.txt", 13)).isTrue();
+    assertThat(changedLines.hasLine("a.txt", 14)).isFalse();
+    assertThat(changedLines.hasLine("a.txt", 1001)).isTrue();
+    assertThat(changedLines.hasLine("a.txt", 1003)).isFalse();
+
+    assertThat(changedLines.hasFile("empty.txt")).isTrue();
+    assertThat(changedLines.hasLine("empty.txt", 1)).isFalse();
+    assertThat(changedLines.hasFile("missing.txt")).isFalse();
+    assertThat(changedLines.hasLine("missing.txt", 1)).isFalse();
+  }
+
+  @Test
+  public void shouldUseBitmapForScatteredLines() {
+    ChangedLines.Builder builder = new ChangedLines.Builder().file("a.txt");
+    for (int line = 100; line < 10000; line += 2) {
+      builder.lines(line, line);
+    }
+    ChangedLines changedLines = builder.build();
+
+    assertThat(changedLines.lineCount()).isEqualTo(4950);
+    assertThat(changedLines.hasLine("a.txt", 99)).isFalse();
+    assertThat(changedLines.hasLine("a.txt", 100)).isTrue();
+    assertThat(changedLines.hasLine("a.txt", 101)).isFalse();
+    assertThat(changedLines.hasLine("a.txt", 9998)).isTrue();
+    assertThat(changedLines.hasLine("a.txt", 10000)).isFalse();
+    assertThat(changedLines.lines("a.txt")).startsWith(100, 102, 104);
+
+    // a bitmap over the span is far smaller than two ints per line
+    assertThat(changedLines.estimatedSize()).isLessThan(4950L * 8);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CommentPublisherTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void init() {
+    executor = Executors.newFixedThreadPool(8);
+  }
+
+  @After
+  public void cleanup() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldBoundCallsInFlight() throws Exception {
+    CommentPublisher publisher = new CommentPublisher(2);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+
+    for (int i = 0; i < 20; i++) {
+      publisher.submit("comment " + i, () -> CompletableFuture.runAsync(() -> {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        sleep(5);
+        inFlight.decrementAndGet();
+      }, executor));
+    }
+    publisher.awaitAll();
+
+    assertThat(publisher.getSubmitted()).isEqualTo(20);
+    assertThat(publisher.getFailed()).isEqualTo(0);
+    assertThat(maxInFlight.get()).isBetween(1, 2);
+  }
+
+  @Test
+  public void shouldTreatParallelismBelowOneAsOne() throws Exception {
+    CommentPublisher publisher = new CommentPublisher(0);
+    CountDownLatch release = new CountDownLatch(1);
+
+    publisher.submit("first", () -> CompletableFuture.runAsync(() -> await(release), executor));
+
+    // the second call can't start before the first one is done
+    CompletableFuture<Void> second = CompletableFuture.runAsync(() ->
+      publisher.submit("second", () -> CompletableFuture.completedFuture(null)));
+    Thread.sleep(50);
+    assertThat(second.isDone()).isFalse();
+
+    release.countDown();
+    second.get(5, TimeUnit.SECONDS);
+    publisher.awaitAll();
+  }
+
+  @Test
+  public void shouldPublishEverythingBeforeReportingFailures() {
+    CommentPublisher publisher = new CommentPublisher(4);
+    AtomicInteger published = new AtomicInteger();
+
+    for (int i = 0; i < 10; i++) {
+      final int index = i;
+      publisher.submit("comment " + i, () -> CompletableFuture.runAsync(() -> {
+        if (index % 3 == 0) {
+          throw new IllegalStateException("failed " + index);
+        }
+        published.incrementAndGet();
+      }, executor));
+    }
+    publisher.submit("not started", () -> {
+      throw new IllegalStateException("rejected");
+    });
+
+    try {
+      publisher.awaitAll();
+      fail("failures should be reported");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Unable to publish 5 of 11 review comments");
+      assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+      assertThat(e.getSuppressed()).hasSize(4);
+    }
+    assertThat(published.get()).isEqualTo(6);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommentReconcilerTest {
+
+  @Test
+  public void shouldKeepUnchangedComments() {
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(
+      Collections.singletonList(ReviewComment.posted(1, "a.java", 10, "issue\r\n")),
+      Collections.singletonList(ReviewComment.desired("a.java", 10, "issue")));
+
+    assertThat(plan.getKept()).extracting("id").containsExactly(1L);
+    assertThat(plan.operationCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldMoveCommentsToTheClosestLine() {
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(
+      Arrays.asList(
+        ReviewComment.posted(1, "a.java", 10, "issue"),
+        ReviewComment.posted(2, "a.java", 50, "issue")),
+      Arrays.asList(
+        ReviewComment.desired("a.java", 48, "issue"),
+        ReviewComment.desired("a.java", 13, "issue")));
+
+    assertThat(plan.getMoved()).hasSize(2);
+    assertThat(plan.getMoved().get(0).getExisting().getId()).isEqualTo(2L);
+    assertThat(plan.getMoved().get(0).getDesired().getLine()).isEqualTo(48);
+    assertThat(plan.getMoved().get(1).getExisting().getId()).isEqualTo(1L);
+    assertThat(plan.getMoved().get(1).getDesired().getLine()).isEqualTo(13);
+    assertThat(plan.getCreated()).isEmpty();
+    assertThat(plan.getDeleted()).isEmpty();
+  }
+
+  @Test
+  public void shouldPreferMatchingContentOverMatchingLine() {
+    // the issue on line 10 moved to line 12 and a new one appeared on line 10
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(
+      Collections.singletonList(ReviewComment.posted(1, "a.java", 10, "old issue")),
+      Arrays.asList(
+        ReviewComment.desired("a.java", 10, "new issue"),
+        ReviewComment.desired("a.java", 12, "old issue")));
+
+    assertThat(plan.getMoved()).hasSize(1);
+    assertThat(plan.getMoved().get(0).getDesired().getLine()).isEqualTo(12);
+    assertThat(plan.getEdited()).isEmpty();
+    assertThat(plan.getCreated()).extracting("line").containsExactly(10);
+  }
+
+  @Test
+  public void shouldEditCommentsOnTheSameLine() {
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(
+      Collections.singletonList(ReviewComment.posted(1, "a.java", 10, "issue")),
+      Collections.singletonList(ReviewComment.desired("a.java", 10, "issue\nanother issue")));
+
+    assertThat(plan.getEdited()).hasSize(1);
+    assertThat(plan.getEdited().get(0).getExisting().getId()).isEqualTo(1L);
+    assertThat(plan.toString()).isEqualTo("kept:0 moved:0 edited:1 created:0 deleted:0");
+  }
+
+  @Test
+  public void shouldCreateAndDeleteWhatCanNotBeMatched() {
+    CommentReconciler.Plan plan = CommentReconciler.reconcile(
+      Arrays.asList(
+        ReviewComment.posted(1, "a.java", 10, "issue"),
+        ReviewComment.posted(2, "b.java", 10, "issue"),
+        ReviewComment.posted(3, "a.java", null, "issue"),
+        ReviewComment.posted(4, null, null, "summary")),
+      Arrays.asList(
+        ReviewComment.desired("a.java", 20, "other issue"),
+        ReviewComment.desired("c.java", 10, "issue")));
+
+    assertThat(plan.getCreated()).extracting("path").containsOnly("a.java", "c.java");
+    assertThat(plan.getDeleted()).extracting("id").containsOnly(1L, 2L, 3L, 4L);
+    assertThat(plan.operationCount()).isEqualTo(6);
+  }
+}
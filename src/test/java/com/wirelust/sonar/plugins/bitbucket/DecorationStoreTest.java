@@ -0,0 +1,121 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DecorationStoreTest {
+
+  private static final String KEY = DecorationStore.pullRequestKey("https://bitbucket.org", "owner", "repo", 1L,
+    "login");
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+  private DecorationStore decorationStore;
+
+  @Before
+  public void prepare() throws Exception {
+    directory = new File(temporaryFolder.getRoot(), "state");
+    decorationStore = new DecorationStore(directory);
+  }
+
+  @Test
+  public void shouldReturnNullWhenNothingIsStored() {
+    assertNull(decorationStore.load(KEY));
+  }
+
+  @Test
+  public void shouldBeAbleToSaveAndLoadState() {
+    decorationStore.save(KEY, new DecorationStore.State("abcdef", Arrays.asList(
+      ReviewComment.restored(1L, "src/Foo.java", 12, "fingerprint1"),
+      ReviewComment.restored(2L, null, null, "fingerprint2", true))));
+
+    DecorationStore.State state = decorationStore.load(KEY);
+    assertEquals("abcdef", state.getSourceCommit());
+    assertThat(state.getComments()).hasSize(2);
+
+    ReviewComment inline = state.getComments().get(0);
+    assertEquals(Long.valueOf(1L), inline.getId());
+    assertEquals("src/Foo.java", inline.getPath());
+    assertEquals(Integer.valueOf(12), inline.getLine());
+    assertEquals("fingerprint1", inline.getFingerprint());
+
+    ReviewComment global = state.getComments().get(1);
+    assertEquals(Long.valueOf(2L), global.getId());
+    assertNull(global.getPath());
+    assertNull(global.getLine());
+    assertThat(global.isSummary()).isTrue();
+    assertThat(inline.isSummary()).isFalse();
+  }
+
+  @Test
+  public void shouldKeyStateByPullRequestAndLogin() {
+    decorationStore.save(KEY, new DecorationStore.State("abcdef", Collections.<ReviewComment>emptyList()));
+
+    assertNull(decorationStore.load(DecorationStore.pullRequestKey("https://bitbucket.org", "owner", "repo", 2L,
+      "login")));
+    assertNull(decorationStore.load(DecorationStore.pullRequestKey("https://bitbucket.org", "owner", "repo", 1L,
+      "other_login")));
+    assertThat(decorationStore.stateFile(KEY).getName()).doesNotContain("login");
+  }
+
+  @Test
+  public void shouldOverwriteExistingState() {
+    decorationStore.save(KEY, new DecorationStore.State("abcdef", Arrays.asList(
+      ReviewComment.restored(1L, "src/Foo.java", 12, "fingerprint1"),
+      ReviewComment.restored(2L, "src/Bar.java", 3, "fingerprint2"))));
+    decorationStore.save(KEY, new DecorationStore.State(null, Collections.singletonList(
+      ReviewComment.restored(3L, "src/Foo.java", 13, "fingerprint3"))));
+
+    DecorationStore.State state = decorationStore.load(KEY);
+    assertNull(state.getSourceCommit());
+    assertThat(state.getComments()).hasSize(1);
+    assertEquals(Long.valueOf(3L), state.getComments().get(0).getId());
+  }
+
+  @Test
+  public void shouldForgetDeletedState() {
+    decorationStore.save(KEY, new DecorationStore.State("abcdef", Collections.<ReviewComment>emptyList()));
+    decorationStore.delete(KEY);
+
+    assertNull(decorationStore.load(KEY));
+  }
+
+  @Test
+  public void shouldIgnoreCorruptFiles() throws Exception {
+    directory.mkdirs();
+    assertThat(decorationStore.stateFile(KEY).createNewFile()).isTrue();
+
+    assertNull(decorationStore.load(KEY));
+  }
+}
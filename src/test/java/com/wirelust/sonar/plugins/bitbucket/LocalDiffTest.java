@@ -0,0 +1,110 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LocalDiffTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File workTree;
+  private Git git;
+
+  @Before
+  public void init() throws Exception {
+    workTree = temporaryFolder.newFolder();
+    git = Git.init().setDirectory(workTree).call();
+  }
+
+  @Test
+  public void shouldDiffSourceAgainstMergeBase() throws Exception {
+    write("a.txt", "1\n2\n3\n4\n");
+    write("gone.txt", "x\n");
+    commit();
+
+    // destination moves on, its changes must not show up in the pull request
+    git.branchCreate().setName("feature").call();
+    write("dest.txt", "dest\n");
+    RevCommit destination = commit();
+
+    git.checkout().setName("feature").call();
+    write("a.txt", "1\nchanged\n3\n4\nadded\n");
+    write("new.txt", "n1\nn2\n");
+    git.rm().addFilepattern("gone.txt").call();
+    RevCommit source = commit();
+
+    ChangedLines lines = LocalDiff.changedLines(workTree, source.name(), destination.name());
+
+    assertThat(lines.fileCount()).isEqualTo(2);
+    assertThat(lines.lines("a.txt")).containsExactly(2, 5);
+    assertThat(lines.lines("new.txt")).containsExactly(1, 2);
+    assertThat(lines.hasFile("dest.txt")).isFalse();
+  }
+
+  @Test
+  public void shouldReturnNullWhenCommitIsMissing() throws Exception {
+    write("a.txt", "1\n");
+    RevCommit source = commit();
+
+    assertThat(LocalDiff.changedLines(workTree, source.name(), "0123456789012345678901234567890123456789")).isNull();
+    assertThat(LocalDiff.changedLines(temporaryFolder.newFolder(), source.name(), source.name())).isNull();
+  }
+
+  @Test
+  public void shouldListFilesChangedBetweenCommits() throws Exception {
+    write("a.txt", "1\n");
+    write("b.txt", "1\n");
+    write("gone.txt", "x\n");
+    RevCommit previous = commit();
+
+    write("a.txt", "1\n2\n");
+    write("new.txt", "n\n");
+    git.rm().addFilepattern("gone.txt").call();
+    RevCommit current = commit();
+
+    assertThat(LocalDiff.changedFiles(workTree, previous.name(), current.name()))
+      .containsOnly("a.txt", "new.txt", "gone.txt");
+    assertThat(LocalDiff.changedFiles(workTree, current.name(), current.name())).isEmpty();
+    assertThat(LocalDiff.changedFiles(workTree, "0123456789012345678901234567890123456789", current.name())).isNull();
+  }
+
+  private void write(String path, String content) throws IOException {
+    Files.write(new File(workTree, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private RevCommit commit() throws Exception {
+    git.add().addFilepattern(".").call();
+    return git.commit().setMessage("commit").setAuthor("test", "test@example.com").call();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import com.wirelust.sonar.plugins.bitbucket.client.TokenStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PullRequestBatchTest {
+
+  private BitBucketPluginConfiguration config;
+  private PullRequestFacade first;
+  private Deque<PullRequestFacade> created;
+  private PullRequestBatch batch;
+  private File baseDir = new File(".");
+
+  @Before
+  public void prepare() {
+    config = mock(BitBucketPluginConfiguration.class);
+    when(config.pullRequestParallelism()).thenReturn(2);
+    first = mock(PullRequestFacade.class);
+    created = new ArrayDeque<>();
+    batch = new PullRequestBatch(config, first, () -> {
+      PullRequestFacade facade = mock(PullRequestFacade.class);
+      created.add(facade);
+      return facade;
+    });
+  }
+
+  @Test
+  public void shouldInitSinglePullRequest() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7));
+
+    batch.init(baseDir);
+
+    verify(first).init(7, baseDir);
+    assertThat(created).isEmpty();
+    assertThat(batch.getFacades()).containsExactly(first);
+  }
+
+  @Test
+  public void shouldShareTokenOfFirstPullRequest() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7, 8, 9));
+    mockCommitHashes("abc123", "abc123", "abc123");
+    TokenStore.StoredToken token = new TokenStore.StoredToken("access", "refresh", 1000L, "user");
+    when(first.getAccessToken()).thenReturn(token);
+
+    batch.init(baseDir);
+
+    verify(first).init(7, baseDir);
+    assertThat(created).hasSize(2);
+    verify(created.getFirst()).init(8, baseDir, token, "abc123");
+    verify(created.getLast()).init(9, baseDir, token, "abc123");
+    assertThat(batch.getFacades()).containsExactly(first, created.getFirst(), created.getLast());
+  }
+
+  @Test
+  public void shouldRunOnEveryPullRequestDespiteFailures() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7, 8, 9));
+    mockCommitHashes("abc123", "abc123", "abc123");
+    batch.init(baseDir);
+    doThrow(new IllegalStateException("boom")).when(first).publishReviewComments();
+
+    try {
+      batch.forEach(PullRequestFacade::publishReviewComments);
+      fail("failure expected");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Failed on 1 of 3 pull requests").hasCauseInstanceOf(IllegalStateException.class);
+    }
+    verify(created.getFirst()).publishReviewComments();
+    verify(created.getLast()).publishReviewComments();
+  }
+
+  @Test
+  public void shouldSkipPullRequestsOfAnotherCommit() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7, 8, 9));
+    mockCommitHashes("abc123", "def456", "abc123");
+
+    batch.init(baseDir);
+
+    assertThat(created).hasSize(2);
+    assertThat(batch.getFacades()).containsExactly(first, created.getLast());
+  }
+
+  @Test
+  public void shouldSkipPullRequestsFailingToLoad() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7, 8, 9));
+    when(first.getCommitHash()).thenReturn("abc123");
+    batch = new PullRequestBatch(config, first, () -> {
+      PullRequestFacade facade = mock(PullRequestFacade.class);
+      when(facade.getCommitHash()).thenReturn("abc123");
+      if (created.isEmpty()) {
+        doThrow(new IllegalStateException("boom")).when(facade).init(8, baseDir, null, "abc123");
+      }
+      created.add(facade);
+      return facade;
+    });
+
+    batch.init(baseDir);
+
+    assertThat(created).hasSize(2);
+    assertThat(batch.getFacades()).containsExactly(first, created.getLast());
+  }
+
+  @Test
+  public void shouldSkipOtherPullRequestsWhenAnalysedCommitIsUnknown() {
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(7, 8));
+
+    batch.init(baseDir);
+
+    assertThat(created).isEmpty();
+    assertThat(batch.getFacades()).containsExactly(first);
+  }
+
+  private void mockCommitHashes(String firstHash, String... otherHashes) {
+    when(first.getCommitHash()).thenReturn(firstHash);
+    Deque<String> hashes = new ArrayDeque<>(Arrays.asList(otherHashes));
+    batch = new PullRequestBatch(config, first, () -> {
+      PullRequestFacade facade = mock(PullRequestFacade.class);
+      when(facade.getCommitHash()).thenReturn(hashes.poll());
+      created.add(facade);
+      return facade;
+    });
+  }
+}
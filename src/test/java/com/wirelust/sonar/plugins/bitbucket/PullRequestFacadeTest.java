@@ -19,29 +19,39 @@
  */
 package com.wirelust.sonar.plugins.bitbucket;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
+import java.util.concurrent.CompletableFuture;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import com.wirelust.bitbucket.client.BitbucketAuthClient;
 import com.wirelust.bitbucket.client.BitbucketV2Client;
 import com.wirelust.bitbucket.client.representations.BuildStatus;
-import com.wirelust.bitbucket.client.representations.CommentList;
 import com.wirelust.bitbucket.client.representations.Commit;
 import com.wirelust.bitbucket.client.representations.PullRequest;
 import com.wirelust.bitbucket.client.representations.User;
 import com.wirelust.bitbucket.client.representations.auth.OauthAccessToken;
 import com.wirelust.bitbucket.client.representations.v1.V1Comment;
 import com.wirelust.sonar.plugins.bitbucket.client.ApiClientFactory;
+import com.wirelust.sonar.plugins.bitbucket.client.TokenStore;
 import com.wirelust.sonar.plugins.bitbucket.jackson.JacksonObjectMapper;
-import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.patch.FileHeader;
 import org.eclipse.jgit.patch.HunkHeader;
 import org.eclipse.jgit.patch.Patch;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.hamcrest.BaseMatcher;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.hamcrest.Description;
 import org.junit.Assert;
 import org.junit.Before;
@@ -49,15 +59,18 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.batch.fs.InputPath;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.config.Settings;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -116,6 +129,7 @@ public class PullRequestFacadeTest {
   public void init() throws Exception {
     when(apiClientFactory.getV2Client(any(String.class))).thenReturn(bitbucketV2Client);
     when(apiClientFactory.getAuthClient()).thenReturn(bitbucketAuthClient);
+    when(apiClientFactory.getRequestExecutor()).thenReturn(Runnable::run);
 
     // create a git file in the temporary folder because init will look for one
     temporaryFolder.newFile(".git");
@@ -161,17 +175,15 @@ public class PullRequestFacadeTest {
       any(BuildStatus.class))).thenReturn(statusResponse);
 
     // get Comments List
-    InputStream commentsStream = getClass().getClassLoader()
-      .getResourceAsStream("mocks/api/2.0/repositories/owner/repo/commit/revision/comments.json");
-    CommentList commentList = objectMapper.readValue(commentsStream, CommentList.class);
     when(commentsResponse.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
-    when(commentsResponse.readEntity(CommentList.class)).thenReturn(commentList);
+    when(commentsResponse.readEntity(InputStream.class)).thenAnswer(invocation -> getClass().getClassLoader()
+      .getResourceAsStream("mocks/api/2.0/repositories/owner/repo/commit/revision/comments.json"));
     when(bitbucketV2Client.getPullRequestCommentsWithPage(any(String.class), any(String.class), any(Long.class),
       any(Integer.class))).thenReturn(commentsResponse);
 
     // get Diff
     when(diffResponse.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
-    when(diffResponse.readEntity(String.class)).thenReturn("");
+    when(diffResponse.readEntity(InputStream.class)).thenAnswer(invocation -> new ByteArrayInputStream(new byte[0]));
     when(bitbucketV2Client.getPullRequestDiff(any(String.class), any(String.class), any(Long.class)))
       .thenReturn(diffResponse);
 
@@ -287,11 +299,8 @@ public class PullRequestFacadeTest {
   public void shouldBeAbleToLoadPullRequestPatch() throws Exception {
     setDefaultConfig();
 
-    InputStream diffStream = getClass().getClassLoader().getResourceAsStream("unified_diff.txt");
-    StringWriter writer = new StringWriter();
-    IOUtils.copy(diffStream, writer);
-
-    when(diffResponse.readEntity(String.class)).thenReturn(writer.toString());
+    when(diffResponse.readEntity(InputStream.class))
+      .thenAnswer(invocation -> getClass().getClassLoader().getResourceAsStream("unified_diff.txt"));
 
     DefaultInputFile inputFile = new DefaultInputFile("", "sonar-ws/pom.xml");
     inputFile.setModuleBaseDir(temporaryFolder.getRoot().toPath());
@@ -346,6 +355,7 @@ public class PullRequestFacadeTest {
     inputFile.setModuleBaseDir(temporaryFolder.getRoot().toPath());
 
     pullRequestFacade.createOrUpdateReviewComment(inputFile, 100, "test comment");
+    pullRequestFacade.publishReviewComments();
 
     verify(bitbucketV2Client).postPullRequestComment(
       eq(configuration.repositoryOwner()),
@@ -376,6 +386,7 @@ public class PullRequestFacadeTest {
     inputFile.setModuleBaseDir(temporaryFolder.getRoot().toPath());
 
     pullRequestFacade.createOrUpdateReviewComment(inputFile, 381, "test comment");
+    pullRequestFacade.publishReviewComments();
 
     verify(bitbucketV2Client).putPullRequestComment(
       eq(configuration.repositoryOwner()),
@@ -438,6 +449,39 @@ public class PullRequestFacadeTest {
       eq(pullRequest.getId()));
   }
 
+  @Test
+  public void shouldOnlySendApprovalAndBuildStatusChanges() throws Exception {
+    setDefaultConfig();
+
+    when(bitbucketV2Client.postPullRequestApproval(
+      any(String.class),
+      any(String.class),
+      any(Long.class))).thenReturn(responseSuccess);
+    when(bitbucketV2Client.deletePullRequestApproval(
+      any(String.class),
+      any(String.class),
+      any(Long.class))).thenReturn(responseSuccess);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    pullRequestFacade.approvePullRequest();
+    pullRequestFacade.approvePullRequest();
+    pullRequestFacade.unapprovePullRequest();
+
+    verify(bitbucketV2Client).postPullRequestApproval(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()));
+    verify(bitbucketV2Client).deletePullRequestApproval(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()));
+    // INPROGRESS, SUCCESSFUL and FAILED
+    verify(bitbucketV2Client, times(3)).postBuildStatus(any(String.class), any(String.class), any(String.class),
+      any(BuildStatus.class));
+  }
+
   @Test
   public void shouldHandlePullRequestApprovalFailure() throws Exception {
     setDefaultConfig();
@@ -472,14 +516,15 @@ public class PullRequestFacadeTest {
       any(BuildStatus.class))).thenReturn(responseFailure);
 
     PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    // the status is sent in the background, init does not wait for it
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
 
     try {
-      pullRequestFacade.init(123, temporaryFolder.getRoot());
-
+      pullRequestFacade.awaitBuildStatus();
 
       Assert.fail();
     } catch (IllegalStateException e) {
-      assertEquals("Unable to perform Bitbucket WS operation", e.getMessage());
+      assertEquals("Unable to update pull request build status. expected:200, got:500", e.getMessage());
     }
   }
 
@@ -490,7 +535,7 @@ public class PullRequestFacadeTest {
     PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
     pullRequestFacade.init(123, temporaryFolder.getRoot());
 
-    pullRequestFacade.deleteOutdatedComments();
+    pullRequestFacade.publishReviewComments();
 
     verify(bitbucketV2Client).deletePullRequestComment(
       eq(configuration.repositoryOwner()),
@@ -516,6 +561,7 @@ public class PullRequestFacadeTest {
     inputFile.setModuleBaseDir(temporaryFolder.getRoot().toPath());
 
     pullRequestFacade.createOrUpdateReviewComment(inputFile, 381, "test comment");
+    pullRequestFacade.publishReviewComments();
 
     verify(bitbucketV2Client).putPullRequestComment(
       eq(configuration.repositoryOwner()),
@@ -535,8 +581,6 @@ public class PullRequestFacadeTest {
         }
       }));
 
-    pullRequestFacade.deleteOutdatedComments();
-
     verify(bitbucketV2Client).deletePullRequestComment(
       eq(configuration.repositoryOwner()),
       eq(configuration.repository()),
@@ -550,6 +594,214 @@ public class PullRequestFacadeTest {
       eq(530190L));
   }
 
+  @Test
+  public void shouldMoveCommentWhenIssueMoved() throws Exception {
+    setDefaultConfig();
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    DefaultInputFile inputFile = new DefaultInputFile("", "pom.xml");
+    inputFile.setModuleBaseDir(temporaryFolder.getRoot().toPath());
+
+    pullRequestFacade.createOrUpdateReviewComment(inputFile, 390, "Inline test comment.");
+    pullRequestFacade.publishReviewComments();
+
+    verify(bitbucketV2Client).putPullRequestComment(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()),
+      eq(530190L),
+      argThat(new BaseMatcher<V1Comment>() {
+
+        @Override
+        public void describeTo(Description description) {
+        }
+
+        @Override
+        public boolean matches(Object o) {
+          V1Comment v1Comment = (V1Comment)o;
+          return v1Comment.getLineTo() == 390;
+        }
+      }));
+    verify(bitbucketV2Client, never()).postPullRequestComment(
+      any(String.class), any(String.class), any(Long.class), any(V1Comment.class));
+    verify(bitbucketV2Client, never()).deletePullRequestComment(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()),
+      eq(530190L));
+  }
+
+  @Test
+  public void shouldLoadCommentPagesInOrder() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_COMMENT_PARALLELISM, "2");
+
+    // 5 comments on 3 pages, the last id shows up again as if the pages had shifted
+    for (int page = 1; page <= 3; page++) {
+      long firstId = page * 2L - 1;
+      long secondId = page == 3 ? 4 : page * 2L;
+      String json = "{\"size\": 5, \"pagelen\": 2, \"page\": " + page + ", \"values\": ["
+        + commentJson(firstId) + ", " + commentJson(secondId) + "]}";
+      Response pageResponse = mock(Response.class);
+      when(pageResponse.readEntity(InputStream.class)).thenReturn(jsonStream(json));
+      when(bitbucketV2Client.getPullRequestCommentsWithPage(any(String.class), any(String.class), any(Long.class),
+        eq(page))).thenReturn(pageResponse);
+    }
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.publishReviewComments();
+
+    InOrder inOrder = inOrder(bitbucketV2Client);
+    for (long id = 1; id <= 5; id++) {
+      inOrder.verify(bitbucketV2Client).deletePullRequestComment(
+        eq(configuration.repositoryOwner()),
+        eq(configuration.repository()),
+        eq(pullRequest.getId()),
+        eq(id));
+    }
+    verify(bitbucketV2Client, never()).getPullRequestCommentsWithPage(any(String.class), any(String.class),
+      any(Long.class), eq(4));
+  }
+
+  private static InputStream jsonStream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String commentJson(long id) {
+    return "{\"id\": " + id + ", \"user\": {\"username\": \"" + MOCK_USERNAME + "\"}, "
+      + "\"content\": {\"raw\": \"comment " + id + "\"}}";
+  }
+
+  @Test
+  public void shouldOnlyRequestOwnCommentsFromServer() throws Exception {
+    setDefaultConfig();
+
+    Response pageResponse = mock(Response.class);
+    when(pageResponse.getStatus()).thenReturn(200);
+    when(pageResponse.readEntity(InputStream.class)).thenReturn(
+      jsonStream("{\"size\": 1, \"pagelen\": 100, \"page\": 1, \"values\": [" + commentJson(7) + "]}"));
+    ResteasyWebTarget target = mockCommentTarget(pageResponse);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.publishReviewComments();
+
+    verify(target).queryParam("q", "user.username=\"" + MOCK_USERNAME + "\"");
+    verify(target).queryParam("pagelen", 100);
+    verify(target).queryParam("page", 1);
+    verify(bitbucketV2Client, never()).getPullRequestCommentsWithPage(any(String.class), any(String.class),
+      any(Long.class), any(Integer.class));
+    // deleted without blocking, through the target
+    verify(target).resolveTemplate("commentId", 7L);
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(HttpMethod.DELETE);
+    verify(bitbucketV2Client, never()).deletePullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(Long.class));
+  }
+
+  @Test
+  public void shouldFilterCommentsLocallyWhenServerRejectsQuery() throws Exception {
+    setDefaultConfig();
+
+    Response rejected = mock(Response.class);
+    when(rejected.getStatus()).thenReturn(400);
+    ResteasyWebTarget target = mockCommentTarget(rejected);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.publishReviewComments();
+
+    verify(rejected).close();
+    verify(bitbucketV2Client).getPullRequestCommentsWithPage(any(String.class), any(String.class),
+      any(Long.class), eq(1));
+    verify(target).resolveTemplate("commentId", 530189L);
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(HttpMethod.DELETE);
+  }
+
+  @Test
+  public void shouldNotSendBuildStatusTheCommitAlreadyHas() throws Exception {
+    setDefaultConfig();
+    BuildStatus current = new BuildStatus();
+    current.setState(BuildStatus.State.INPROGRESS);
+    current.setName(configuration.ciName());
+    current.setUrl(configuration.ciURL());
+    when(responseSuccess.readEntity(BuildStatus.class)).thenReturn(current);
+    Response rejected = mock(Response.class);
+    when(rejected.getStatus()).thenReturn(400);
+    ResteasyWebTarget target = mockCommentTarget(rejected);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.awaitBuildStatus();
+
+    Invocation.Builder builder = target.request(MediaType.APPLICATION_JSON_TYPE);
+    // read once, INPROGRESS is not sent again
+    verify(builder).build(HttpMethod.GET);
+    verify(builder, never()).build(eq(HttpMethod.POST), any(Entity.class));
+
+    pullRequestFacade.createOrUpdateBuildStatus(BuildStatus.State.FAILED);
+    pullRequestFacade.awaitBuildStatus();
+
+    verify(builder).build(HttpMethod.GET);
+    verify(builder).build(eq(HttpMethod.POST), any(Entity.class));
+  }
+
+  @Test
+  public void shouldStopLoadingPullRequestOfAnotherCommit() throws Exception {
+    setDefaultConfig();
+    ResteasyWebTarget target = mockCommentTarget(responseSuccess);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot(), null, "0000000000000000000000000000000000000000");
+    pullRequestFacade.awaitPrefetch();
+
+    assertThat(pullRequestFacade.getCommitHash()).isEqualTo(pullRequest.getDestination().getCommit().getHash());
+    Invocation.Builder builder = target.request(MediaType.APPLICATION_JSON_TYPE);
+    verify(builder, never()).get();
+    verify(builder, never()).build(any(String.class));
+    verify(bitbucketV2Client, never()).getPullRequestCommentsWithPage(any(String.class), any(String.class),
+      any(Long.class), any(Integer.class));
+    verify(bitbucketV2Client, never()).getPullRequestDiff(any(String.class), any(String.class), any(Long.class));
+  }
+
+  @Test
+  public void shouldSendBuildStatusWithAnotherUrl() throws Exception {
+    setDefaultConfig();
+    BuildStatus current = new BuildStatus();
+    current.setState(BuildStatus.State.INPROGRESS);
+    current.setName(configuration.ciName());
+    current.setUrl("http://old-ci.example.com");
+    when(responseSuccess.readEntity(BuildStatus.class)).thenReturn(current);
+    Response rejected = mock(Response.class);
+    when(rejected.getStatus()).thenReturn(400);
+    ResteasyWebTarget target = mockCommentTarget(rejected);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.awaitBuildStatus();
+
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(eq(HttpMethod.POST), any(Entity.class));
+  }
+
+  private ResteasyWebTarget mockCommentTarget(Response response) {
+    // every WebTarget call returns the target itself, like a builder
+    Answer<Object> returnsSelf = invocation ->
+      invocation.getMethod().getReturnType().isInstance(invocation.getMock()) ? invocation.getMock() : null;
+    ResteasyWebTarget target = mock(ResteasyWebTarget.class, returnsSelf);
+    Invocation.Builder builder = mock(Invocation.Builder.class);
+    doReturn(builder).when(target).request(any(MediaType.class));
+    when(builder.get()).thenReturn(response);
+    // comments and build statuses are built from the target and submitted
+    Invocation invocation = mock(Invocation.class);
+    when(builder.build(any(String.class))).thenReturn(invocation);
+    when(builder.build(any(String.class), any(Entity.class))).thenReturn(invocation);
+    when(apiClientFactory.submit(invocation)).thenAnswer(call -> CompletableFuture.completedFuture(responseSuccess));
+    doReturn(target).when(apiClientFactory).getV2Target(any(String.class));
+    return target;
+  }
+
   @Test
   public void shouldBeAbleToPostGlobalComment() throws Exception {
     setDefaultConfig();
@@ -566,6 +818,239 @@ public class PullRequestFacadeTest {
       eq("test comment"));
   }
 
+  @Test
+  public void shouldKeepUnchangedSummaryComment() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_SUMMARY_UPSERT, "true");
+    ResteasyWebTarget target = mockSummaryComment(7, "SonarQube reported no issues");
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.publishReviewComments();
+    pullRequestFacade.addGlobalComment("SonarQube reported no issues");
+
+    Invocation.Builder builder = target.request(MediaType.APPLICATION_JSON_TYPE);
+    verify(builder, never()).build(HttpMethod.DELETE);
+    verify(builder, never()).build(eq(HttpMethod.PUT), any(Entity.class));
+    verify(bitbucketV2Client, never()).deletePullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(Long.class));
+    verify(bitbucketV2Client, never()).putPullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(Long.class), any(V1Comment.class));
+    verify(bitbucketV2Client, never()).postPullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(String.class));
+  }
+
+  @Test
+  public void shouldEditChangedSummaryComment() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_SUMMARY_UPSERT, "true");
+    mockSummaryComment(7, "SonarQube reported no issues");
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+    pullRequestFacade.publishReviewComments();
+    pullRequestFacade.addGlobalComment("SonarQube analysis reported 1 issue");
+
+    verify(bitbucketV2Client).putPullRequestComment(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()),
+      eq(7L),
+      any(V1Comment.class));
+    verify(bitbucketV2Client, never()).deletePullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(Long.class));
+    verify(bitbucketV2Client, never()).postPullRequestComment(any(String.class), any(String.class),
+      any(Long.class), any(String.class));
+  }
+
+  private ResteasyWebTarget mockSummaryComment(long id, String summary) {
+    String raw = ReviewComment.summary(summary).getBody().replace("\n", "\\n");
+    Response pageResponse = mock(Response.class);
+    when(pageResponse.getStatus()).thenReturn(200);
+    when(pageResponse.readEntity(InputStream.class)).thenReturn(jsonStream("{\"size\": 1, \"pagelen\": 100, "
+      + "\"page\": 1, \"values\": [{\"id\": " + id + ", \"user\": {\"username\": \"" + MOCK_USERNAME + "\"}, "
+      + "\"content\": {\"raw\": \"" + raw + "\"}}]}"));
+    return mockCommentTarget(pageResponse);
+  }
+
+  @Test
+  public void shouldSurfaceFailureOfParallelInitStage() throws Exception {
+    setDefaultConfig();
+
+    when(bitbucketV2Client.getPullRequestDiff(any(String.class), any(String.class), any(Long.class)))
+      .thenThrow(new IllegalStateException("diff failure"));
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+
+    try {
+      pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      assertEquals("Unable to perform Bitbucket WS operation", e.getMessage());
+      assertEquals("diff failure", e.getCause().getMessage());
+    }
+
+    // the stages which do not depend on the diff still ran
+    verify(bitbucketV2Client).getUser();
+    verify(bitbucketV2Client).getPullRequestById(any(String.class), any(String.class), eq(123L));
+  }
+
+  @Test
+  public void shouldSurfacePrefetchFailureWhenJoined() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_PREFETCH, "true");
+
+    when(bitbucketV2Client.getPullRequestDiff(any(String.class), any(String.class), any(Long.class)))
+      .thenThrow(new IllegalStateException("diff failure"));
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    try {
+      pullRequestFacade.awaitPrefetch();
+
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      assertEquals("Unable to prefetch pull request comments and diff from Bitbucket", e.getMessage());
+      assertEquals("diff failure", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void shouldJoinPrefetchedDataWhenNeeded() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_PREFETCH, "true");
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    pullRequestFacade.publishReviewComments();
+
+    verify(bitbucketV2Client).deletePullRequestComment(
+      eq(configuration.repositoryOwner()),
+      eq(configuration.repository()),
+      eq(pullRequest.getId()),
+      eq(530189L));
+  }
+
+  @Test
+  public void shouldResolveCommitHashFromLocalRepository() throws Exception {
+    File workTree = temporaryFolder.newFolder("checkout");
+    try (Git git = Git.init().setDirectory(workTree).call()) {
+      Files.write(new File(workTree, "file.txt").toPath(), "content".getBytes(StandardCharsets.UTF_8));
+      git.add().addFilepattern("file.txt").call();
+      RevCommit revCommit = git.commit().setMessage("initial").setAuthor("test", "test@example.com").call();
+
+      String fullHash = revCommit.getName();
+      assertEquals(fullHash, PullRequestFacade.resolveCommitHash(workTree, fullHash.substring(0, 12)));
+    }
+
+    // unknown commit, no repository and garbage all fall back to the API
+    assertNull(PullRequestFacade.resolveCommitHash(workTree, "0123456789ab"));
+    assertNull(PullRequestFacade.resolveCommitHash(temporaryFolder.getRoot(), "0123456789ab"));
+    assertNull(PullRequestFacade.resolveCommitHash(workTree, "not-a-hash"));
+  }
+
+  @Test
+  public void shouldFallBackToRemoteDiffWhenCommitsAreNotLocal() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_LOCAL_DIFF, "true");
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    verify(bitbucketV2Client).getPullRequestDiff(any(String.class), any(String.class), eq(123L));
+  }
+
+  @Test
+  public void shouldReuseCachedAccessTokenAndUsername() throws Exception {
+    setDefaultConfig();
+
+    TokenStore tokenStore = new TokenStore(temporaryFolder.newFolder());
+    tokenStore.save(null, "login", new TokenStore.StoredToken("cached-token", "refresh",
+      System.currentTimeMillis() + 3600000L, MOCK_USERNAME));
+    when(apiClientFactory.getTokenStore()).thenReturn(tokenStore);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    verify(apiClientFactory).getV2Client("cached-token");
+    verify(bitbucketAuthClient, never()).getTokenByUsernamePassword(any(String.class), any(String.class),
+      any(String.class));
+    verify(bitbucketV2Client, never()).getUser();
+  }
+
+  @Test
+  public void shouldRefreshExpiredAccessToken() throws Exception {
+    setDefaultConfig();
+
+    TokenStore tokenStore = new TokenStore(temporaryFolder.newFolder());
+    tokenStore.save(null, "login", new TokenStore.StoredToken("expired-token", "refresh",
+      System.currentTimeMillis(), MOCK_USERNAME));
+    when(apiClientFactory.getTokenStore()).thenReturn(tokenStore);
+    when(apiClientFactory.refreshAccessToken("refresh")).thenReturn(authResponse);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    verify(apiClientFactory).refreshAccessToken("refresh");
+    verify(bitbucketAuthClient, never()).getTokenByUsernamePassword(any(String.class), any(String.class),
+      any(String.class));
+    assertEquals(MOCK_USERNAME, tokenStore.load(null, "login").getUsername());
+  }
+
+  @Test
+  public void shouldRefreshAccessTokenExpiringWithinTheMargin() throws Exception {
+    setDefaultConfig();
+    settings.setProperty(BitBucketPlugin.BITBUCKET_TOKEN_CACHE_MARGIN, "60");
+
+    TokenStore tokenStore = new TokenStore(temporaryFolder.newFolder());
+    tokenStore.save(null, "login", new TokenStore.StoredToken("expiring-token", "refresh",
+      System.currentTimeMillis() + 1800000L, MOCK_USERNAME));
+    when(apiClientFactory.getTokenStore()).thenReturn(tokenStore);
+    when(apiClientFactory.refreshAccessToken("refresh")).thenReturn(authResponse);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    verify(apiClientFactory).refreshAccessToken("refresh");
+    verify(apiClientFactory, never()).getV2Client("expiring-token");
+  }
+
+  @Test
+  public void shouldRenewRejectedCachedAccessToken() throws Exception {
+    setDefaultConfig();
+
+    TokenStore tokenStore = new TokenStore(temporaryFolder.newFolder());
+    tokenStore.save(null, "login", new TokenStore.StoredToken("revoked-token", "refresh",
+      System.currentTimeMillis() + 3600000L, MOCK_USERNAME));
+    when(apiClientFactory.getTokenStore()).thenReturn(tokenStore);
+
+    BitbucketV2Client rejectingClient = mock(BitbucketV2Client.class);
+    Response unauthorized = mock(Response.class);
+    when(unauthorized.getStatus()).thenReturn(Response.Status.UNAUTHORIZED.getStatusCode());
+    when(rejectingClient.getPullRequestById(any(String.class), any(String.class), any(Long.class)))
+      .thenReturn(unauthorized);
+    when(apiClientFactory.getV2Client("revoked-token")).thenReturn(rejectingClient);
+
+    OauthAccessToken renewed = mock(OauthAccessToken.class);
+    when(renewed.getAccessToken()).thenReturn("renewed-token");
+    Response refreshResponse = mock(Response.class);
+    when(refreshResponse.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    when(refreshResponse.readEntity(OauthAccessToken.class)).thenReturn(renewed);
+    when(apiClientFactory.refreshAccessToken("refresh")).thenReturn(refreshResponse);
+
+    PullRequestFacade pullRequestFacade = new PullRequestFacade(configuration, apiClientFactory);
+    pullRequestFacade.init(123, temporaryFolder.getRoot());
+
+    verify(apiClientFactory).getV2Client("renewed-token");
+    verify(bitbucketV2Client).getPullRequestById(any(String.class), any(String.class), eq(123L));
+    verify(rejectingClient, never()).getPullRequestDiff(any(String.class), any(String.class), any(Long.class));
+    assertEquals("renewed-token", pullRequestFacade.getAccessToken().getAccessToken());
+    assertEquals("renewed-token", tokenStore.load(null, "login").getAccessToken());
+  }
+
   private void setDefaultConfig() {
     settings.setProperty(BitBucketPlugin.BITBUCKET_LOGIN, "login");
     settings.setProperty(BitBucketPlugin.BITBUCKET_PASS_KEY, "password");
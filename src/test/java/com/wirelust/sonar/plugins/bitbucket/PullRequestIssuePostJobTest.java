@@ -23,8 +23,11 @@ import java.util.Arrays;
 import java.util.Locale;
 import javax.annotation.CheckForNull;
 
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+import com.wirelust.sonar.plugins.bitbucket.client.ApiClientFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.postjob.PostJobContext;
@@ -35,6 +38,8 @@ import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 import org.sonar.api.rule.RuleKey;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.Matchers.contains;
 import static org.mockito.Mockito.*;
@@ -44,11 +49,14 @@ public class PullRequestIssuePostJobTest {
   private PullRequestIssuePostJob pullRequestIssuePostJob;
   private PullRequestFacade pullRequestFacade;
   private PostJobContext context;
+  private ApiClientFactory apiClientFactory;
+  private BitBucketPluginConfiguration config;
+  private MarkDownUtils markDownUtils;
 
   @Before
   public void prepare() throws Exception {
     pullRequestFacade = mock(PullRequestFacade.class);
-    BitBucketPluginConfiguration config = mock(BitBucketPluginConfiguration.class);
+    config = mock(BitBucketPluginConfiguration.class);
     Settings settings = new Settings(new PropertyDefinitions(PropertyDefinition.builder(CoreProperties.SERVER_BASE_URL)
       .name("Server base URL")
       .description("HTTP URL of this SonarQube server, such as <i>http://yourhost.yourdomain/sonar</i>. This value is used i.e. to create links in emails.")
@@ -64,7 +72,11 @@ public class PullRequestIssuePostJobTest {
     when(config.reportNotInDiff()).thenReturn(true);
     when(config.getLocale()).thenReturn(Locale.ENGLISH);
 
-    pullRequestIssuePostJob = new PullRequestIssuePostJob(config, pullRequestFacade, new MarkDownUtils(settings));
+    apiClientFactory = mock(ApiClientFactory.class);
+    markDownUtils = new MarkDownUtils(settings);
+    pullRequestIssuePostJob = new PullRequestIssuePostJob(config,
+      new PullRequestBatch(config, pullRequestFacade, () -> mock(PullRequestFacade.class)), markDownUtils,
+      apiClientFactory);
   }
 
   @Test
@@ -121,6 +133,24 @@ public class PullRequestIssuePostJobTest {
     verify(pullRequestFacade).unapprovePullRequest();
   }
 
+  @Test
+  public void testPullRequestAnalysisSkipsFilesUnchangedSinceLastAnalysis() {
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.CRITICAL, true, "msg1");
+    when(pullRequestFacade.getWebUrl(inputFile1, 1)).thenReturn("http://github/blob/abc123/src/Foo.php#L1");
+
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
+    when(pullRequestFacade.hasFile(inputFile1)).thenReturn(true);
+    when(pullRequestFacade.hasFileLine(inputFile1, 1)).thenReturn(true);
+    when(pullRequestFacade.isUnchangedSinceLastAnalysis(inputFile1)).thenReturn(true);
+
+    pullRequestIssuePostJob.execute(context);
+
+    verify(pullRequestFacade, never()).createOrUpdateReviewComment(any(), anyInt(), anyString());
+    verify(pullRequestFacade).publishReviewComments();
+    verify(pullRequestFacade).unapprovePullRequest();
+  }
+
   @Test
   public void testPullRequestAnalysisWithNewIssuesNoBlockerNorCritical() {
     DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
@@ -154,6 +184,60 @@ public class PullRequestIssuePostJobTest {
     verify(pullRequestFacade).unapprovePullRequest();
   }
 
+  @Test
+  public void shouldReadIssuesOnceForEveryPullRequest() {
+    PullRequestFacade secondFacade = mock(PullRequestFacade.class);
+    when(pullRequestFacade.getCommitHash()).thenReturn("abc123");
+    when(secondFacade.getCommitHash()).thenReturn("abc123");
+    when(config.pullRequestNumbers()).thenReturn(Arrays.asList(1, 2));
+    when(config.pullRequestParallelism()).thenReturn(2);
+    PullRequestBatch batch = new PullRequestBatch(config, pullRequestFacade, () -> secondFacade);
+    batch.init(null);
+
+    DefaultInputFile inputFile1 = new DefaultInputFile("foo", "src/Foo.php");
+    PostJobIssue newIssue = newMockedIssue("foo:src/Foo.php", inputFile1, 1, Severity.BLOCKER, true, "msg1");
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList(newIssue));
+
+    new PullRequestIssuePostJob(config, batch, markDownUtils, apiClientFactory).execute(context);
+
+    verify(context, times(1)).issues();
+    verify(pullRequestFacade).unapprovePullRequest();
+    verify(secondFacade).unapprovePullRequest();
+  }
+
+  @Test
+  public void shouldSendFailedBuildStatusWhenPublishingFails() {
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList());
+    doThrow(new IllegalStateException("down")).when(pullRequestFacade).publishReviewComments();
+
+    try {
+      pullRequestIssuePostJob.execute(context);
+      fail("failure expected");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("down");
+    }
+
+    InOrder inOrder = inOrder(pullRequestFacade);
+    inOrder.verify(pullRequestFacade).createOrUpdateBuildStatus(BuildStatus.State.FAILED);
+    inOrder.verify(pullRequestFacade).removeApproval();
+    inOrder.verify(pullRequestFacade).awaitBuildStatus();
+    verify(pullRequestFacade, never()).approvePullRequest();
+  }
+
+  @Test
+  public void shouldCloseClientsWhenPublishingFails() {
+    when(context.issues()).thenReturn(Arrays.<PostJobIssue>asList());
+    doThrow(new IllegalStateException("down")).when(pullRequestFacade).publishReviewComments();
+
+    try {
+      pullRequestIssuePostJob.execute(context);
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    verify(apiClientFactory).close();
+  }
+
   private PostJobIssue newMockedIssue(String componentKey, @CheckForNull DefaultInputFile inputFile, @CheckForNull Integer line, Severity severity,
                                       boolean isNew, String message) {
     PostJobIssue issue = mock(PostJobIssue.class);
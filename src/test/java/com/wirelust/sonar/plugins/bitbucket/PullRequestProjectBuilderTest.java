@@ -50,7 +50,9 @@ public class PullRequestProjectBuilderTest {
     settings = new Settings(new PropertyDefinitions(BitBucketPlugin.class));
     facade = mock(PullRequestFacade.class);
     mode = mock(AnalysisMode.class);
-    pullRequestProjectBuilder = new PullRequestProjectBuilder(new BitBucketPluginConfiguration(settings), facade, mode);
+    BitBucketPluginConfiguration config = new BitBucketPluginConfiguration(settings);
+    pullRequestProjectBuilder = new PullRequestProjectBuilder(config,
+      new PullRequestBatch(config, facade, () -> mock(PullRequestFacade.class)), mode);
 
   }
 
@@ -68,5 +70,7 @@ public class PullRequestProjectBuilderTest {
     pullRequestProjectBuilder.build(mock(ProjectBuilder.Context.class, withSettings().defaultAnswer(RETURNS_DEEP_STUBS)));
 
     verify(facade).init(eq(1), any(File.class));
+    // the approval of the previous analysis stays until the post job decides it
+    verify(facade, never()).removeApproval();
   }
 }
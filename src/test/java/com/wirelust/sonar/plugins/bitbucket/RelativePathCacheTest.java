@@ -0,0 +1,66 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RelativePathCacheTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldResolveEachFileOnce() throws Exception {
+    File baseDir = temporaryFolder.newFolder();
+    File file = new File(baseDir, "src/main/Foo.java");
+    RelativePathCache cache = new RelativePathCache();
+
+    assertThat(cache.relativePath(baseDir, file)).isEqualTo("src/main/Foo.java");
+    assertThat(cache.relativePath(baseDir, file)).isEqualTo("src/main/Foo.java");
+    assertThat(cache.relativePath(baseDir, new File(baseDir, "Bar.java"))).isEqualTo("Bar.java");
+
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldResetWhenBaseDirChanges() throws Exception {
+    File baseDir = temporaryFolder.newFolder();
+    File otherBaseDir = new File(baseDir, "src");
+    File file = new File(baseDir, "src/main/Foo.java");
+    RelativePathCache cache = new RelativePathCache();
+
+    assertThat(cache.relativePath(baseDir, file)).isEqualTo("src/main/Foo.java");
+    assertThat(cache.relativePath(otherBaseDir, file)).isEqualTo("main/Foo.java");
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.size()).isEqualTo(1);
+
+    // files outside of the base directory are not cached
+    assertThat(cache.relativePath(otherBaseDir, new File(baseDir, "Bar.java"))).isNull();
+    assertThat(cache.size()).isEqualTo(1);
+  }
+}
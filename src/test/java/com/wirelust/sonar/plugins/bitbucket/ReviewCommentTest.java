@@ -0,0 +1,71 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReviewCommentTest {
+
+  @Test
+  public void shouldEmbedFingerprintInPostedBody() {
+    ReviewComment desired = ReviewComment.desired("a.java", 10, "![MAJOR] issue [rule](http://sonar)\n");
+
+    assertThat(desired.getFingerprint()).hasSize(ReviewComment.FINGERPRINT_LENGTH);
+    assertThat(desired.getBody()).isEqualTo("![MAJOR] issue [rule](http://sonar)\n\n"
+      + "[//]: # (sonar-bitbucket:fp=" + desired.getFingerprint() + ")");
+  }
+
+  @Test
+  public void shouldReadFingerprintBackWhateverBitbucketDidToTheMarkup() {
+    ReviewComment desired = ReviewComment.desired("a.java", 10, "![MAJOR] issue_name [rule](http://sonar)");
+    String normalizedByBitbucket = desired.getBody()
+      .replace("issue_name", "issue\\_name")
+      .replace("\n", "\r\n");
+
+    ReviewComment posted = ReviewComment.posted(1, "a.java", 10, normalizedByBitbucket);
+
+    assertThat(posted.getFingerprint()).isEqualTo(desired.getFingerprint());
+  }
+
+  @Test
+  public void shouldFingerprintLegacyCommentsOnContent() {
+    ReviewComment posted = ReviewComment.posted(1, "a.java", 10, "issue");
+
+    assertThat(posted.getFingerprint()).isEqualTo(ReviewComment.desired("a.java", 3, "issue").getFingerprint());
+    assertThat(ReviewComment.posted(2, null, null, null).getBody()).isEmpty();
+  }
+
+  @Test
+  public void shouldFindSummaryBackByItsMarker() {
+    ReviewComment summary = ReviewComment.summary("SonarQube reported no issues");
+    assertThat(summary.isSummary()).isTrue();
+    assertThat(summary.getPath()).isNull();
+    assertThat(summary.getBody()).endsWith("\n[//]: # (sonar-bitbucket:summary)");
+
+    ReviewComment posted = ReviewComment.posted(1, null, null, summary.getBody());
+    assertThat(posted.isSummary()).isTrue();
+    assertThat(posted.getFingerprint()).isEqualTo(summary.getFingerprint());
+
+    assertThat(ReviewComment.posted(2, null, null, "SonarQube reported no issues").isSummary()).isFalse();
+    assertThat(ReviewComment.desired("a.java", 1, "issue").isSummary()).isFalse();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import com.wirelust.bitbucket.client.representations.BuildStatus;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StatusTransitionsTest {
+
+  private final StatusTransitions transitions = new StatusTransitions();
+
+  @Test
+  public void shouldLetEveryCallThroughWhileUnknown() {
+    assertThat(transitions.isApprovalChange(true)).isTrue();
+    assertThat(transitions.isApprovalChange(false)).isTrue();
+    assertThat(transitions.isBuildStatusChange(status(BuildStatus.State.INPROGRESS, "url"))).isTrue();
+    assertThat(transitions.getElided()).isZero();
+  }
+
+  @Test
+  public void shouldElideCallsNotChangingAnything() {
+    transitions.setApproved(false);
+    transitions.setBuildStatus(status(BuildStatus.State.FAILED, "url"));
+
+    assertThat(transitions.isApprovalChange(false)).isFalse();
+    assertThat(transitions.isApprovalChange(true)).isTrue();
+    assertThat(transitions.isBuildStatusChange(status(BuildStatus.State.FAILED, "url"))).isFalse();
+    assertThat(transitions.isBuildStatusChange(status(BuildStatus.State.SUCCESSFUL, "url"))).isTrue();
+    assertThat(transitions.getElided()).isEqualTo(2);
+
+    transitions.setApproved(null);
+    assertThat(transitions.isApprovalChange(false)).isTrue();
+  }
+
+  @Test
+  public void shouldSendBuildStatusWithAnotherUrlOrName() {
+    transitions.setBuildStatus(status(BuildStatus.State.FAILED, "url"));
+
+    assertThat(transitions.isBuildStatusChange(status(BuildStatus.State.FAILED, "other-url"))).isTrue();
+    BuildStatus renamed = status(BuildStatus.State.FAILED, "url");
+    renamed.setName("Other");
+    assertThat(transitions.isBuildStatusChange(renamed)).isTrue();
+    assertThat(transitions.getElided()).isZero();
+  }
+
+  private static BuildStatus status(BuildStatus.State state, String url) {
+    BuildStatus status = new BuildStatus();
+    status.setState(state);
+    status.setName("SonarQube");
+    status.setUrl(url);
+    return status;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.patch.FileHeader;
+import org.eclipse.jgit.patch.HunkHeader;
+import org.eclipse.jgit.patch.Patch;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UnifiedDiffParserTest {
+
+  @Test
+  public void shouldMatchJGitPatch() throws Exception {
+    Map<String, List<Integer>> expected = new HashMap<>();
+    try (InputStream diffStream = getClass().getClassLoader().getResourceAsStream("unified_diff.txt")) {
+      Patch patch = new Patch();
+      patch.parse(diffStream);
+      for (FileHeader fileHeader : patch.getFiles()) {
+        List<Integer> lines = new ArrayList<>();
+        expected.put(fileHeader.getNewPath(), lines);
+        for (HunkHeader hunk : fileHeader.getHunks()) {
+          for (Edit edit : hunk.toEditList()) {
+            for (int line = edit.getBeginB(); line < edit.getEndB(); line++) {
+              lines.add(line + 1);
+            }
+          }
+        }
+      }
+    }
+
+    ChangedLines actual;
+    try (InputStream diffStream = getClass().getClassLoader().getResourceAsStream("unified_diff.txt")) {
+      actual = UnifiedDiffParser.changedLines(diffStream);
+    }
+
+    assertThat(actual.fileCount()).isEqualTo(expected.size());
+    for (Map.Entry<String, List<Integer>> entry : expected.entrySet()) {
+      assertThat(actual.hasFile(entry.getKey())).isTrue();
+      assertThat(actual.lines(entry.getKey())).containsExactly(toArray(entry.getValue()));
+    }
+  }
+
+  @Test
+  public void shouldNotMistakeContentForHeaders() throws Exception {
+    ChangedLines lines = parse(
+      "diff --git a/a.txt b/a.txt\n" +
+      "index 1111111..2222222 100644\n" +
+      "--- a/a.txt\n" +
+      "+++ b/a.txt\n" +
+      "@@ -1,3 +1,3 @@\n" +
+      " one\n" +
+      "--- removed\n" +
+      "+++ added\n" +
+      " three\n" +
+      "diff --git a/b.txt b/b.txt\n" +
+      "--- a/b.txt\n" +
+      "+++ b/b.txt\n" +
+      "@@ -1 +1 @@\n" +
+      "-old\n" +
+      "\\ No newline at end of file\n" +
+      "+new\n" +
+      "\\ No newline at end of file\n");
+
+    assertThat(lines.fileCount()).isEqualTo(2);
+    assertThat(lines.lines("a.txt")).containsExactly(2);
+    assertThat(lines.lines("b.txt")).containsExactly(1);
+  }
+
+  @Test
+  public void shouldSkipDeletedFiles() throws Exception {
+    ChangedLines lines = parse(
+      "diff --git a/gone.txt b/gone.txt\n" +
+      "deleted file mode 100644\n" +
+      "--- a/gone.txt\n" +
+      "+++ /dev/null\n" +
+      "@@ -1,2 +0,0 @@\n" +
+      "-one\n" +
+      "-two\n" +
+      "diff --git a/old.txt b/new.txt\n" +
+      "similarity index 90%\n" +
+      "rename from old.txt\n" +
+      "rename to new.txt\n" +
+      "--- a/old.txt\n" +
+      "+++ b/new.txt\n" +
+      "@@ -1,2 +1,3 @@\n" +
+      " one\n" +
+      "+inserted\n" +
+      " two\n");
+
+    assertThat(lines.fileCount()).isEqualTo(1);
+    assertThat(lines.lines("new.txt")).containsExactly(2);
+  }
+
+  @Test
+  public void shouldDecodeQuotedPaths() throws Exception {
+    ChangedLines lines = parse(
+      "diff --git \"a/caf\\303\\251 \\\"x\\\".txt\" \"b/caf\\303\\251 \\\"x\\\".txt\"\n" +
+      "--- \"a/caf\\303\\251 \\\"x\\\".txt\"\n" +
+      "+++ \"b/caf\\303\\251 \\\"x\\\".txt\"\n" +
+      "@@ -0,0 +1 @@\n" +
+      "+line\n");
+
+    assertThat(lines.fileCount()).isEqualTo(1);
+    assertThat(lines.lines("caf\u00e9 \"x\".txt")).containsExactly(1);
+  }
+
+  @Test
+  public void shouldDecodeQuotedRename() throws Exception {
+    List<String> files = new ArrayList<>();
+    UnifiedDiffParser.parse(new ByteArrayInputStream((
+      "diff --git a/old.txt \"b/tab\\there\\\\\\346\\227\\245.txt\"\n" +
+      "similarity index 100%\n" +
+      "rename from old.txt\n" +
+      "rename to \"tab\\there\\\\\\346\\227\\245.txt\"\n").getBytes(StandardCharsets.UTF_8)),
+      new UnifiedDiffParser.Handler() {
+        @Override
+        public void onFile(String newPath) {
+          files.add(newPath);
+        }
+
+        @Override
+        public void onChangedLines(int firstLine, int lastLine) {
+          // a pure rename has no hunk
+        }
+      });
+
+    assertThat(files).containsExactly("tab\there\\\u65e5.txt");
+  }
+
+  @Test
+  public void shouldLeaveUnquotedPathsAlone() {
+    assertThat(UnifiedDiffParser.unquote("b/plain \\303.txt")).isEqualTo("b/plain \\303.txt");
+    assertThat(UnifiedDiffParser.unquote("\"b/new\\nline\"")).isEqualTo("b/new\nline");
+  }
+
+  @Test
+  public void shouldTruncateLongHeaders() throws Exception {
+    StringBuilder header = new StringBuilder();
+    for (int i = 0; i < UnifiedDiffParser.MAX_HEADER_LENGTH * 2; i++) {
+      header.append('x');
+    }
+    ChangedLines lines = parse(
+      "diff --git a/a.txt b/a.txt\n" +
+      "index " + header + "\n" +
+      "--- /dev/null\n" +
+      "+++ b/a.txt\n" +
+      "@@ -0,0 +1 @@\n" +
+      "+line\n");
+
+    assertThat(lines.fileCount()).isEqualTo(1);
+    assertThat(lines.lines("a.txt")).containsExactly(1);
+  }
+
+  private static ChangedLines parse(String diff) throws IOException {
+    return UnifiedDiffParser.changedLines(new ByteArrayInputStream(diff.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static int[] toArray(List<Integer> lines) {
+    return lines.stream().mapToInt(Integer::intValue).toArray();
+  }
+}
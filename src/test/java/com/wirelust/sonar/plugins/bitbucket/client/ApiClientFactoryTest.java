@@ -21,6 +21,9 @@ package com.wirelust.sonar.plugins.bitbucket.client;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.ws.rs.core.Response;
@@ -30,6 +33,7 @@ import com.wirelust.bitbucket.client.BitbucketV2Client;
 import com.wirelust.sonar.plugins.bitbucket.BitBucketPlugin;
 import com.wirelust.sonar.plugins.bitbucket.BitBucketPluginConfiguration;
 import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
 import org.jboss.resteasy.client.jaxrs.internal.ClientRequestHeaders;
 import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
@@ -188,4 +192,101 @@ public class ApiClientFactoryTest {
     assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
   }
 
+  @Test
+  public void shouldBeAbleToRefreshAccessToken() throws Exception {
+    apiClientFactory.setClientHttpEngine(new ClientHttpEngine() {
+                                           @Override
+                                           public SSLContext getSslContext() {
+                                             return null;
+                                           }
+
+                                           @Override
+                                           public HostnameVerifier getHostnameVerifier() {
+                                             return null;
+                                           }
+
+                                           @Override
+                                           public ClientResponse invoke(ClientInvocation request) {
+                                             assertEquals("POST", request.getMethod());
+                                             assertEquals("http://127.0.0.1/oauth2/access_token", request.getUri().toString());
+                                             assertEquals("BASIC Y2xpZW50X2lkOmNsaWVudF9zZWNyZXQ=",
+                                               request.getHeaders().getHeader("Authorization"));
+                                             return mockClientResponse;
+                                           }
+
+                                           @Override
+                                           public void close() {
+
+                                           }
+                                         });
+
+    Response response = apiClientFactory.refreshAccessToken("refresh-xxx123");
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+  }
+
+  @Test
+  public void shouldOnlyCreateTokenStoreWhenEnabled() {
+    assertNull(apiClientFactory.getTokenStore());
+
+    settings.setProperty(BitBucketPlugin.BITBUCKET_TOKEN_CACHE, "true");
+    Assert.assertNotNull(new ApiClientFactory(configuration).getTokenStore());
+  }
+
+  @Test
+  public void shouldSubmitWithBlockingEngine() throws Exception {
+    apiClientFactory.setClientHttpEngine(new ClientHttpEngine() {
+                                           @Override
+                                           public SSLContext getSslContext() {
+                                             return null;
+                                           }
+
+                                           @Override
+                                           public HostnameVerifier getHostnameVerifier() {
+                                             return null;
+                                           }
+
+                                           @Override
+                                           public ClientResponse invoke(ClientInvocation request) {
+                                             assertEquals("Bearer token-xxx123", request.getHeaders().getHeader("Authorization"));
+                                             return mockClientResponse;
+                                           }
+
+                                           @Override
+                                           public void close() {
+
+                                           }
+                                         });
+
+    CompletableFuture<Response> future = apiClientFactory.submit(
+      apiClientFactory.getV2Target("token-xxx123").path("2.0/user").request().buildGet());
+
+    // runs on the request executor, not on the calling thread
+    assertEquals(Response.Status.OK.getStatusCode(), future.get(5, TimeUnit.SECONDS).getStatus());
+  }
+
+  @Test
+  public void shouldUseAsyncEngineWhenConfigured() throws Exception {
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_ENGINE, BitBucketPlugin.HTTP_ENGINE_ASYNC);
+    ApiClientFactory asyncFactory = new ApiClientFactory(configuration);
+
+    ResteasyWebTarget target = asyncFactory.getV2Target(null);
+    Assert.assertTrue(target.getResteasyClient().httpEngine() instanceof RateLimitedHttpEngine);
+    Assert.assertTrue(((RateLimitedHttpEngine) target.getResteasyClient().httpEngine()).isAsync());
+    Assert.assertSame(target.getResteasyClient().httpEngine(), asyncFactory.getV2Target(null).getResteasyClient().httpEngine());
+    asyncFactory.close();
+  }
+
+  @Test
+  public void shouldReleaseThreadsWhenClosed() {
+    settings.setProperty(BitBucketPlugin.BITBUCKET_HTTP_ENGINE, BitBucketPlugin.HTTP_ENGINE_ASYNC);
+    ApiClientFactory asyncFactory = new ApiClientFactory(configuration);
+    asyncFactory.getV2Target(null);
+    ExecutorService executor = (ExecutorService) asyncFactory.getRequestExecutor();
+
+    asyncFactory.close();
+
+    Assert.assertTrue(executor.isShutdown());
+    Assert.assertNotSame(executor, asyncFactory.getRequestExecutor());
+    asyncFactory.close();
+  }
 }
@@ -0,0 +1,144 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncHttpClientEngineTest {
+
+  private HttpServer server;
+  private AsyncHttpClientEngine engine;
+  private ResteasyClient client;
+  private String baseUrl;
+
+  @Before
+  public void init() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/echo", exchange -> {
+      byte[] requestBody;
+      try (InputStream in = exchange.getRequestBody()) {
+        requestBody = IOUtils.toByteArray(in);
+      }
+      String auth = exchange.getRequestHeaders().getFirst("Authorization");
+      String body = exchange.getRequestMethod() + " " + auth + " " + new String(requestBody, StandardCharsets.UTF_8);
+      byte[] responseBody = body.getBytes(StandardCharsets.UTF_8);
+
+      exchange.getResponseHeaders().add("Content-Type", MediaType.TEXT_PLAIN);
+      exchange.sendResponseHeaders(Response.Status.OK.getStatusCode(), responseBody.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(responseBody);
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    engine = AsyncHttpClientEngine.create(10, 5, RequestConfig.DEFAULT);
+    client = new CustomResteasyClientBuilder()
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .httpEngine(engine)
+      .build();
+    client.register((ClientRequestFilter) requestContext
+      -> requestContext.getHeaders().add("Authorization", "Bearer token"));
+  }
+
+  @After
+  public void cleanup() {
+    client.close();
+    engine.shutdown();
+    server.stop(0);
+  }
+
+  @Test
+  public void shouldInvokeSynchronously() {
+    Response response = client.target(baseUrl).path("echo").request().get();
+
+    assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+    assertThat(response.readEntity(String.class)).isEqualTo("GET Bearer token ");
+    response.close();
+  }
+
+  @Test
+  public void shouldSubmitWithoutBlocking() throws Exception {
+    ClientInvocation invocation = (ClientInvocation) client.target(baseUrl).path("echo")
+      .request()
+      .build("POST", Entity.text("hello"));
+
+    CompletableFuture<Response> future = engine.submit(invocation);
+    Response response = future.get(10, TimeUnit.SECONDS);
+
+    assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+    assertThat(response.readEntity(String.class)).isEqualTo("POST Bearer token hello");
+    response.close();
+  }
+
+  @Test
+  public void shouldSurfaceConnectionFailures() {
+    server.stop(0);
+
+    CompletableFuture<Response> future = engine.submit(
+      (ClientInvocation) client.target(baseUrl).path("echo").request().buildGet());
+
+    try {
+      future.join();
+      Assert.fail();
+    } catch (CompletionException e) {
+      assertThat(e.getCause()).isInstanceOf(ProcessingException.class);
+    }
+  }
+
+  @Test
+  public void sharedEngineShouldSurviveClientClose() {
+    client.close();
+
+    ResteasyClient other = new CustomResteasyClientBuilder()
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .httpEngine(engine)
+      .build();
+    Response response = other.target(baseUrl).path("echo").request().get();
+
+    assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+    response.close();
+  }
+}
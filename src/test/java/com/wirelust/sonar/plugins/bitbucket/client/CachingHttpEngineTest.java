@@ -0,0 +1,299 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachingHttpEngineTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private HttpServer server;
+  private String baseUrl;
+  private volatile String etag = "\"v1\"";
+  private volatile String body = "first";
+  private final AtomicInteger notModified = new AtomicInteger();
+  private HttpConnectionPool pool;
+  private ResponseCache cache;
+
+  @Before
+  public void init() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/resource", exchange -> {
+      if (etag.equals(exchange.getRequestHeaders().getFirst(CachingHttpEngine.IF_NONE_MATCH))) {
+        notModified.incrementAndGet();
+        exchange.sendResponseHeaders(Response.Status.NOT_MODIFIED.getStatusCode(), -1);
+        exchange.close();
+        return;
+      }
+      exchange.getResponseHeaders().add(CachingHttpEngine.ETAG, etag);
+      send(exchange, body);
+    });
+    server.createContext("/json", exchange -> {
+      if (etag.equals(exchange.getRequestHeaders().getFirst(CachingHttpEngine.IF_NONE_MATCH))) {
+        notModified.incrementAndGet();
+        exchange.sendResponseHeaders(Response.Status.NOT_MODIFIED.getStatusCode(), -1);
+        exchange.close();
+        return;
+      }
+      exchange.getResponseHeaders().add(CachingHttpEngine.ETAG, etag);
+      send(exchange, body, MediaType.APPLICATION_JSON);
+    });
+    server.createContext("/uncached", exchange -> send(exchange, "plain"));
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    pool = new HttpConnectionPool(5, 5);
+    cache = new ResponseCache(temporaryFolder.newFolder("http"), "login", 1024 * 1024, TimeUnit.DAYS.toMillis(1));
+  }
+
+  private static void send(HttpExchange exchange, String body) throws IOException {
+    send(exchange, body, MediaType.TEXT_PLAIN);
+  }
+
+  private static void send(HttpExchange exchange, String body, String contentType) throws IOException {
+    byte[] responseBody = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(Response.Status.OK.getStatusCode(), responseBody.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(responseBody);
+    }
+  }
+
+  @After
+  public void cleanup() {
+    server.stop(0);
+    pool.close();
+  }
+
+  private String get(String path) {
+    return get(path, response -> response.readEntity(String.class));
+  }
+
+  private <T> T get(String path, Function<Response, T> read) {
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .connectionPool(pool)
+      .responseCache(cache)
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .build();
+    client.register(JacksonConfigurationProvider.class);
+    try {
+      assertThat(client.httpEngine()).isInstanceOf(CachingHttpEngine.class);
+      Response response = client.target(baseUrl).path(path).request().get();
+      assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+      return read.apply(response);
+    } finally {
+      client.close();
+    }
+  }
+
+  private CommentPage getComments() {
+    return get("json", response -> {
+      try (InputStream in = response.readEntity(InputStream.class)) {
+        return new CommentPageParser().parse(in, "evzijst");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  @Test
+  public void shouldServeUnchangedResponseFromCache() {
+    assertThat(get("resource")).isEqualTo("first");
+    assertThat(cache.getStored()).isEqualTo(1);
+
+    assertThat(get("resource")).isEqualTo("first");
+    assertThat(notModified.get()).isEqualTo(1);
+    assertThat(cache.getRevalidated()).isEqualTo(1);
+
+    // a new version replaces the entry
+    etag = "\"v2\"";
+    body = "second";
+    assertThat(get("resource")).isEqualTo("second");
+    assertThat(get("resource")).isEqualTo("second");
+    assertThat(notModified.get()).isEqualTo(2);
+    assertThat(cache.getStored()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldNotStoreResponsesWithoutValidator() {
+    assertThat(get("uncached")).isEqualTo("plain");
+    assertThat(get("uncached")).isEqualTo("plain");
+
+    assertThat(cache.getStored()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldStoreJsonReadUpToTheRootValue() {
+    body = "{\"id\": 1, \"title\": \"first\"}\n";
+
+    assertThat(get("json", response -> response.readEntity(JsonNode.class)).get("id").asInt()).isEqualTo(1);
+    assertThat(cache.getStored()).isEqualTo(1);
+
+    assertThat(get("json", response -> response.readEntity(JsonNode.class)).get("title").asText()).isEqualTo("first");
+    assertThat(notModified.get()).isEqualTo(1);
+    assertThat(cache.getRevalidated()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldStoreParsedCommentPages() throws Exception {
+    try (InputStream in = getClass().getClassLoader()
+      .getResourceAsStream("mocks/api/2.0/repositories/owner/repo/commit/revision/comments.json")) {
+      body = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8) + "\n";
+    }
+
+    assertThat(getComments().getComments()).hasSize(2);
+    assertThat(cache.getStored()).isEqualTo(1);
+
+    assertThat(getComments().getComments()).hasSize(2);
+    assertThat(notModified.get()).isEqualTo(1);
+    assertThat(cache.getRevalidated()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDiscardPartiallyReadBody() throws Exception {
+    // more than what is read on close to complete an entry
+    char[] large = new char[CachingHttpEngine.TeeInputStream.MAX_DRAIN * 2];
+    Arrays.fill(large, 'f');
+    body = new String(large);
+
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .connectionPool(pool)
+      .responseCache(cache)
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .build();
+    try {
+      Response response = client.target(baseUrl).path("resource").request().get();
+      try (InputStream in = response.readEntity(InputStream.class)) {
+        assertThat(in.read()).isEqualTo('f');
+      }
+      response.close();
+    } finally {
+      client.close();
+    }
+
+    assertThat(cache.getStored()).isEqualTo(0);
+    assertThat(temporaryFolder.getRoot().toPath().resolve("http").toFile().list()).isEmpty();
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsedEntries() throws Exception {
+    File directory = temporaryFolder.newFolder("evicted");
+    ResponseCache smallCache = new ResponseCache(directory, "login", 150, TimeUnit.DAYS.toMillis(1));
+    for (int i = 0; i < 3; i++) {
+      ResponseCache.Writer writer = smallCache.writer(smallCache.key("uri" + i, null), "uri" + i, "\"" + i + "\"",
+        null, null);
+      byte[] content = new byte[60];
+      writer.write(content, 0, content.length);
+      writer.close(true);
+      new File(directory, smallCache.key("uri" + i, null) + ResponseCache.ENTRY_SUFFIX)
+        .setLastModified(System.currentTimeMillis() - (3 - i) * 1000L);
+    }
+    smallCache.evict();
+
+    assertThat(smallCache.load(smallCache.key("uri0", null), "uri0")).isNull();
+    assertThat(smallCache.load(smallCache.key("uri2", null), "uri2")).isNotNull();
+    assertThat(smallCache.load(smallCache.key("uri1", null), "uri2")).isNull();
+
+    ResponseCache expiring = new ResponseCache(directory, "login", 1024, 10);
+    expiring.evict();
+    assertThat(directory.list()).isEmpty();
+  }
+
+  @Test
+  public void shouldOnlyListDirectoryOnceOverTheLimit() throws Exception {
+    File directory = temporaryFolder.newFolder("counted");
+    ResponseCache countingCache = new ResponseCache(directory, "login", 300, TimeUnit.DAYS.toMillis(1));
+    store(countingCache, "uri0", 60);
+    // left by another analysis a while ago, only found when the directory is listed again
+    File stale = new File(directory, "stale" + ResponseCache.ENTRY_SUFFIX);
+    Files.write(stale.toPath(), new byte[10]);
+    stale.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+
+    store(countingCache, "uri1", 60);
+    assertThat(stale).exists();
+
+    store(countingCache, "uri2", 200);
+    assertThat(stale).doesNotExist();
+    assertThat(countingCache.load(countingCache.key("uri2", null), "uri2")).isNotNull();
+  }
+
+  @Test
+  public void shouldNotStoreBodiesLargerThanTheCache() throws Exception {
+    File directory = temporaryFolder.newFolder("large");
+    ResponseCache smallCache = new ResponseCache(directory, "login", 100, TimeUnit.DAYS.toMillis(1));
+    store(smallCache, "uri", 200);
+
+    assertThat(smallCache.fits(200)).isFalse();
+    assertThat(smallCache.getStored()).isEqualTo(0);
+    assertThat(directory.list()).isEmpty();
+  }
+
+  @Test
+  public void shouldRestrictCacheToOwner() throws Exception {
+    File directory = new File(temporaryFolder.getRoot(), "private");
+    ResponseCache privateCache = new ResponseCache(directory, "login", 1024, TimeUnit.DAYS.toMillis(1));
+    store(privateCache, "uri", 10);
+    Assume.assumeTrue(Files.getFileStore(directory.toPath()).supportsFileAttributeView("posix"));
+
+    File entry = new File(directory, privateCache.key("uri", null) + ResponseCache.ENTRY_SUFFIX);
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())))
+      .isEqualTo("rwx------");
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(entry.toPath())))
+      .isEqualTo("rw-------");
+  }
+
+  private static void store(ResponseCache responseCache, String uri, int length) {
+    ResponseCache.Writer writer = responseCache.writer(responseCache.key(uri, null), uri, "\"" + uri + "\"",
+      null, null);
+    byte[] content = new byte[length];
+    writer.write(content, 0, content.length);
+    writer.close(true);
+  }
+}
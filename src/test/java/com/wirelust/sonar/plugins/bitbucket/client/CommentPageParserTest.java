@@ -0,0 +1,125 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.wirelust.sonar.plugins.bitbucket.ReviewComment;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommentPageParserTest {
+
+  private final CommentPageParser parser = new CommentPageParser();
+
+  @Test
+  public void shouldKeepOnlyCommentsOfUser() throws Exception {
+    CommentPage page;
+    try (InputStream input = comments()) {
+      page = parser.parse(input, "evzijst");
+    }
+
+    List<ReviewComment> comments = page.getComments();
+    assertThat(comments).hasSize(2);
+    assertThat(comments.get(0).getId()).isEqualTo(530189L);
+    assertThat(comments.get(0).getPath()).isEqualTo("pom.xml");
+    assertThat(comments.get(0).getLine()).isNull();
+    assertThat(comments.get(1).getId()).isEqualTo(530190L);
+    assertThat(comments.get(1).getLine()).isEqualTo(381);
+    assertThat(comments.get(1).getFingerprint())
+      .isEqualTo(ReviewComment.desired("pom.xml", 381, "Inline test comment.").getFingerprint());
+    assertThat(page.getValueCount()).isEqualTo(2);
+    assertThat(page.getPagelen()).isEqualTo(1);
+    assertThat(page.getNext()).isNull();
+
+    try (InputStream input = comments()) {
+      assertThat(parser.parse(input, "someone-else").getComments()).isEmpty();
+    }
+  }
+
+  @Test
+  public void shouldSkipOtherUsersWhateverTheFieldOrder() throws Exception {
+    String json = "{\"values\": ["
+      // content before the user, and nested objects after it which must be skipped
+      + "{\"content\": {\"raw\": \"theirs\", \"html\": \"<p>theirs</p>\"}, \"id\": 1,"
+      + " \"user\": {\"username\": \"other\"}, \"links\": {\"self\": [{\"href\": \"x\"}]}, \"inline\": {\"to\": 3}},"
+      + "{\"id\": 2, \"parent\": {\"id\": 1}, \"user\": {\"username\": \"sonar\", \"links\": {}},"
+      + " \"inline\": {\"path\": \"a.java\", \"from\": null, \"to\": 5}, \"content\": {\"raw\": \"ours\"}}"
+      + "], \"size\": 12, \"pagelen\": 2, \"next\": \"https://api/comments?page=2\"}";
+
+    CommentPage page = parser.parse(stream(json), "sonar");
+
+    assertThat(page.getValueCount()).isEqualTo(2);
+    assertThat(page.getSize()).isEqualTo(12);
+    assertThat(page.getNext()).isEqualTo("https://api/comments?page=2");
+    assertThat(page.getComments()).hasSize(1);
+    ReviewComment comment = page.getComments().get(0);
+    assertThat(comment.getId()).isEqualTo(2L);
+    assertThat(comment.getPath()).isEqualTo("a.java");
+    assertThat(comment.getLine()).isEqualTo(5);
+    assertThat(comment.getFingerprint()).isEqualTo(ReviewComment.desired("a.java", 5, "ours").getFingerprint());
+    assertThat(comment.getBody()).isEmpty();
+  }
+
+  @Test
+  public void shouldAcceptSingleComment() throws Exception {
+    CommentPage page = parser.parse(stream(
+      "{\"values\": {\"id\": 4, \"user\": {\"username\": \"sonar\"}, \"content\": {\"raw\": \"ours\"}}}"), "sonar");
+
+    assertThat(page.getComments()).hasSize(1);
+    assertThat(page.getComments().get(0).getPath()).isNull();
+    assertThat(page.getSize()).isNull();
+  }
+
+  @Test
+  public void shouldLeaveTheStreamOpen() throws Exception {
+    final boolean[] closed = {false};
+    InputStream input = new ByteArrayInputStream("{\"values\": []}".getBytes(StandardCharsets.UTF_8)) {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+        super.close();
+      }
+    };
+
+    parser.parse(input, "sonar");
+
+    assertThat(closed[0]).isFalse();
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectNonObjectPage() throws Exception {
+    parser.parse(stream("[]"), "sonar");
+  }
+
+  private InputStream comments() {
+    return getClass().getClassLoader()
+      .getResourceAsStream("mocks/api/2.0/repositories/owner/repo/commit/revision/comments.json");
+  }
+
+  private static InputStream stream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
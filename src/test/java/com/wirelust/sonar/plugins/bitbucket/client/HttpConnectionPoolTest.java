@@ -0,0 +1,82 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.pool.PoolStats;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpConnectionPoolTest {
+
+  private HttpConnectionPool pool;
+
+  @Before
+  public void init() {
+    pool = new HttpConnectionPool(7, 3);
+  }
+
+  @After
+  public void cleanup() {
+    pool.close();
+  }
+
+  @Test
+  public void shouldApplyConnectionLimits() {
+    PoolStats stats = pool.getTotalStats();
+    assertThat(stats.getMax()).isEqualTo(7);
+    assertThat(stats.getLeased()).isEqualTo(0);
+
+    pool.evictConnections();
+    pool.logStatistics();
+  }
+
+  @Test
+  public void shouldShareSslSettingsBetweenClients() {
+    CloseableHttpClient client1 = pool.createHttpClient(RequestConfig.DEFAULT);
+    CloseableHttpClient client2 = pool.createHttpClient(RequestConfig.DEFAULT);
+
+    assertThat(client1).isNotSameAs(client2);
+    assertThat(pool.getSslContext()).isNotNull();
+    assertThat(pool.getHostnameVerifier()).isNotNull();
+  }
+
+  @Test
+  public void shouldBuildPooledEngine() {
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .connectionPool(pool)
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .build();
+
+    ClientHttpEngine httpEngine = client.httpEngine();
+    assertThat(httpEngine).isInstanceOf(CustomApacheHttpClient4Engine.class);
+
+    // closing the client must leave the shared pool usable for the others
+    client.close();
+    assertThat(pool.getTotalStats().getMax()).isEqualTo(7);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateGovernorTest {
+
+  @Test
+  public void shouldPaceRequestsOverTheBurst() {
+    RateGovernor governor = new RateGovernor(10, 2);
+
+    assertThat(governor.reserve()).isEqualTo(0);
+    assertThat(governor.reserve()).isEqualTo(0);
+    // the bucket is empty, the next requests queue behind each other at 100ms intervals
+    long third = governor.reserve();
+    long fourth = governor.reserve();
+    assertThat(third).isBetween(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(fourth - third).isBetween(TimeUnit.MILLISECONDS.toNanos(90), TimeUnit.MILLISECONDS.toNanos(110));
+
+    assertThat(governor.getRequests()).isEqualTo(4);
+    assertThat(governor.getWaitMillis()).isGreaterThanOrEqualTo(150);
+  }
+
+  @Test
+  public void shouldHoldRequestsWhilePaused() {
+    RateGovernor governor = new RateGovernor(0, 1);
+    assertThat(governor.reserve()).isEqualTo(0);
+
+    governor.pause(1000);
+    assertThat(governor.reserve()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(900));
+    assertThat(governor.getThrottled()).isEqualTo(1);
+
+    // a shorter pause doesn't cut the current one short
+    governor.pause(10);
+    assertThat(governor.reserve()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(900));
+  }
+
+  @Test
+  public void shouldShareGovernorPerAccount() {
+    RateGovernor first = RateGovernor.forAccount("RateGovernorTest-a", 5, 5);
+    RateGovernor second = RateGovernor.forAccount("RateGovernorTest-a", 5, 5);
+    RateGovernor other = RateGovernor.forAccount("RateGovernorTest-b", 5, 5);
+
+    assertThat(first).isSameAs(second);
+    assertThat(first).isNotSameAs(other);
+  }
+}
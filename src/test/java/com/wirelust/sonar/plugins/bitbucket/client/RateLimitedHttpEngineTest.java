@@ -0,0 +1,172 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.config.RequestConfig;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitedHttpEngineTest {
+
+  private HttpServer server;
+  private String baseUrl;
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger authHeaders = new AtomicInteger();
+  private volatile int throttledCalls;
+
+  @Before
+  public void init() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/throttled", exchange -> {
+      List<String> auth = exchange.getRequestHeaders().get("Authorization");
+      authHeaders.set(auth == null ? 0 : auth.size());
+      if (calls.incrementAndGet() <= throttledCalls) {
+        exchange.getResponseHeaders().add(RateLimitedHttpEngine.RETRY_AFTER, "0");
+        send(exchange, RateLimitedHttpEngine.TOO_MANY_REQUESTS, "slow down");
+      } else {
+        send(exchange, Response.Status.OK.getStatusCode(), "ok");
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] responseBody = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", MediaType.TEXT_PLAIN);
+    exchange.sendResponseHeaders(status, responseBody.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(responseBody);
+    }
+  }
+
+  @After
+  public void cleanup() {
+    server.stop(0);
+  }
+
+  @Test
+  public void shouldRetryThrottledRequests() {
+    throttledCalls = 2;
+    RateGovernor governor = new RateGovernor(0, 1);
+    HttpConnectionPool pool = new HttpConnectionPool(5, 5);
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .connectionPool(pool)
+      .rateGovernor(governor)
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .build();
+
+    try {
+      assertThat(client.httpEngine()).isInstanceOf(RateLimitedHttpEngine.class);
+      Response response = client.target(baseUrl).path("throttled").request().get();
+
+      assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+      assertThat(response.readEntity(String.class)).isEqualTo("ok");
+      assertThat(calls.get()).isEqualTo(3);
+      assertThat(governor.getThrottled()).isEqualTo(2);
+      assertThat(governor.getRequests()).isEqualTo(3);
+    } finally {
+      client.close();
+      pool.close();
+    }
+  }
+
+  @Test
+  public void shouldGiveUpAfterMaxRetries() {
+    throttledCalls = Integer.MAX_VALUE;
+    RateGovernor governor = new RateGovernor(0, 1);
+    HttpConnectionPool pool = new HttpConnectionPool(5, 5);
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .connectionPool(pool)
+      .rateGovernor(governor)
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .build();
+
+    try {
+      Response response = client.target(baseUrl).path("throttled").request().get();
+
+      assertThat(response.getStatus()).isEqualTo(RateLimitedHttpEngine.TOO_MANY_REQUESTS);
+      assertThat(calls.get()).isEqualTo(RateLimitedHttpEngine.MAX_RETRIES + 1);
+      response.close();
+    } finally {
+      client.close();
+      pool.close();
+    }
+  }
+
+  @Test
+  public void shouldRetryAsyncRequestsWithoutRunningFiltersAgain() throws Exception {
+    throttledCalls = 1;
+    RateGovernor governor = new RateGovernor(0, 1);
+    AsyncHttpClientEngine asyncEngine = AsyncHttpClientEngine.create(5, 5, RequestConfig.DEFAULT);
+    RateLimitedHttpEngine engine = new RateLimitedHttpEngine(asyncEngine, governor);
+    ResteasyClient client = new CustomResteasyClientBuilder()
+      .providerFactory(ResteasyProviderFactory.getInstance())
+      .httpEngine(engine)
+      .build();
+    client.register((ClientRequestFilter) requestContext
+      -> requestContext.getHeaders().add("Authorization", "Bearer token"));
+
+    try {
+      assertThat(engine.isAsync()).isTrue();
+      CompletableFuture<Response> future = engine.submit(
+        (ClientInvocation) client.target(baseUrl).path("throttled").request().buildGet());
+      Response response = future.get(10, TimeUnit.SECONDS);
+
+      assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+      assertThat(calls.get()).isEqualTo(2);
+      assertThat(authHeaders.get()).isEqualTo(1);
+      response.close();
+    } finally {
+      client.close();
+      asyncEngine.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldParseRetryAfter() {
+    assertThat(RateLimitedHttpEngine.retryAfterMillis(null)).isNull();
+    assertThat(RateLimitedHttpEngine.retryAfterMillis("garbage")).isNull();
+    assertThat(RateLimitedHttpEngine.retryAfterMillis("3")).isEqualTo(3000L);
+    assertThat(RateLimitedHttpEngine.retryAfterMillis("Thu, 01 Jan 1970 00:00:00 GMT")).isEqualTo(0L);
+    assertThat(RateLimitedHttpEngine.resetMillis("0")).isEqualTo(0L);
+    assertThat(RateLimitedHttpEngine.resetMillis("soon")).isNull();
+  }
+}
@@ -19,6 +19,7 @@
  */
 package com.wirelust.sonar.plugins.bitbucket.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Modifier;
@@ -38,10 +39,14 @@ import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.engines.PassthroughTrustManager;
 import org.jboss.resteasy.plugins.providers.DataSourceProvider;
+import org.jboss.resteasy.plugins.providers.StringTextStar;
+import org.jboss.resteasy.plugins.providers.jackson.ResteasyJackson2Provider;
 import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.powermock.api.mockito.PowerMockito;
@@ -61,6 +66,9 @@ import static org.mockito.Mockito.when;
 @PrepareForTest({SSLContext.class, SSLContexts.class})
 public class RestEasyClientBuilderTest {
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Mock
   SSLContext sslContext;
 
@@ -150,6 +158,28 @@ public class RestEasyClientBuilderTest {
     Assert.assertTrue(resteasyProviderFactory.getProviderClasses().contains(DataSourceProvider.class));
   }
 
+  @Test
+  public void shouldRegisterOnlyIndexedProviders() throws Exception {
+    ResteasyProviderFactory resteasyProviderFactory = new ResteasyProviderFactory();
+
+    ResteasyRegisterBuiltin.registerProviders(resteasyProviderFactory);
+
+    Assert.assertTrue(resteasyProviderFactory.getProviderClasses().contains(StringTextStar.class));
+    Assert.assertTrue(resteasyProviderFactory.getProviderClasses().contains(ResteasyJackson2Provider.class));
+    Assert.assertFalse(resteasyProviderFactory.getProviderClasses().contains(DataSourceProvider.class));
+  }
+
+  @Test
+  public void shouldScanTheClasspathWhenTheIndexIsEmpty() throws Exception {
+    ResteasyProviderFactory resteasyProviderFactory = new ResteasyProviderFactory();
+    File index = temp.newFile(ResteasyRegisterBuiltin.PROVIDER_INDEX);
+
+    ResteasyRegisterBuiltin.registerProviders(resteasyProviderFactory, index.toURI().toURL());
+
+    Assert.assertTrue(resteasyProviderFactory.getProviderClasses().contains(StringTextStar.class));
+    Assert.assertTrue(resteasyProviderFactory.getProviderClasses().contains(DataSourceProvider.class));
+  }
+
   /**
    * This method simply instantiates a private constructor to ensure code coverage for it so the
    * coverage reports aren't diminished
@@ -0,0 +1,132 @@
+/*
+ * SonarQube :: Bitbucket Plugin
+ * Copyright (C) 2015-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.wirelust.sonar.plugins.bitbucket.client;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import com.wirelust.bitbucket.client.representations.auth.OauthAccessToken;
+import com.wirelust.sonar.plugins.bitbucket.jackson.JacksonObjectMapper;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TokenStoreTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+  private TokenStore tokenStore;
+
+  @Before
+  public void prepare() throws Exception {
+    directory = new File(temporaryFolder.getRoot(), "cache");
+    tokenStore = new TokenStore(directory);
+  }
+
+  @Test
+  public void shouldReturnNullWhenNothingIsCached() {
+    assertNull(tokenStore.load("client_id", "login"));
+  }
+
+  @Test
+  public void shouldBeAbleToSaveAndLoadToken() {
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("access", "refresh", 1000L, "user"));
+
+    TokenStore.StoredToken token = tokenStore.load("client_id", "login");
+    assertEquals("access", token.getAccessToken());
+    assertEquals("refresh", token.getRefreshToken());
+    assertEquals(1000L, token.getExpiresAt());
+    assertEquals("user", token.getUsername());
+  }
+
+  @Test
+  public void shouldKeyTokensByClientIdAndLogin() {
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("access", "refresh", 1000L, null));
+
+    assertNull(tokenStore.load("client_id", "other_login"));
+    assertNull(tokenStore.load("other_client_id", "login"));
+    assertThat(tokenStore.tokenFile("client_id", "login").getName()).doesNotContain("login");
+  }
+
+  @Test
+  public void shouldOverwriteExistingToken() {
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("a-much-longer-access-token", "refresh", 1000L, "user"));
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("access", null, 2000L, null));
+
+    TokenStore.StoredToken token = tokenStore.load("client_id", "login");
+    assertEquals("access", token.getAccessToken());
+    assertNull(token.getRefreshToken());
+    assertEquals(2000L, token.getExpiresAt());
+    assertNull(token.getUsername());
+  }
+
+  @Test
+  public void shouldDeleteToken() {
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("access", "refresh", 1000L, "user"));
+
+    tokenStore.delete("client_id", "login");
+    tokenStore.delete("client_id", "login");
+
+    assertNull(tokenStore.load("client_id", "login"));
+  }
+
+  @Test
+  public void shouldIgnoreCorruptFiles() throws Exception {
+    directory.mkdirs();
+    assertThat(tokenStore.tokenFile("client_id", "login").createNewFile()).isTrue();
+
+    assertNull(tokenStore.load("client_id", "login"));
+  }
+
+  @Test
+  public void shouldRestrictReadableTokenFileToOwner() throws Exception {
+    File file = tokenStore.tokenFile("client_id", "login");
+    directory.mkdirs();
+    Files.createFile(file.toPath());
+    Assume.assumeTrue(Files.getFileStore(file.toPath()).supportsFileAttributeView("posix"));
+    Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+
+    tokenStore.save("client_id", "login", new TokenStore.StoredToken("access", "refresh", 1000L, null));
+
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()))).isEqualTo("rw-------");
+  }
+
+  @Test
+  public void shouldComputeExpiryFromAccessToken() throws Exception {
+    OauthAccessToken accessToken = JacksonObjectMapper.get().readValue(
+      "{\"access_token\":\"access\",\"refresh_token\":\"refresh\",\"expires_in\":3600}", OauthAccessToken.class);
+
+    TokenStore.StoredToken token = TokenStore.StoredToken.from(accessToken, 1000L);
+    assertEquals(3601000L, token.getExpiresAt());
+
+    assertThat(token.isValid(1000L, 60000L)).isTrue();
+    assertThat(token.isValid(3600000L, 60000L)).isFalse();
+    assertThat(token.withUsername("user").getUsername()).isEqualTo("user");
+  }
+}
@@ -19,9 +19,23 @@
  */
 package com.wirelust.sonar.plugins.bitbucket.dao;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import com.wirelust.bitbucket.client.BitbucketV2Client;
+import com.wirelust.bitbucket.client.representations.BuildStatus;
 import com.wirelust.bitbucket.client.representations.PullRequest;
 import com.wirelust.bitbucket.client.representations.v1.V1Comment;
 import com.wirelust.sonar.plugins.bitbucket.BitBucketPluginConfiguration;
@@ -32,10 +46,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.config.Settings;
 
 import static org.junit.Assert.assertEquals;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -139,4 +161,176 @@ public class V2DAOTest {
         e.getMessage());
     }
   }
+
+  @Test
+  public void shouldSurfaceAsyncDeleteFailure() {
+    when(responseFailure.getStatus()).thenReturn(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+    WebTarget target = mockTarget(responseFailure);
+    Invocation invocation = mockInvocation(target);
+    List<Invocation> sent = new ArrayList<>();
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(sent, responseFailure));
+
+    CompletableFuture<Void> deletion = v2DAO.deletePullRequestCommentAsync(target, pullRequest, 1000L);
+
+    try {
+      deletion.join();
+
+      Assert.fail();
+    } catch (CompletionException e) {
+      assertEquals("Unable to delete review comment id:1000, expected:200, got:500",
+        e.getCause().getMessage());
+    }
+    assertThat(sent).containsExactly(invocation);
+    verify(target).path(V2DAO.COMMENT_V1_PATH);
+    verify(target).resolveTemplate("commentId", 1000L);
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(HttpMethod.DELETE);
+    verify(responseFailure).close();
+  }
+
+  @Test
+  public void shouldPostCommentWithoutBlocking() {
+    when(responseSuccess.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    V1Comment posted = new V1Comment();
+    posted.setCommentId(42L);
+    when(responseSuccess.readEntity(V1Comment.class)).thenReturn(posted);
+    WebTarget target = mockTarget(responseSuccess);
+    Invocation invocation = mockInvocation(target);
+    List<Invocation> sent = new ArrayList<>();
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(sent, responseSuccess));
+
+    V1Comment comment = v2DAO.createOrUpdatePullRequestCommentAsync(target, pullRequest, null, "body", "a.java", 3)
+      .join();
+
+    assertThat(comment.getCommentId()).isEqualTo(42L);
+    assertThat(sent).containsExactly(invocation);
+    verify(target).path(V2DAO.COMMENTS_V1_PATH);
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(eq(HttpMethod.POST), any(Entity.class));
+    verify(bitbucketV2Client, never()).postPullRequestComment(anyString(), anyString(), anyLong(),
+      any(V1Comment.class));
+  }
+
+  @Test
+  public void shouldPutCommentWhenUpdating() {
+    when(responseSuccess.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    WebTarget target = mockTarget(responseSuccess);
+    mockInvocation(target);
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(new ArrayList<>(), responseSuccess));
+
+    v2DAO.createOrUpdatePullRequestCommentAsync(target, pullRequest, 7L, "body", null, null).join();
+
+    verify(target).path(V2DAO.COMMENT_V1_PATH);
+    verify(target).resolveTemplate("commentId", 7L);
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(eq(HttpMethod.PUT), any(Entity.class));
+  }
+
+  @Test
+  public void shouldPostBuildStatusOfTheCommit() {
+    WebTarget target = mockTarget(responseSuccess);
+    Invocation invocation = mockInvocation(target);
+    List<Invocation> sent = new ArrayList<>();
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(sent, responseSuccess));
+
+    assertThat(v2DAO.postBuildStatusAsync(target, "abc123", new BuildStatus()).join()).isSameAs(responseSuccess);
+
+    assertThat(sent).containsExactly(invocation);
+    verify(target).path(V2DAO.BUILD_STATUS_PATH);
+    verify(target).resolveTemplate("revision", "abc123");
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(eq(HttpMethod.POST), any(Entity.class));
+  }
+
+  @Test
+  public void shouldReadApprovalFromParticipants() {
+    when(responseSuccess.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    when(responseSuccess.readEntity(InputStream.class)).thenReturn(json("{\"participants\": ["
+      + "{\"user\": {\"username\": \"other\"}, \"approved\": true}, "
+      + "{\"user\": {\"username\": \"bot\"}, \"approved\": false}]}"));
+    WebTarget target = mockTarget(responseSuccess);
+
+    assertThat(v2DAO.isApprovedBy(target, 123L, "bot")).isFalse();
+    verify(target).queryParam("fields", "participants.user.username,participants.approved");
+    verify(responseSuccess).close();
+  }
+
+  @Test
+  public void shouldNotBeApprovedWithoutParticipation() {
+    when(responseSuccess.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    when(responseSuccess.readEntity(InputStream.class)).thenReturn(json("{\"participants\": []}"));
+
+    assertThat(v2DAO.isApprovedBy(mockTarget(responseSuccess), 123L, "bot")).isFalse();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldFailWhenParticipantsCanNotBeRead() {
+    when(responseFailure.getStatus()).thenReturn(Response.Status.FORBIDDEN.getStatusCode());
+
+    v2DAO.isApprovedBy(mockTarget(responseFailure), 123L, "bot");
+  }
+
+  @Test
+  public void shouldEscapeTheUserFilter() {
+    when(responseFailure.getStatus()).thenReturn(Response.Status.BAD_REQUEST.getStatusCode());
+    WebTarget target = mockTarget(responseFailure);
+
+    assertThat(v2DAO.countUserPullRequestComments(target, 123L, "b\\o\"t")).isNull();
+    verify(target).queryParam("q", "user.username=\"b\\\\o\\\"t\"");
+  }
+
+  private static InputStream json(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void shouldReadBuildStatusOfTheKey() {
+    when(responseSuccess.getStatus()).thenReturn(Response.Status.OK.getStatusCode());
+    BuildStatus buildStatus = new BuildStatus();
+    buildStatus.setState(BuildStatus.State.INPROGRESS);
+    when(responseSuccess.readEntity(BuildStatus.class)).thenReturn(buildStatus);
+    WebTarget target = mockTarget(responseSuccess);
+    mockInvocation(target);
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(new ArrayList<>(), responseSuccess));
+
+    assertThat(v2DAO.getBuildStatusAsync(target, "abc123", "SONAR").join()).isSameAs(buildStatus);
+    verify(target).path(V2DAO.BUILD_STATUS_PATH + "/{key}");
+    verify(target).resolveTemplate("key", "SONAR");
+    verify(target.request(MediaType.APPLICATION_JSON_TYPE)).build(HttpMethod.GET);
+    verify(responseSuccess).close();
+  }
+
+  @Test
+  public void shouldHaveNoBuildStatusWhenNotFound() {
+    when(responseFailure.getStatus()).thenReturn(Response.Status.NOT_FOUND.getStatusCode());
+    WebTarget target = mockTarget(responseFailure);
+    mockInvocation(target);
+    v2DAO = new V2DAO(bitbucketV2Client, configuration, sendAndAnswer(new ArrayList<>(), responseFailure));
+
+    assertThat(v2DAO.getBuildStatusAsync(target, "abc123", "SONAR").join()).isNull();
+    verify(responseFailure).close();
+  }
+
+  private static Invocation mockInvocation(WebTarget target) {
+    Invocation invocation = mock(Invocation.class);
+    Invocation.Builder builder = target.request(MediaType.APPLICATION_JSON_TYPE);
+    when(builder.build(anyString())).thenReturn(invocation);
+    when(builder.build(anyString(), any(Entity.class))).thenReturn(invocation);
+    return invocation;
+  }
+
+  private static Function<Invocation, CompletableFuture<Response>> sendAndAnswer(List<Invocation> sent,
+                                                                                 Response response) {
+    return invocation -> {
+      sent.add(invocation);
+      return CompletableFuture.completedFuture(response);
+    };
+  }
+
+  private static WebTarget mockTarget(Response response) {
+    // every WebTarget call returns the target itself, like a builder
+    Answer<Object> returnsSelf = invocation ->
+      invocation.getMethod().getReturnType().isInstance(invocation.getMock()) ? invocation.getMock() : null;
+    WebTarget target = mock(WebTarget.class, returnsSelf);
+    Invocation.Builder builder = mock(Invocation.Builder.class);
+    doReturn(builder).when(target).request(any(MediaType.class));
+    when(builder.get()).thenReturn(response);
+    return target;
+  }
 }